@@ -3,6 +3,7 @@ package com.hadoop.compression.lzo;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
@@ -11,13 +12,18 @@ import com.hadoop.mapreduce.LzoSplitInputFormat;
 import com.hadoop.mapreduce.LzoSplitRecordReader;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.conf.Configured;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PathFilter;
 import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.CompressionCodecFactory;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
@@ -34,6 +40,14 @@ public class DistributedLzoIndexer extends Configured implements Tool {
    * Override the default length to which the job name will be truncated. Set non-positive to disable.
    */
   public static final String JOB_NAME_MAX_LENGTH_KEY = "lzo.indexer.distributed.job.name.max.length";
+  /**
+   * Split lzo files into pieces of about this many bytes, each indexed by its own mapper,
+   * and merge the partial indexes once the job is done. 0, the default, indexes each file
+   * in one mapper.
+   */
+  public static final String SPLIT_SIZE_KEY = "lzo.indexer.distributed.split.size";
+  /** Suffix of the partial indexes of a split file, followed by the first block position. */
+  static final String PARTIAL_INDEX_SUFFIX = LzoIndex.LZO_INDEX_SUFFIX + ".part-";
   static final String DEFAULT_JOB_NAME_PREFIX = "Distributed Lzo Indexer";
   private static final int DEFAULT_JOB_NAME_MAX_LENGTH = 200;
   private final String LZO_EXTENSION = new LzopCodec().getDefaultExtension();
@@ -66,6 +80,8 @@ public class DistributedLzoIndexer extends Configured implements Tool {
             LOG.info("Adding LZO file " + path + " to indexing list (index file exists but is zero length)");
             accumulator.add(path);
           }
+        } else if (LzoIndex.hasEmbeddedIndex(fs, path)) {
+          LOG.info("[SKIP] LZO index is embedded in " + path);
         } else {
           // If no index exists, we need to index the file.
           LOG.info("Adding LZO file " + path + " to indexing list (no index currently exists)");
@@ -77,6 +93,160 @@ public class DistributedLzoIndexer extends Configured implements Tool {
     }
   }
 
+  public static long getSplitSize(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getLong(SPLIT_SIZE_KEY, 0);
+  }
+
+  public static void setSplitSize(Configuration conf, long splitSize) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setLong(SPLIT_SIZE_KEY, splitSize);
+  }
+
+  /**
+   * @return where the part of the index of lzoFile starting at the block at
+   *         firstPosition is written when files are split
+   */
+  public static Path getPartialIndexPath(Path lzoFile, long firstPosition) {
+    // Zero padded, so that the parts sort by name
+    return lzoFile.suffix(PARTIAL_INDEX_SUFFIX + String.format("%020d", firstPosition));
+  }
+
+  private static FileStatus[] listPartialIndexes(FileSystem fs, final Path lzoFile)
+      throws IOException {
+    final String prefix = lzoFile.getName() + PARTIAL_INDEX_SUFFIX;
+    FileStatus[] parts = fs.listStatus(lzoFile.getParent(), new PathFilter() {
+      public boolean accept(Path path) {
+        return path.getName().startsWith(prefix);
+      }
+    });
+    return parts == null ? new FileStatus[0] : parts;
+  }
+
+  /**
+   * Merge the partial indexes written by the mappers for a split file into
+   * its index, and delete them. The parts must chain up: the first block
+   * follows the lzo header, and the block after the last one of each part
+   * is the first one of the next. A block header found by a mapper in the
+   * middle of a file is very likely a real one, this makes sure of it.
+   *
+   * @param fs the file system the file is on
+   * @param lzoFile the lzo file
+   * @return true if the index was written, false if the parts don't chain
+   *         up, in which case the file is left without index
+   * @throws IOException if the file or its parts cannot be read, or the
+   *         index cannot be written
+   */
+  public static boolean mergePartialIndexes(FileSystem fs, Path lzoFile)
+      throws IOException {
+    FileStatus[] parts = listPartialIndexes(fs, lzoFile);
+    List<Path> partPaths = new ArrayList<Path>();
+    for (FileStatus part : parts) {
+      if (part.getPath().getName().endsWith(".tmp")) {
+        // Left behind by a failed task attempt
+        fs.delete(part.getPath(), false);
+      } else {
+        partPaths.add(part.getPath());
+      }
+    }
+    Collections.sort(partPaths);
+
+    Configuration conf = fs.getConf();
+    CompressionCodec codec = new CompressionCodecFactory(conf).getCodec(lzoFile);
+    if (codec == null) {
+      throw new IOException("Could not find codec for file " + lzoFile);
+    }
+    ((Configurable) codec).setConf(conf);
+
+    Path indexFile = lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+    Path tmpIndexFile = lzoFile.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX);
+    boolean merged = false;
+    FSDataInputStream is = fs.open(lzoFile);
+    FSDataOutputStream os = null;
+    try {
+      // Leave out the index embedded at the end of the file, if there is one.
+      long fileLength = LzoIndex.getStreamEnd(is, fs.getFileStatus(lzoFile).getLen());
+      LzopDecompressor decompressor = (LzopDecompressor) codec.createDecompressor();
+      // Solely for reading the header
+      codec.createInputStream(is, decompressor);
+      int numCompressedChecksums = decompressor.getCompressedChecksumsCount();
+      int numDecompressedChecksums = decompressor.getDecompressedChecksumsCount();
+
+      os = fs.create(tmpIndexFile, true);
+      LzoIndexWriter indexWriter = new LzoIndexWriter(os, LzopCodec.getIndexVersion(conf));
+      // Where the next block must be, given the blocks merged so far
+      long expected = is.getPos();
+      // Each part was walked block by block by its mapper, so only the joins
+      // between parts are checked here: a part's last block must lead to the
+      // next part's first one.
+      for (Path partPath : partPaths) {
+        long numBlocks = fs.getFileStatus(partPath).getLen() / 8;
+        if (numBlocks == 0) {
+          continue;
+        }
+        long pos = -1;
+        FSDataInputStream partIn = fs.open(partPath);
+        try {
+          for (long i = 0; i < numBlocks; i++) {
+            pos = partIn.readLong();
+            if (i == 0 && pos != expected) {
+              LOG.error("Partial index " + partPath + " starts at " + pos +
+                  ", expected the block at " + expected + " of " + lzoFile);
+              return false;
+            }
+            indexWriter.writePosition(pos);
+          }
+        } finally {
+          partIn.close();
+        }
+        is.seek(pos);
+        int uncompressedBlockSize = is.readInt();
+        int compressedBlockSize = is.readInt();
+        expected = pos + LzoBlockScanner.getHeaderLength(uncompressedBlockSize,
+            compressedBlockSize, numDecompressedChecksums, numCompressedChecksums) +
+            compressedBlockSize;
+      }
+      // After the last block there is the end marker, or in a truncated file
+      // nothing at all. The last part may also leave out a final block that
+      // runs to the end of a truncated file, but nothing more.
+      boolean atEnd = (expected == fileLength);
+      if (!atEnd && expected + 4 <= fileLength) {
+        is.seek(expected);
+        int uncompressedBlockSize = is.readInt();
+        if (uncompressedBlockSize == 0) {
+          atEnd = (expected + 4 == fileLength);
+        } else if (expected + 8 <= fileLength) {
+          int compressedBlockSize = is.readInt();
+          atEnd = (expected + LzoBlockScanner.getHeaderLength(uncompressedBlockSize,
+              compressedBlockSize, numDecompressedChecksums, numCompressedChecksums) +
+              compressedBlockSize >= fileLength);
+        }
+      }
+      if (!atEnd) {
+        LOG.error("Partial indexes of " + lzoFile + " end at " + expected +
+            ", before the end of the file");
+        return false;
+      }
+      merged = true;
+    } finally {
+      is.close();
+      if (os != null) {
+        os.close();
+      }
+      if (merged) {
+        fs.delete(indexFile, false);
+        fs.rename(tmpIndexFile, indexFile);
+      } else {
+        fs.delete(tmpIndexFile, false);
+      }
+      for (Path partPath : partPaths) {
+        fs.delete(partPath, false);
+      }
+    }
+    LOG.info("Merged " + partPaths.size() + " partial indexes of " + lzoFile);
+    return true;
+  }
+
   static void setJobName(Job job, String[] args) {
     final Configuration conf = job.getConfiguration();
 
@@ -130,6 +300,19 @@ public class DistributedLzoIndexer extends Configured implements Tool {
       FileInputFormat.addInputPath(job, p);
     }
 
+    long splitSize = getSplitSize(job.getConfiguration());
+    if (splitSize > 0) {
+      FileInputFormat.setMaxInputSplitSize(job, splitSize);
+      FileInputFormat.setMinInputSplitSize(job, 1);
+      // Parts left by an earlier run would be merged with the new ones.
+      for (Path p : inputPaths) {
+        FileSystem fs = p.getFileSystem(job.getConfiguration());
+        for (FileStatus part : listPartialIndexes(fs, p)) {
+          fs.delete(part.getPath(), false);
+        }
+      }
+    }
+
     job.submit();
 
     LOG.info("Started DistributedIndexer " + job.getJobID() + " with " +
@@ -137,6 +320,23 @@ public class DistributedLzoIndexer extends Configured implements Tool {
     LOG.info("Queue Used: " + job.getConfiguration().get("mapred.job.queue.name"));
 
     if (job.waitForCompletion(true)) {
+      if (splitSize > 0) {
+        // There is a mapper per split rather than per file; checking that the parts
+        // of each index chain up covers the mappers that failed.
+        int failedFiles = 0;
+        for (Path p : inputPaths) {
+          if (!mergePartialIndexes(p.getFileSystem(job.getConfiguration()), p)) {
+            failedFiles++;
+          }
+        }
+        if (failedFiles == 0) {
+          return 0;
+        }
+        LOG.error("DistributedIndexer " + job.getJobID() + " failed to index " +
+            failedFiles + " out of " + inputPaths.size() + " files.");
+        return 1;
+      }
+
       long successfulMappers = CompatibilityUtil.getCounterValue(
           job.getCounters().findCounter(LzoSplitRecordReader.Counters.READ_SUCCESS));
 
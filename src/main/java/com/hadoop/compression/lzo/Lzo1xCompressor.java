@@ -0,0 +1,218 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.util.Arrays;
+
+/**
+ * A pure Java LZO1X-1 compressor, following lzo1x_1_compress from LZO 2.x
+ * step for step, so its output is plain LZO1X that lzop and the native
+ * library decompress.
+ *
+ * Used by {@link LzoCompressor} when the native-lzo library is not
+ * available or has been turned off with {@link LzoCodec#LZO_PURE_JAVA_KEY}.
+ * Each instance owns its dictionary, so compressing allocates nothing.
+ * Instances are not thread safe.
+ */
+final class Lzo1xCompressor {
+
+  /**
+   * The LZO release this implementation follows, written into lzop headers
+   * in place of the native library's version when that is not loaded.
+   */
+  static final int LZO_LIBRARY_VERSION = 0x20a0;
+
+  private static final int D_BITS = 14;
+  /** Input is compressed in chunks small enough for M4 match offsets. */
+  private static final int MAX_CHUNK = 49152;
+
+  private static final int M2_MAX_LEN = 8;
+  private static final int M3_MAX_LEN = 33;
+  private static final int M4_MAX_LEN = 9;
+  private static final int M2_MAX_OFFSET = 0x0800;
+  private static final int M3_MAX_OFFSET = 0x4000;
+  private static final int M3_MARKER = 32;
+  private static final int M4_MARKER = 16;
+
+  /** Offsets from the start of the current chunk, keyed by a 4 byte hash. */
+  private final int[] dict = new int[1 << D_BITS];
+  /** Where the last chunk's output ended. */
+  private int outPos;
+
+  /**
+   * The most that compressing <code>len</code> bytes can produce.
+   */
+  static int maxCompressedLength(int len) {
+    return len + (len >> 4) + 64 + 3;
+  }
+
+  /**
+   * Compress <code>inLen</code> bytes as one LZO1X block. The output must
+   * have room for {@link #maxCompressedLength(int)} bytes.
+   *
+   * @return the number of compressed bytes written
+   */
+  int compress(byte[] in, int inOff, int inLen, byte[] out, int outOff) {
+    int ip = inOff;
+    int l = inLen;
+    // Literals left over from the previous chunk
+    int t = 0;
+    outPos = outOff;
+
+    while (l > 20) {
+      int ll = Math.min(l, MAX_CHUNK);
+      Arrays.fill(dict, 0);
+      t = compressChunk(in, ip, ll, out, t);
+      ip += ll;
+      l -= ll;
+    }
+    t += l;
+
+    int op = outPos;
+    if (t > 0) {
+      int ii = inOff + inLen - t;
+      if (op == outOff && t <= 238) {
+        out[op++] = (byte) (17 + t);
+      } else if (t <= 3) {
+        out[op - 2] |= (byte) t;
+      } else if (t <= 18) {
+        out[op++] = (byte) (t - 3);
+      } else {
+        op = writeZeroRun(out, op, t - 18);
+      }
+      System.arraycopy(in, ii, out, op, t);
+      op += t;
+    }
+
+    // End of stream marker
+    out[op++] = (byte) (M4_MARKER | 1);
+    out[op++] = 0;
+    out[op++] = 0;
+    return op - outOff;
+  }
+
+  /**
+   * Compress one chunk, leaving {@link #outPos} after its output.
+   *
+   * @param ti literals pending from before the chunk
+   * @return literals pending at the end of the chunk
+   */
+  private int compressChunk(byte[] in, int chunk, int len, byte[] out,
+      int ti) {
+    final int ipEnd = chunk + len - 20;
+    int op = outPos;
+    int ii = chunk;
+    int ip = chunk + (ti < 4 ? 4 - ti : 0);
+
+    ip += 1 + ((ip - ii) >> 5);
+    while (ip < ipEnd) {
+      int dv = readIntLE(in, ip);
+      int dindex = (0x1824429d * dv) >>> (32 - D_BITS);
+      int mPos = chunk + dict[dindex];
+      dict[dindex] = ip - chunk;
+      if (dv != readIntLE(in, mPos)) {
+        // Skip ahead faster the longer we go without a match
+        ip += 1 + ((ip - ii) >> 5);
+        continue;
+      }
+
+      // Flush the literals before the match
+      ii -= ti;
+      ti = 0;
+      int t = ip - ii;
+      if (t != 0) {
+        if (t <= 3) {
+          out[op - 2] |= (byte) t;
+        } else if (t <= 18) {
+          out[op++] = (byte) (t - 3);
+        } else {
+          op = writeZeroRun(out, op, t - 18);
+        }
+        System.arraycopy(in, ii, out, op, t);
+        op += t;
+      }
+
+      int mLen = 4;
+      while (in[ip + mLen] == in[mPos + mLen]) {
+        mLen++;
+        if (ip + mLen >= ipEnd) {
+          break;
+        }
+      }
+      int mOff = ip - mPos;
+      ip += mLen;
+      ii = ip;
+
+      if (mLen <= M2_MAX_LEN && mOff <= M2_MAX_OFFSET) {
+        mOff -= 1;
+        out[op++] = (byte) (((mLen - 1) << 5) | ((mOff & 7) << 2));
+        out[op++] = (byte) (mOff >>> 3);
+      } else if (mOff <= M3_MAX_OFFSET) {
+        mOff -= 1;
+        if (mLen <= M3_MAX_LEN) {
+          out[op++] = (byte) (M3_MARKER | (mLen - 2));
+        } else {
+          out[op++] = (byte) M3_MARKER;
+          op = writeLength(out, op, mLen - M3_MAX_LEN);
+        }
+        out[op++] = (byte) (mOff << 2);
+        out[op++] = (byte) (mOff >>> 6);
+      } else {
+        mOff -= 0x4000;
+        if (mLen <= M4_MAX_LEN) {
+          out[op++] = (byte) (M4_MARKER | ((mOff >>> 11) & 8) | (mLen - 2));
+        } else {
+          out[op++] = (byte) (M4_MARKER | ((mOff >>> 11) & 8));
+          op = writeLength(out, op, mLen - M4_MAX_LEN);
+        }
+        out[op++] = (byte) (mOff << 2);
+        out[op++] = (byte) (mOff >>> 6);
+      }
+    }
+
+    outPos = op;
+    return chunk + len - (ii - ti);
+  }
+
+  /**
+   * Write a zero instruction byte followed by the extended length.
+   */
+  private static int writeZeroRun(byte[] out, int op, int len) {
+    out[op++] = 0;
+    return writeLength(out, op, len);
+  }
+
+  /**
+   * Write the remainder of a length too long for its instruction byte, as
+   * runs of 255 encoded as zero bytes followed by the rest.
+   */
+  private static int writeLength(byte[] out, int op, int len) {
+    while (len > 255) {
+      len -= 255;
+      out[op++] = 0;
+    }
+    out[op++] = (byte) len;
+    return op;
+  }
+
+  private static int readIntLE(byte[] b, int i) {
+    return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 |
+        (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+
+/**
+ * A pure Java LZO1X decompressor, equivalent to lzo1x_decompress_safe: it
+ * checks every read and write against the buffers given, so corrupt input
+ * fails with an IOException rather than reading or writing out of bounds.
+ *
+ * Used by {@link LzoDecompressor} when the native-lzo library is not
+ * available or has been turned off with
+ * {@link LzoCodec#LZO_PURE_JAVA_KEY}.
+ */
+final class Lzo1xDecompressor {
+
+  private Lzo1xDecompressor() {
+  }
+
+  /**
+   * Decompress one LZO1X block.
+   *
+   * @param in the compressed block
+   * @param inOff offset of the block in <code>in</code>
+   * @param inLen length of the block
+   * @param out buffer to decompress into
+   * @param outOff offset in <code>out</code> to start writing at
+   * @param outLen room available in <code>out</code>
+   * @return the number of bytes decompressed
+   * @throws IOException if the block is corrupt or does not fit
+   */
+  static int decompress(byte[] in, int inOff, int inLen,
+      byte[] out, int outOff, int outLen) throws IOException {
+    int ip = inOff;
+    final int ipEnd = inOff + inLen;
+    int op = outOff;
+    final int opEnd = outOff + outLen;
+    // Literals copied by the previous instruction: 0, 1-3, or 4 for a
+    // full literal run. It decides how a following 0-15 byte is read.
+    int state = 0;
+
+    if (ip >= ipEnd) {
+      throw inputOverrun();
+    }
+    int first = in[ip] & 0xFF;
+    if (first > 17) {
+      ip++;
+      int len = first - 17;
+      if (len > opEnd - op) {
+        throw outputOverrun();
+      }
+      if (len > ipEnd - ip) {
+        throw inputOverrun();
+      }
+      System.arraycopy(in, ip, out, op, len);
+      ip += len;
+      op += len;
+      state = len < 4 ? len : 4;
+    }
+
+    while (true) {
+      if (ip >= ipEnd) {
+        throw inputOverrun();
+      }
+      int t = in[ip++] & 0xFF;
+      int len;
+      int dist;
+      int trailing;
+
+      if (t < 16) {
+        if (state == 0) {
+          // Literal run
+          len = t;
+          if (len == 0) {
+            while (ip < ipEnd && in[ip] == 0) {
+              len += 255;
+              ip++;
+              if (len > outLen) {
+                throw outputOverrun();
+              }
+            }
+            if (ip >= ipEnd) {
+              throw inputOverrun();
+            }
+            len += 15 + (in[ip++] & 0xFF);
+          }
+          len += 3;
+          if (len > opEnd - op) {
+            throw outputOverrun();
+          }
+          if (len > ipEnd - ip) {
+            throw inputOverrun();
+          }
+          System.arraycopy(in, ip, out, op, len);
+          ip += len;
+          op += len;
+          state = 4;
+          continue;
+        }
+        // Short match, right after literals
+        if (ip >= ipEnd) {
+          throw inputOverrun();
+        }
+        int b = in[ip++] & 0xFF;
+        if (state == 4) {
+          len = 3;
+          dist = 1 + 0x0800 + (t >> 2) + (b << 2);
+        } else {
+          len = 2;
+          dist = 1 + (t >> 2) + (b << 2);
+        }
+        trailing = t & 3;
+      } else if (t >= 64) {
+        // Match within 2KB
+        if (ip >= ipEnd) {
+          throw inputOverrun();
+        }
+        len = (t >> 5) + 1;
+        dist = 1 + ((t >> 2) & 7) + ((in[ip++] & 0xFF) << 3);
+        trailing = t & 3;
+      } else if (t >= 32) {
+        // Match within 16KB
+        len = t & 31;
+        if (len == 0) {
+          while (ip < ipEnd && in[ip] == 0) {
+            len += 255;
+            ip++;
+            if (len > outLen) {
+              throw outputOverrun();
+            }
+          }
+          if (ip >= ipEnd) {
+            throw inputOverrun();
+          }
+          len += 31 + (in[ip++] & 0xFF);
+        }
+        len += 2;
+        if (ip + 2 > ipEnd) {
+          throw inputOverrun();
+        }
+        int b0 = in[ip++] & 0xFF;
+        int b1 = in[ip++] & 0xFF;
+        dist = 1 + (b0 >> 2) + (b1 << 6);
+        trailing = b0 & 3;
+      } else {
+        // Match between 16KB and 48KB, or the end of the stream
+        int high = (t & 8) << 11;
+        len = t & 7;
+        if (len == 0) {
+          while (ip < ipEnd && in[ip] == 0) {
+            len += 255;
+            ip++;
+            if (len > outLen) {
+              throw outputOverrun();
+            }
+          }
+          if (ip >= ipEnd) {
+            throw inputOverrun();
+          }
+          len += 7 + (in[ip++] & 0xFF);
+        }
+        len += 2;
+        if (ip + 2 > ipEnd) {
+          throw inputOverrun();
+        }
+        int b0 = in[ip++] & 0xFF;
+        int b1 = in[ip++] & 0xFF;
+        dist = high + (b0 >> 2) + (b1 << 6);
+        if (dist == 0) {
+          break;
+        }
+        dist += 0x4000;
+        trailing = b0 & 3;
+      }
+
+      // Copy the match, which may overlap the bytes it produces
+      if (dist > op - outOff) {
+        throw new IOException("LZO1X lookbehind overrun: distance " + dist +
+            " at output offset " + (op - outOff));
+      }
+      if (len > opEnd - op) {
+        throw outputOverrun();
+      }
+      int m = op - dist;
+      if (dist >= len && len > 16) {
+        System.arraycopy(out, m, out, op, len);
+        op += len;
+      } else {
+        for (int end = op + len; op < end; ) {
+          out[op++] = out[m++];
+        }
+      }
+
+      // Copy up to 3 literals following the match
+      if (trailing > 0) {
+        if (trailing > opEnd - op) {
+          throw outputOverrun();
+        }
+        if (trailing > ipEnd - ip) {
+          throw inputOverrun();
+        }
+        out[op++] = in[ip++];
+        if (trailing > 1) {
+          out[op++] = in[ip++];
+          if (trailing > 2) {
+            out[op++] = in[ip++];
+          }
+        }
+      }
+      state = trailing;
+    }
+
+    if (ip != ipEnd) {
+      throw new IOException("LZO1X input not consumed: " + (ipEnd - ip) +
+          " bytes after the end of stream marker");
+    }
+    return op - outOff;
+  }
+
+  private static IOException inputOverrun() {
+    return new IOException("LZO1X input overrun (probably corrupt data)");
+  }
+
+  private static IOException outputOverrun() {
+    return new IOException("LZO1X output overrun: block does not fit in the output buffer");
+  }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Guesses whether lzo would fail to shrink a block, from a few small
+ * windows spread over it, so that data which is already compressed, such
+ * as images or nested gzip, can be stored without running the compressor.
+ *
+ * A block looks incompressible when the bytes sampled are close to
+ * uniformly distributed and almost none of their 4 byte sequences repeat:
+ * lzo gains nothing from the first without the second. Small blocks are
+ * never judged, since compressing them is cheap anyway.
+ *
+ * A sampler keeps its tables from one block to the next, so it must not be
+ * used by several threads at once.
+ */
+final class LzoBlockSampler {
+
+  static final int WINDOWS = 16;
+  static final int WINDOW_SIZE = 256;
+  /** Blocks smaller than this are always compressed. */
+  static final int MIN_BLOCK_SIZE = 4 * WINDOWS * WINDOW_SIZE;
+  /** Bits per byte above which sampled data is as good as random. */
+  static final double MAX_ENTROPY = 7.8;
+
+  private static final int HASH_BITS = 10;
+
+  private final int[] counts = new int[256];
+  private final int[] seen = new int[1 << HASH_BITS];
+  private final boolean[] used = new boolean[1 << HASH_BITS];
+
+  /**
+   * @param data the block, from its position to its limit, which are left
+   *        alone
+   * @return whether the block is better stored than compressed
+   */
+  boolean isIncompressible(ByteBuffer data) {
+    int len = data.remaining();
+    if (len < MIN_BLOCK_SIZE) {
+      return false;
+    }
+    Arrays.fill(counts, 0);
+    Arrays.fill(used, false);
+    int sequences = 0;
+    int repeats = 0;
+    for (int w = 0; w < WINDOWS; w++) {
+      int start = data.position() +
+          (int) ((long) w * (len - WINDOW_SIZE) / (WINDOWS - 1));
+      for (int i = start; i < start + WINDOW_SIZE; i++) {
+        counts[data.get(i) & 0xFF]++;
+      }
+      for (int i = start; i <= start + WINDOW_SIZE - 4; i++) {
+        int v = data.getInt(i);
+        int h = (v * 0x9E3779B1) >>> (32 - HASH_BITS);
+        if (used[h] && seen[h] == v) {
+          repeats++;
+        } else {
+          seen[h] = v;
+          used[h] = true;
+        }
+        sequences++;
+      }
+    }
+    // Lzo finds matches of 4 bytes and more; a few percent of them would
+    // already pay for compressing
+    if (repeats * 100 >= sequences) {
+      return false;
+    }
+    return entropy(counts, WINDOWS * WINDOW_SIZE) > MAX_ENTROPY;
+  }
+
+  /**
+   * @return the Shannon entropy, in bits per byte, of the byte counts
+   */
+  static double entropy(int[] counts, int total) {
+    double entropy = 0;
+    for (int count : counts) {
+      if (count > 0) {
+        double p = (double) count / total;
+        entropy -= p * Math.log(p);
+      }
+    }
+    return entropy / Math.log(2);
+  }
+}
@@ -0,0 +1,172 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+
+/**
+ * Walks the block headers of an lzo file without decompressing anything.
+ *
+ * Rather than reading each header and seeking past the block, which on
+ * remote file systems tends to throw away the read buffer and start a new
+ * request per block, the scanner reads the file in large chunks with
+ * positional reads and parses as many headers out of each chunk as it
+ * holds. Blocks larger than a chunk cost one read each.
+ *
+ * The scanner does not move the stream's position, and validates nothing
+ * but the end of file marker; callers check the sizes it reads.
+ */
+public final class LzoBlockScanner {
+
+  public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+  private final FSDataInputStream in;
+  private final long fileLength;
+  private final int numDecompressedChecksums;
+  private final int numCompressedChecksums;
+
+  private final byte[] buf;
+  // The bytes of the file in buf: [bufStart, bufStart + bufLength)
+  private long bufStart;
+  private int bufLength;
+
+  private long position;
+  private long nextPosition;
+  private int uncompressedBlockSize;
+  private int compressedBlockSize;
+
+  /**
+   * @param in the lzo file
+   * @param fileLength its length
+   * @param firstBlock where the first block header is, just past the lzo
+   *        header for the whole file
+   * @param numDecompressedChecksums see {@link LzopDecompressor#getDecompressedChecksumsCount()}
+   * @param numCompressedChecksums see {@link LzopDecompressor#getCompressedChecksumsCount()}
+   */
+  public LzoBlockScanner(FSDataInputStream in, long fileLength, long firstBlock,
+      int numDecompressedChecksums, int numCompressedChecksums) {
+    this(in, fileLength, firstBlock, numDecompressedChecksums,
+        numCompressedChecksums, DEFAULT_BUFFER_SIZE);
+  }
+
+  public LzoBlockScanner(FSDataInputStream in, long fileLength, long firstBlock,
+      int numDecompressedChecksums, int numCompressedChecksums, int bufferSize) {
+    if (bufferSize < 8) {
+      throw new IllegalArgumentException("Buffer size " + bufferSize + " is too small");
+    }
+    this.in = in;
+    this.fileLength = fileLength;
+    this.numDecompressedChecksums = numDecompressedChecksums;
+    this.numCompressedChecksums = numCompressedChecksums;
+    this.buf = new byte[bufferSize];
+    this.nextPosition = firstBlock;
+    this.position = firstBlock;
+  }
+
+  /**
+   * Read the header of the next block.
+   *
+   * @return true if there is one, false at the end of file marker
+   * @throws EOFException if the file ends before the header does
+   * @throws IOException if the file cannot be read
+   */
+  public boolean next() throws IOException {
+    position = nextPosition;
+    uncompressedBlockSize = readInt(position);
+    if (uncompressedBlockSize == 0) {
+      compressedBlockSize = 0;
+      nextPosition = position + 4;
+      return false;
+    }
+    compressedBlockSize = readInt(position + 4);
+    nextPosition = getDataPosition() + compressedBlockSize;
+    return true;
+  }
+
+  /** @return where the header last read starts */
+  public long getPosition() {
+    return position;
+  }
+
+  /** @return where the header after the last one read would start */
+  public long getNextPosition() {
+    return nextPosition;
+  }
+
+  public int getUncompressedBlockSize() {
+    return uncompressedBlockSize;
+  }
+
+  public int getCompressedBlockSize() {
+    return compressedBlockSize;
+  }
+
+  /** @return whether the last block read is stored without compression */
+  public boolean isUncompressedBlock() {
+    return uncompressedBlockSize == compressedBlockSize;
+  }
+
+  /** @return where the data of the last block read starts, past its checksums */
+  public long getDataPosition() {
+    return position + getHeaderLength(uncompressedBlockSize, compressedBlockSize,
+        numDecompressedChecksums, numCompressedChecksums);
+  }
+
+  /**
+   * The length of a block header: the two sizes and the checksums, which
+   * leave out the compressed ones when the block is stored as is. See
+   * LzopInputStream.getCompressedData.
+   *
+   * @return how far the data of a block with these sizes is from its start
+   */
+  public static int getHeaderLength(int uncompressedBlockSize,
+      int compressedBlockSize, int numDecompressedChecksums,
+      int numCompressedChecksums) {
+    boolean isUncompressedBlock = (uncompressedBlockSize == compressedBlockSize);
+    int numChecksumsToSkip = isUncompressedBlock ?
+        numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
+    return 8 + 4 * numChecksumsToSkip;
+  }
+
+  private int readInt(long pos) throws IOException {
+    if (pos < bufStart || pos + 4 > bufStart + bufLength) {
+      fill(pos);
+    }
+    int off = (int) (pos - bufStart);
+    return ((buf[off] & 0xFF) << 24) | ((buf[off + 1] & 0xFF) << 16) |
+        ((buf[off + 2] & 0xFF) << 8) | (buf[off + 3] & 0xFF);
+  }
+
+  /**
+   * Read the chunk of the file starting at pos.
+   */
+  private void fill(long pos) throws IOException {
+    long remaining = fileLength - pos;
+    if (remaining < 4) {
+      throw new EOFException("Block header at " + pos +
+          " is past the end of the file at " + fileLength);
+    }
+    bufStart = pos;
+    bufLength = (int) Math.min(buf.length, remaining);
+    in.readFully(pos, buf, 0, bufLength);
+  }
+}
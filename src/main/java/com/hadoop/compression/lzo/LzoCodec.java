@@ -51,6 +51,14 @@ public class LzoCodec implements Configurable, CompressionCodec {
   public static final int DEFAULT_LZO_BUFFER_SIZE = 256 * 1024;
   public static final int MAX_BLOCK_SIZE = 64*1024*1024;
   public static final int UNDEFINED_COMPRESSION_LEVEL = -999;  // Constant from LzoCompressor.c
+  /**
+   * Compress and decompress in pure Java even when the native-lzo library
+   * is available. Java is used regardless when the library is not loaded.
+   * Only the LZO1X-1 compression strategies and the LZO1X decompression
+   * strategies are implemented in Java.
+   */
+  public static final String LZO_PURE_JAVA_KEY = "io.compression.codec.lzo.purejava";
+  public static final boolean DEFAULT_LZO_PURE_JAVA = false;
 
 
   private Configuration conf;
@@ -94,6 +102,20 @@ public class LzoCodec implements Configurable, CompressionCodec {
     return nativeLzoLoaded && conf.getBoolean("hadoop.native.lib", true);
   }
 
+  /**
+   * Check if compressors and decompressors should run in pure Java, either
+   * because that has been asked for or because the native-lzo library is
+   * not available.
+   *
+   * @param conf configuration
+   * @return <code>true</code> if lzo should not use native-lzo
+   */
+  public static boolean isPureJava(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getBoolean(LZO_PURE_JAVA_KEY, DEFAULT_LZO_PURE_JAVA) ||
+        !isNativeLzoLoaded(conf);
+  }
+
   public static String getRevisionHash() {
     try {
       Properties p = new Properties();
@@ -113,10 +135,7 @@ public class LzoCodec implements Configurable, CompressionCodec {
   @Override
   public CompressionOutputStream createOutputStream(OutputStream out,
       Compressor compressor) throws IOException {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
-      throw new RuntimeException("native-lzo library not available");
-    }
+    checkCompressorAvailable(conf);
 
     /**
      * <b>https://www.oberhumer.com/opensource/lzo/lzofaq.php</b>
@@ -150,10 +169,7 @@ public class LzoCodec implements Configurable, CompressionCodec {
 
   @Override
   public Class<? extends Compressor> getCompressorType() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
-      throw new RuntimeException("native-lzo library not available");
-    }
+    checkCompressorAvailable(conf);
     return LzoCompressor.class;
   }
 
@@ -161,10 +177,7 @@ public class LzoCodec implements Configurable, CompressionCodec {
   public Compressor createCompressor() {
     // Ensure native-lzo library is loaded & initialized
     assert conf != null : "Configuration cannot be null! You must call setConf() before creating a compressor.";
-    if (!isNativeLzoLoaded(conf)) {
-      throw new RuntimeException("native-lzo library not available");
-    }
-
+    checkCompressorAvailable(conf);
     return new LzoCompressor(conf);
   }
 
@@ -178,33 +191,48 @@ public class LzoCodec implements Configurable, CompressionCodec {
   public CompressionInputStream createInputStream(InputStream in,
       Decompressor decompressor)
   throws IOException {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
-      throw new RuntimeException("native-lzo library not available");
-    }
+    checkDecompressorAvailable(conf);
     return new BlockDecompressorStream(in, decompressor,
         conf.getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE));
   }
 
   @Override
   public Class<? extends Decompressor> getDecompressorType() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
-      throw new RuntimeException("native-lzo library not available");
-    }
+    checkDecompressorAvailable(conf);
     return LzoDecompressor.class;
   }
 
   @Override
   public Decompressor createDecompressor() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(conf)) {
-      throw new RuntimeException("native-lzo library not available");
-    }
-
+    checkDecompressorAvailable(conf);
     return new LzoDecompressor(
       getDecompressionStrategy(conf),
-      getBufferSize(conf));
+      getBufferSize(conf),
+      isPureJava(conf));
+  }
+
+  /**
+   * Ensure the configured strategy can be compressed, either by the
+   * native-lzo library or in pure Java.
+   */
+  static void checkCompressorAvailable(Configuration conf) {
+    if (isPureJava(conf) && !getCompressionStrategy(conf).isLzo1x1()) {
+      throw new RuntimeException(isNativeLzoLoaded(conf)
+          ? getCompressionStrategy(conf) + " cannot be compressed in pure Java"
+          : "native-lzo library not available");
+    }
+  }
+
+  /**
+   * Ensure the configured strategy can be decompressed, either by the
+   * native-lzo library or in pure Java.
+   */
+  private static void checkDecompressorAvailable(Configuration conf) {
+    if (isPureJava(conf) && !getDecompressionStrategy(conf).isLzo1x()) {
+      throw new RuntimeException(isNativeLzoLoaded(conf)
+          ? getDecompressionStrategy(conf) + " cannot be decompressed in pure Java"
+          : "native-lzo library not available");
+    }
   }
 
   /**
@@ -262,4 +290,9 @@ public class LzoCodec implements Configurable, CompressionCodec {
     conf.setInt(LZO_BUFFER_SIZE_KEY, bufferSize);
   }
 
+  public static void setPureJava(Configuration conf, boolean pureJava) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setBoolean(LZO_PURE_JAVA_KEY, pureJava);
+  }
+
 }
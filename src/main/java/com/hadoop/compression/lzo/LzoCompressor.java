@@ -21,6 +21,8 @@ package com.hadoop.compression.lzo;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -30,16 +32,15 @@ import org.apache.hadoop.io.compress.Compressor;
 /**
  * A {@link Compressor} based on the lzo algorithm.
  * https://www.oberhumer.com/opensource/lzo/
- * 
+ *
+ * The LZO1X-1 strategies can also be run without the native-lzo library,
+ * by {@link Lzo1xCompressor}. That is used when the library is not loaded
+ * or when asked for explicitly.
  */
 class LzoCompressor implements Compressor {
   private static final Log LOG = 
     LogFactory.getLog(LzoCompressor.class.getName());
 
-  // HACK - Use this as a global lock in the JNI layer
-  @SuppressWarnings({ "unchecked", "unused" })
-  private static Class clazz = LzoDecompressor.class;
-
   private int directBufferSize;
   private byte[] userBuf = null;
   private int userBufOff = 0, userBufLen = 0;
@@ -52,6 +53,11 @@ class LzoCompressor implements Compressor {
   private long bytesWritten = 0L;
 
   private CompressionStrategy strategy; // The lzo compression algorithm.
+  private boolean pureJava;
+  private Lzo1xCompressor javaCompressor = null;
+  // Used by the pure Java compress(ByteBuffer, ByteBuffer) for direct buffers
+  private byte[] scratchIn = null;
+  private byte[] scratchOut = null;
   @SuppressWarnings("unused")
   private long lzoCompressor = 0;       // The actual lzo compression function.
   private int workingMemoryBufLen = 0;  // The length of 'working memory' buf.
@@ -60,6 +66,27 @@ class LzoCompressor implements Compressor {
   private ByteBuffer workingMemoryBuf;      // The 'working memory' for lzo.
   private int lzoCompressionLevel;
 
+  // Addresses of the direct buffers, cached by the JNI layer whenever the
+  // buffers are (re)allocated so the per-block calls need no locking.
+  @SuppressWarnings("unused")
+  private long uncompressedDirectBufAddr = 0;
+  @SuppressWarnings("unused")
+  private long compressedDirectBufAddr = 0;
+  @SuppressWarnings("unused")
+  private long workingMemoryBufAddr = 0;
+
+  // Checksums of the last block compressed by compress(ByteBuffer,
+  // ByteBuffer), computed in the same call: by the JNI layer while the data
+  // is still in cache, or in Java by a pure Java compressor. The flags are
+  // the CHECKSUM_* ones of LzoDecompressor.
+  private int checksums = 0;
+  private int compressedAdler32 = 1;
+  private int compressedCrc32 = 0;
+  private int uncompressedAdler32 = 1;
+  private int uncompressedCrc32 = 0;
+  private Adler32 javaAdler32 = null;
+  private CRC32 javaCrc32 = null;
+
   /**
    * Used when the user doesn't specify a configuration. We cache a single
    * one statically, since loading the defaults is expensive.
@@ -159,6 +186,15 @@ class LzoCompressor implements Compressor {
     int getCompressor() {
       return compressor;
     }
+
+    /**
+     * Whether this is one of the LZO1X-1 algorithms, which differ only in
+     * dictionary size and can be run in pure Java.
+     */
+    boolean isLzo1x1() {
+      return compressor >= LZO1X_1.compressor &&
+          compressor <= LZO1X_15.compressor;
+    }
   }; // CompressionStrategy
 
   private static boolean nativeLzoLoaded;
@@ -214,23 +250,51 @@ class LzoCompressor implements Compressor {
     int compressionLevel = LzoCodec.getCompressionLevel(conf);
     int bufferSize = LzoCodec.getBufferSize(conf);
 
-    init(strategy, compressionLevel, bufferSize);
+    init(strategy, compressionLevel, bufferSize, LzoCodec.isPureJava(conf));
   }
 
   /** 
-   * Creates a new compressor using the specified {@link CompressionStrategy}.
+   * Creates a new compressor using the specified {@link CompressionStrategy},
+   * in pure Java only if the native-lzo library is not loaded.
    * 
    * @param strategy lzo compression algorithm to use
    * @param directBufferSize size of the direct buffer to be used.
    */
   public LzoCompressor(CompressionStrategy strategy, int directBufferSize) {
-    init(strategy, LzoCodec.UNDEFINED_COMPRESSION_LEVEL, directBufferSize);
+    this(strategy, directBufferSize, !nativeLzoLoaded);
+  }
+
+  /**
+   * Creates a new compressor using the specified {@link CompressionStrategy}.
+   *
+   * @param strategy lzo compression algorithm to use
+   * @param directBufferSize size of the direct buffer to be used.
+   * @param pureJava whether to compress in Java rather than with the
+   *        native-lzo library; only LZO1X-1 strategies are supported in Java
+   */
+  public LzoCompressor(CompressionStrategy strategy, int directBufferSize,
+      boolean pureJava) {
+    init(strategy, LzoCodec.UNDEFINED_COMPRESSION_LEVEL, directBufferSize,
+        pureJava);
+  }
+
+  /**
+   * Creates a new compressor with the same strategy, compression level and
+   * buffer size as the given one.
+   *
+   * @param template compressor whose settings are copied
+   */
+  LzoCompressor(LzoCompressor template) {
+    init(template.strategy, template.lzoCompressionLevel,
+        template.directBufferSize, template.pureJava);
+    setChecksums(template.checksums);
   }
 
   /**
    * Reallocates a direct byte buffer by freeing the old one and allocating
    * a new one, unless the size is the same, in which case it is simply
-   * cleared and returned.
+   * cleared and returned. In pure Java mode a heap buffer is allocated
+   * instead, since the compressor works on its backing array.
    *
    * NOTE: this uses unsafe APIs to manually free memory - if anyone else
    * has a reference to the 'buf' parameter they will likely read random
@@ -238,11 +302,15 @@ class LzoCompressor implements Compressor {
    */
   private ByteBuffer realloc(ByteBuffer buf, int newSize) {
     if (buf != null) {
-      if (buf.capacity() == newSize) {
+      if (buf.capacity() == newSize && buf.isDirect() != pureJava) {
         // Can use existing buffer
         buf.clear();
         return buf;
       }
+      if (!buf.isDirect()) {
+        return pureJava ? ByteBuffer.allocate(newSize)
+            : ByteBuffer.allocateDirect(newSize);
+      }
       try {
         // Manually free the old buffer using undocumented unsafe APIs.
         // If this fails, we'll drop the reference and hope GC finds it
@@ -258,24 +326,39 @@ class LzoCompressor implements Compressor {
         LOG.warn("Couldn't realloc bytebuffer", e);
       }
     }
-    return ByteBuffer.allocateDirect(newSize);
+    return pureJava ? ByteBuffer.allocate(newSize)
+        : ByteBuffer.allocateDirect(newSize);
   }
 
-  private void init(CompressionStrategy strategy, int compressionLevel, int directBufferSize) {
+  private void init(CompressionStrategy strategy, int compressionLevel,
+      int directBufferSize, boolean pureJava) {
+    if (pureJava && !strategy.isLzo1x1()) {
+      throw new IllegalArgumentException("Strategy " + strategy +
+          " cannot be compressed without the native-lzo library");
+    }
     this.strategy = strategy;
     this.lzoCompressionLevel = compressionLevel;
     this.directBufferSize = directBufferSize;
+    this.pureJava = pureJava;
 
     uncompressedDirectBuf = realloc(uncompressedDirectBuf, directBufferSize);
     compressedDirectBuf = realloc(compressedDirectBuf, directBufferSize);
     compressedDirectBuf.position(directBufferSize);
     reset();
 
+    if (pureJava) {
+      if (javaCompressor == null) {
+        javaCompressor = new Lzo1xCompressor();
+      }
+      return;
+    }
+
     /**
      * Initialize {@link #lzoCompress} and {@link #workingMemoryBufLen}
      */
     init(this.strategy.getCompressor());
     workingMemoryBuf = realloc(workingMemoryBuf, workingMemoryBufLen);
+    initBufferAddresses();
   }
 
   /**
@@ -383,7 +466,8 @@ class LzoCompressor implements Compressor {
     }
 
     // Compress data
-    n = compressBytesDirect(strategy.getCompressor());
+    n = pureJava ? compressBytesJava()
+        : compressBytesDirect(strategy.getCompressor());
     compressedDirectBuf.limit(n);
     uncompressedDirectBuf.clear(); // lzo consumes all buffer input
 
@@ -400,6 +484,211 @@ class LzoCompressor implements Compressor {
     return n;
   }
 
+  /**
+   * Compress the block in {@link #uncompressedDirectBuf} in Java, as
+   * compressBytesDirect does natively.
+   */
+  private int compressBytesJava() {
+    int n = javaCompressor.compress(uncompressedDirectBuf.array(), 0,
+        uncompressedDirectBufLen, compressedDirectBuf.array(), 0);
+    uncompressedDirectBufLen = 0;
+    return n;
+  }
+
+  /**
+   * Compress the remaining bytes of <code>src</code> as a single block
+   * straight into <code>dst</code>, without staging either side through this
+   * compressor's own buffers. Both buffers must be direct, unless this
+   * compressor is pure Java, in which case heap buffers are preferred, and
+   * <code>dst</code> must have room for the worst case expansion given by
+   * {@link #maxCompressedLength(int)}.
+   *
+   * This neither uses nor disturbs the input set by {@link #setInput}, nor
+   * the byte counts. On return <code>src</code> has been consumed and the
+   * position of <code>dst</code> has moved past the compressed data.
+   *
+   * @param src direct buffer holding the data to compress
+   * @param dst direct buffer to compress into
+   * @return the number of compressed bytes written
+   * @throws IOException
+   */
+  public synchronized int compress(ByteBuffer src, ByteBuffer dst)
+  throws IOException {
+    if (!pureJava && (!src.isDirect() || !dst.isDirect())) {
+      throw new IllegalArgumentException("Buffers passed to compress must be direct");
+    }
+    if (dst.remaining() < maxCompressedLength(src.remaining())) {
+      throw new IllegalArgumentException("Output buffer has " +
+          dst.remaining() + " bytes free, but compressing " + src.remaining() +
+          " bytes may need " + maxCompressedLength(src.remaining()));
+    }
+
+    int n = pureJava ? compressBufferJava(src, dst)
+        : compressBufferDirect(strategy.getCompressor(),
+            src, src.position(), src.remaining(),
+            dst, dst.position(), dst.remaining());
+    src.position(src.limit());
+    dst.position(dst.position() + n);
+    return n;
+  }
+
+  /**
+   * Compress the remaining bytes of <code>src</code> into <code>dst</code>
+   * in Java, copying through scratch arrays for either side that has no
+   * accessible array. Positions are left alone.
+   */
+  private int compressBufferJava(ByteBuffer src, ByteBuffer dst) {
+    byte[] in;
+    int inOff;
+    int inLen = src.remaining();
+    if (src.hasArray()) {
+      in = src.array();
+      inOff = src.arrayOffset() + src.position();
+    } else {
+      if (scratchIn == null || scratchIn.length < inLen) {
+        scratchIn = new byte[Math.max(inLen, directBufferSize)];
+      }
+      in = scratchIn;
+      inOff = 0;
+      src.duplicate().get(in, 0, inLen);
+    }
+
+    byte[] out;
+    int outOff;
+    if (dst.hasArray()) {
+      out = dst.array();
+      outOff = dst.arrayOffset() + dst.position();
+    } else {
+      int maxLen = maxCompressedLength(inLen);
+      if (scratchOut == null || scratchOut.length < maxLen) {
+        scratchOut = new byte[Math.max(maxLen, directBufferSize)];
+      }
+      out = scratchOut;
+      outOff = 0;
+    }
+    int n = javaCompressor.compress(in, inOff, inLen, out, outOff);
+    if (!dst.hasArray()) {
+      dst.duplicate().put(scratchOut, 0, n);
+    }
+    if (checksums != 0) {
+      computeJavaChecksums(in, inOff, inLen, out, outOff, n);
+    }
+    return n;
+  }
+
+  /**
+   * Compute the uncompressed checksums set by {@link #setChecksums(int)} of
+   * the remaining bytes of <code>src</code>, for a block that is stored
+   * without compressing it. Buffers are as for
+   * {@link #compress(ByteBuffer, ByteBuffer)}; positions are left alone.
+   */
+  public synchronized void checksumStored(ByteBuffer src) {
+    if (checksums == 0) {
+      return;
+    }
+    if (!pureJava) {
+      if (!src.isDirect()) {
+        throw new IllegalArgumentException("Buffers passed to checksum must be direct");
+      }
+      checksumBufferDirect(src, src.position(), src.remaining());
+      return;
+    }
+    byte[] in;
+    int inOff;
+    int inLen = src.remaining();
+    if (src.hasArray()) {
+      in = src.array();
+      inOff = src.arrayOffset() + src.position();
+    } else {
+      if (scratchIn == null || scratchIn.length < inLen) {
+        scratchIn = new byte[Math.max(inLen, directBufferSize)];
+      }
+      in = scratchIn;
+      inOff = 0;
+      src.duplicate().get(in, 0, inLen);
+    }
+    computeJavaChecksums(in, inOff, inLen, null, 0, 0);
+  }
+
+  /**
+   * Compute the checksums asked for as the JNI layer does after compressing
+   * a block natively. Without <code>out</code>, only the uncompressed ones.
+   */
+  private void computeJavaChecksums(byte[] in, int inOff, int inLen,
+      byte[] out, int outOff, int outLen) {
+    if (javaAdler32 == null) {
+      javaAdler32 = new Adler32();
+      javaCrc32 = new CRC32();
+    }
+    if ((checksums & LzoDecompressor.CHECKSUM_UNCOMPRESSED_ADLER32) != 0) {
+      javaAdler32.reset();
+      javaAdler32.update(in, inOff, inLen);
+      uncompressedAdler32 = (int) javaAdler32.getValue();
+    }
+    if ((checksums & LzoDecompressor.CHECKSUM_UNCOMPRESSED_CRC32) != 0) {
+      javaCrc32.reset();
+      javaCrc32.update(in, inOff, inLen);
+      uncompressedCrc32 = (int) javaCrc32.getValue();
+    }
+    if (out == null) {
+      return;
+    }
+    if ((checksums & LzoDecompressor.CHECKSUM_COMPRESSED_ADLER32) != 0) {
+      javaAdler32.reset();
+      javaAdler32.update(out, outOff, outLen);
+      compressedAdler32 = (int) javaAdler32.getValue();
+    }
+    if ((checksums & LzoDecompressor.CHECKSUM_COMPRESSED_CRC32) != 0) {
+      javaCrc32.reset();
+      javaCrc32.update(out, outOff, outLen);
+      compressedCrc32 = (int) javaCrc32.getValue();
+    }
+  }
+
+  /**
+   * Compute these checksums of each block compressed by
+   * {@link #compress(ByteBuffer, ByteBuffer)}, in the same call.
+   *
+   * @param checksums LzoDecompressor CHECKSUM_* flags, or 0 for none
+   */
+  synchronized void setChecksums(int checksums) {
+    this.checksums = checksums;
+  }
+
+  int getChecksums() {
+    return checksums;
+  }
+
+  /**
+   * @param checksum one of the CHECKSUM_* flags set by
+   *        {@link #setChecksums(int)}
+   * @return its value for the last block compressed by
+   *         {@link #compress(ByteBuffer, ByteBuffer)}
+   */
+  synchronized int getChecksum(int checksum) {
+    switch (checksum) {
+    case LzoDecompressor.CHECKSUM_COMPRESSED_ADLER32:
+      return compressedAdler32;
+    case LzoDecompressor.CHECKSUM_COMPRESSED_CRC32:
+      return compressedCrc32;
+    case LzoDecompressor.CHECKSUM_UNCOMPRESSED_ADLER32:
+      return uncompressedAdler32;
+    case LzoDecompressor.CHECKSUM_UNCOMPRESSED_CRC32:
+      return uncompressedCrc32;
+    default:
+      throw new IllegalArgumentException("Unknown checksum " + checksum);
+    }
+  }
+
+  /**
+   * The most that compressing <code>len</code> bytes can produce with this
+   * compressor's strategy.
+   */
+  public int maxCompressedLength(int len) {
+    return len + (strategy.name().contains("LZO1") ?
+        (len >> 4) + 64 + 3 : (len >> 3) + 128 + 3);
+  }
+
   public synchronized void reset() {
     finish = false;
     finished = false;
@@ -442,6 +731,14 @@ class LzoCompressor implements Compressor {
   long getDirectBufferSize() {
     return directBufferSize;
   }
+
+  /**
+   * Whether this compressor runs in Java rather than through the
+   * native-lzo library.
+   */
+  public boolean isPureJava() {
+    return pureJava;
+  }
   
   /**
    * Noop.
@@ -458,5 +755,10 @@ class LzoCompressor implements Compressor {
   private native static void initIDs();
   private native static int getLzoLibraryVersion();
   private native void init(int compressor);
+  private native void initBufferAddresses();
   private native int compressBytesDirect(int compressor);
+  private native int compressBufferDirect(int compressor,
+      ByteBuffer src, int srcOff, int srcLen,
+      ByteBuffer dst, int dstOff, int dstLen);
+  private native void checksumBufferDirect(ByteBuffer src, int srcOff, int srcLen);
 }
@@ -29,16 +29,15 @@ import org.apache.hadoop.io.compress.Decompressor;
 /**
  * A {@link Decompressor} based on the lzo algorithm.
  * https://www.oberhumer.com/opensource/lzo/
- * 
+ *
+ * LZO1X blocks can also be decompressed without the native-lzo library, by
+ * {@link Lzo1xDecompressor}. That is used when the library is not loaded or
+ * when asked for explicitly; its output is identical.
  */
 class LzoDecompressor implements Decompressor {
   private static final Log LOG = 
     LogFactory.getLog(LzoDecompressor.class.getName());
 
-  // HACK - Use this as a global lock in the JNI layer
-  @SuppressWarnings({ "unchecked", "unused" })
-  private static Class clazz = LzoDecompressor.class;
-
   /**
    * The minimum version of LZO that we can read.
    * Set to 1.0 since there were a couple header
@@ -60,9 +59,34 @@ class LzoDecompressor implements Decompressor {
   private boolean isCurrentBlockUncompressed;
 
   private CompressionStrategy strategy;
+  private final boolean pureJava;
+  // Used by the pure Java decompress(ByteBuffer, ByteBuffer) for direct buffers
+  private byte[] scratchIn = null;
+  private byte[] scratchOut = null;
   @SuppressWarnings("unused")
   private long lzoDecompressor = 0;   // The actual lzo decompression function.
 
+  // Addresses of the direct buffers, cached by the JNI layer when the
+  // buffers are allocated so the per-block calls need no locking.
+  @SuppressWarnings("unused")
+  private long compressedDirectBufAddr = 0;
+  @SuppressWarnings("unused")
+  private long uncompressedDirectBufAddr = 0;
+
+  // Checksums the JNI layer computes in the same call that decompresses a
+  // block, while the data is still in cache, and keeps updated in place.
+  static final int CHECKSUM_COMPRESSED_ADLER32 = 0x01;
+  static final int CHECKSUM_COMPRESSED_CRC32 = 0x02;
+  static final int CHECKSUM_UNCOMPRESSED_ADLER32 = 0x04;
+  static final int CHECKSUM_UNCOMPRESSED_CRC32 = 0x08;
+  private int nativeChecksums = 0;
+  private int compressedAdler32 = 1;
+  private int compressedCrc32 = 0;
+  private int uncompressedAdler32 = 1;
+  private int uncompressedCrc32 = 0;
+  // Whether a block was decompressed natively since the checksums were reset
+  private boolean nativeChecksumsUpdated;
+
   public static enum CompressionStrategy {
     /**
      * lzo1 algorithms.
@@ -137,6 +161,15 @@ class LzoDecompressor implements Decompressor {
     int getDecompressor() {
       return decompressor;
     }
+
+    /**
+     * Whether this is one of the LZO1X algorithms, which all read the same
+     * format and can be decompressed in pure Java.
+     */
+    boolean isLzo1x() {
+      return decompressor >= LZO1X.decompressor &&
+          decompressor <= LZO1X_ASM_FAST_SAFE.decompressor;
+    }
   }; // CompressionStrategy
 
   private static boolean nativeLzoLoaded;
@@ -174,14 +207,41 @@ class LzoDecompressor implements Decompressor {
   }
 
   /**
-   * Creates a new lzo decompressor.
+   * Creates a new lzo decompressor, using the pure Java implementation only
+   * if the native-lzo library is not loaded.
    * 
    * @param strategy lzo decompression algorithm
    * @param directBufferSize size of the direct-buffer
    */
   public LzoDecompressor(CompressionStrategy strategy, int directBufferSize) {
+    this(strategy, directBufferSize, !nativeLzoLoaded);
+  }
+
+  /**
+   * Creates a new lzo decompressor.
+   *
+   * @param strategy lzo decompression algorithm
+   * @param directBufferSize size of the direct-buffer
+   * @param pureJava whether to decompress in Java rather than with the
+   *        native-lzo library; only LZO1X strategies are supported in Java
+   */
+  public LzoDecompressor(CompressionStrategy strategy, int directBufferSize,
+      boolean pureJava) {
     this.directBufferSize = directBufferSize;
     this.strategy = strategy;
+    this.pureJava = pureJava;
+
+    if (pureJava) {
+      if (!strategy.isLzo1x()) {
+        throw new IllegalArgumentException("Strategy " + strategy +
+            " cannot be decompressed without the native-lzo library");
+      }
+      // The Java implementation works on the backing arrays
+      compressedDirectBuf = ByteBuffer.allocate(directBufferSize);
+      uncompressedDirectBuf = ByteBuffer.allocate(directBufferSize);
+      uncompressedDirectBuf.position(directBufferSize);
+      return;
+    }
 
     compressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
     uncompressedDirectBuf = ByteBuffer.allocateDirect(directBufferSize);
@@ -191,6 +251,7 @@ class LzoDecompressor implements Decompressor {
      * Initialize {@link #lzoDecompress}
      */
     init(this.strategy.getDecompressor());
+    initBufferAddresses();
   }
 
   /**
@@ -312,7 +373,12 @@ class LzoDecompressor implements Decompressor {
         uncompressedDirectBuf.limit(directBufferSize);
 
         // Decompress data
-        numBytes = decompressBytesDirect(strategy.getDecompressor());
+        if (pureJava) {
+          numBytes = decompressBytesJava();
+        } else {
+          numBytes = decompressBytesDirect(strategy.getDecompressor());
+          nativeChecksumsUpdated |= nativeChecksums != 0;
+        }
         uncompressedDirectBuf.limit(numBytes);
 
         // Return atmost 'len' bytes
@@ -329,6 +395,146 @@ class LzoDecompressor implements Decompressor {
     return numBytes;
   }
 
+  /**
+   * Decompress the block in {@link #compressedDirectBuf} in Java, as
+   * decompressBytesDirect does natively.
+   */
+  private int decompressBytesJava() throws IOException {
+    int n = Lzo1xDecompressor.decompress(
+        ((ByteBuffer)compressedDirectBuf).array(), 0, compressedDirectBufLen,
+        ((ByteBuffer)uncompressedDirectBuf).array(), 0, directBufferSize);
+    compressedDirectBufLen = 0;
+    return n;
+  }
+
+  /**
+   * Decompress a whole block, the remaining bytes of <code>src</code>, straight
+   * into <code>dst</code>, without staging either side through this
+   * decompressor's own buffers. Both buffers must be direct, unless this
+   * decompressor is pure Java, in which case heap buffers are preferred. If
+   * the current block is stored uncompressed it is simply copied.
+   *
+   * This neither uses nor disturbs the input set by {@link #setInput}. On
+   * return <code>src</code> has been consumed and the position of
+   * <code>dst</code> has moved past the uncompressed data.
+   *
+   * @param src direct buffer holding one compressed block
+   * @param dst direct buffer with room for the uncompressed block
+   * @return the number of uncompressed bytes written
+   * @throws IOException
+   */
+  public synchronized int decompress(ByteBuffer src, ByteBuffer dst)
+  throws IOException {
+    if (!pureJava && (!src.isDirect() || !dst.isDirect())) {
+      throw new IllegalArgumentException("Buffers passed to decompress must be direct");
+    }
+
+    int numBytes;
+    if (isCurrentBlockUncompressed()) {
+      numBytes = Math.min(src.remaining(), dst.remaining());
+      ByteBuffer stored = src.duplicate();
+      stored.limit(stored.position() + numBytes);
+      dst.put(stored);
+    } else if (pureJava) {
+      numBytes = decompressBufferJava(src, dst);
+      dst.position(dst.position() + numBytes);
+    } else {
+      numBytes = decompressBufferDirect(strategy.getDecompressor(),
+          src, src.position(), src.remaining(),
+          dst, dst.position(), dst.remaining());
+      nativeChecksumsUpdated |= nativeChecksums != 0;
+      dst.position(dst.position() + numBytes);
+    }
+    src.position(src.limit());
+    return numBytes;
+  }
+
+  /**
+   * Decompress the remaining bytes of <code>src</code> into
+   * <code>dst</code> in Java, copying through scratch arrays for either
+   * side that has no accessible array. Positions are left alone.
+   */
+  private int decompressBufferJava(ByteBuffer src, ByteBuffer dst)
+  throws IOException {
+    byte[] in;
+    int inOff;
+    int inLen = src.remaining();
+    if (src.hasArray()) {
+      in = src.array();
+      inOff = src.arrayOffset() + src.position();
+    } else {
+      if (scratchIn == null || scratchIn.length < inLen) {
+        scratchIn = new byte[Math.max(inLen, directBufferSize)];
+      }
+      in = scratchIn;
+      inOff = 0;
+      src.duplicate().get(in, 0, inLen);
+    }
+
+    if (dst.hasArray()) {
+      return Lzo1xDecompressor.decompress(in, inOff, inLen, dst.array(),
+          dst.arrayOffset() + dst.position(), dst.remaining());
+    }
+    int outLen = dst.remaining();
+    if (scratchOut == null || scratchOut.length < outLen) {
+      scratchOut = new byte[Math.max(outLen, directBufferSize)];
+    }
+    int n = Lzo1xDecompressor.decompress(in, inOff, inLen, scratchOut, 0, outLen);
+    dst.duplicate().put(scratchOut, 0, n);
+    return n;
+  }
+
+  /**
+   * Have the native decompressor compute checksums of the compressed and
+   * uncompressed data of each block as it decompresses it, so that the data
+   * is not walked again in Java. Stored blocks never reach the native code.
+   *
+   * @param checksums CHECKSUM_* flags, 0 for none
+   */
+  synchronized void setNativeChecksums(int checksums) {
+    if (pureJava && checksums != 0) {
+      throw new IllegalStateException("No native checksums without the native-lzo library");
+    }
+    nativeChecksums = checksums;
+    resetNativeChecksums();
+  }
+
+  synchronized void resetNativeChecksums() {
+    compressedAdler32 = 1;
+    compressedCrc32 = 0;
+    uncompressedAdler32 = 1;
+    uncompressedCrc32 = 0;
+    nativeChecksumsUpdated = false;
+  }
+
+  /**
+   * @return whether a block has been decompressed natively, with the
+   *         checksums set by {@link #setNativeChecksums}, since they were
+   *         last reset
+   */
+  synchronized boolean areNativeChecksumsUpdated() {
+    return nativeChecksumsUpdated;
+  }
+
+  /**
+   * @param checksum one of the CHECKSUM_* flags
+   * @return its value over the data decompressed since the last reset
+   */
+  synchronized int getNativeChecksum(int checksum) {
+    switch (checksum) {
+    case CHECKSUM_COMPRESSED_ADLER32:
+      return compressedAdler32;
+    case CHECKSUM_COMPRESSED_CRC32:
+      return compressedCrc32;
+    case CHECKSUM_UNCOMPRESSED_ADLER32:
+      return uncompressedAdler32;
+    case CHECKSUM_UNCOMPRESSED_CRC32:
+      return uncompressedCrc32;
+    default:
+      throw new IllegalArgumentException("Unknown checksum " + checksum);
+    }
+  }
+
   public synchronized void reset() {
     finished = false;
     compressedDirectBufLen = 0;
@@ -345,6 +551,18 @@ class LzoDecompressor implements Decompressor {
     return userBufLen;
   }
 
+  int getDirectBufferSize() {
+    return directBufferSize;
+  }
+
+  /**
+   * Whether this decompressor runs in Java rather than through the
+   * native-lzo library.
+   */
+  public boolean isPureJava() {
+    return pureJava;
+  }
+
   @Override
   protected void finalize() {
     end();
@@ -376,5 +594,9 @@ class LzoDecompressor implements Decompressor {
   private native static void initIDs();
   private native static int getLzoLibraryVersion();
   private native void init(int decompressor);
+  private native void initBufferAddresses();
   private native int decompressBytesDirect(int decompressor);
+  private native int decompressBufferDirect(int decompressor,
+      ByteBuffer src, int srcOff, int srcLen,
+      ByteBuffer dst, int dstOff, int dstLen);
 }
@@ -19,30 +19,82 @@
 package com.hadoop.compression.lzo;
 
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.util.Arrays;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
 
 import org.apache.hadoop.conf.Configurable;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.DataOutputBuffer;
-import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.fs.RawLocalFileSystem;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
 
 /**
  * Represents the lzo index.
+ *
+ * Indexes read from a file are kept off the Java heap: memory-mapped when
+ * the file is local, otherwise copied into a direct buffer. Lookups work on
+ * the big-endian block positions in place. Delta encoded
+ * {@link #VERSION_2} indexes are decoded into a direct buffer first.
  */
 public class LzoIndex {
   public static final String LZO_INDEX_SUFFIX = ".index";
   public static final String LZO_TMP_INDEX_SUFFIX = ".index.tmp";
   public static final long NOT_FOUND = -1;
 
-  private long[] blockPositions_;
+  /** The original index format: a big-endian long per block. */
+  public static final int VERSION_1 = 1;
+  /** A header followed by a varint delta per block, see {@link LzoIndexWriter}. */
+  public static final int VERSION_2 = 2;
+  /**
+   * Start of a {@link #VERSION_2} index. Block positions are never negative,
+   * so a version 1 index cannot start with the high bit set.
+   */
+  static final byte[] INDEX_MAGIC = new byte[] { -119, 'L', 'Z', 'O', 'I', 'X' };
+  /** Magic, version byte and flags byte. */
+  private static final int V2_HEADER_LENGTH = INDEX_MAGIC.length + 2;
+  /**
+   * {@link #VERSION_2} flag: each entry is followed by the uncompressed size
+   * of its block, from which the uncompressed offset of every block is known.
+   */
+  public static final int FLAG_UNCOMPRESSED_SIZES = 0x01;
+  /**
+   * {@link #VERSION_2} flag: each entry is followed by the offset in the
+   * block's uncompressed data where the first record starts, that is just
+   * past the first line terminator, so split readers need not scan for it.
+   */
+  public static final int FLAG_FIRST_RECORD_OFFSETS = 0x02;
+  static final int KNOWN_FLAGS = FLAG_UNCOMPRESSED_SIZES | FLAG_FIRST_RECORD_OFFSETS;
+
+  /**
+   * Last bytes of an lzo file with an embedded index. The index follows the
+   * end of stream marker, in the {@link #VERSION_2} format, and is followed
+   * by the locator: its offset in the file as a big-endian long, then this.
+   */
+  static final byte[] EMBEDDED_INDEX_MAGIC =
+      new byte[] { -119, 'L', 'Z', 'O', 'E', 'I', 'X', 1 };
+  static final int EMBEDDED_INDEX_LOCATOR_LENGTH = 8 + EMBEDDED_INDEX_MAGIC.length;
+  /**
+   * How much of the end of a file to read when looking for an embedded
+   * index, enough for the indexes of files of several GB in one read.
+   */
+  static final int EMBEDDED_INDEX_READ_SIZE = 64 * 1024;
+
+  private LongBuffer blockPositions_;
+  /** Uncompressed offset of the start of each block, if the index has them. */
+  private LongBuffer uncompressedOffsets_;
+  /** First record offset in each block, -1 if unknown, if the index has them. */
+  private IntBuffer firstRecordOffsets_;
 
   /**
    * Create an empty index, typically indicating no index file exists.
@@ -54,7 +106,36 @@ public class LzoIndex {
    * @param blocks The number of blocks in the LZO file the index is representing.
    */
   public LzoIndex(int blocks) {
-    blockPositions_ = new long[blocks];
+    blockPositions_ = LongBuffer.allocate(blocks);
+  }
+
+  /**
+   * Create a read-only index over block positions stored as big-endian
+   * longs in the remaining bytes of the buffer. Any trailing partial
+   * position is ignored.
+   *
+   * @param positions buffer holding the block positions
+   */
+  LzoIndex(ByteBuffer positions) {
+    blockPositions_ = positions.asLongBuffer();
+  }
+
+  /**
+   * Create a read-only index over block positions along with the optional
+   * per-block fields, each stored big-endian in its own buffer.
+   *
+   * @param uncompressedOffsets longs, or null
+   * @param firstRecordOffsets ints, or null
+   */
+  LzoIndex(ByteBuffer positions, ByteBuffer uncompressedOffsets,
+      ByteBuffer firstRecordOffsets) {
+    this(positions);
+    if (uncompressedOffsets != null) {
+      uncompressedOffsets_ = uncompressedOffsets.asLongBuffer();
+    }
+    if (firstRecordOffsets != null) {
+      firstRecordOffsets_ = firstRecordOffsets.asIntBuffer();
+    }
   }
 
   /**
@@ -64,7 +145,7 @@ public class LzoIndex {
    * @param pos Position.
    */
   public void set(int blockNumber, long pos) {
-    blockPositions_[blockNumber] = pos;
+    blockPositions_.put(blockNumber, pos);
   }
 
   /**
@@ -72,7 +153,7 @@ public class LzoIndex {
    * @return the total number of blocks
    */
   public int getNumberOfBlocks() {
-    return blockPositions_.length;
+    return blockPositions_.limit();
   }
 
   /**
@@ -83,7 +164,7 @@ public class LzoIndex {
    * The argument block should satisfy 0 &le; block &lt; getNumberOfBlocks().
    */
   public long getPosition(int block) {
-    return blockPositions_[block];
+    return blockPositions_.get(block);
   }
 
   /**
@@ -93,18 +174,112 @@ public class LzoIndex {
    * @return Either the start position of the block or -1 if it couldn't be found.
    */
   public long findNextPosition(long pos) {
-    int block = Arrays.binarySearch(blockPositions_, pos);
+    int block = lowerBound(pos);
+    if (block == blockPositions_.limit()) {
+      return NOT_FOUND;
+    }
+    return blockPositions_.get(block);
+  }
 
-    if (block >= 0) {
-      // direct hit on a block start position
-      return blockPositions_[block];
-    } else {
-      block = Math.abs(block) - 1;
-      if (block > blockPositions_.length - 1) {
-        return NOT_FOUND;
+  /**
+   * Find the block starting at exactly the given position.
+   *
+   * @param pos a position in the lzo file
+   * @return the block number, or -1 if no block starts there
+   */
+  public int findBlock(long pos) {
+    int block = lowerBound(pos);
+    if (block == blockPositions_.limit() || blockPositions_.get(block) != pos) {
+      return -1;
+    }
+    return block;
+  }
+
+  /**
+   * Binary search for the first block starting at or after pos.
+   *
+   * @return the block number, or the number of blocks if there is none
+   */
+  private int lowerBound(long pos) {
+    int low = 0;
+    int high = blockPositions_.limit() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      long midPos = blockPositions_.get(mid);
+      if (midPos < pos) {
+        low = mid + 1;
+      } else if (midPos > pos) {
+        high = mid - 1;
+      } else {
+        // direct hit on a block start position
+        return mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return true if the index records where each block starts in the
+   *         uncompressed data
+   */
+  public boolean hasUncompressedOffsets() {
+    return uncompressedOffsets_ != null;
+  }
+
+  /**
+   * Get the uncompressed offset of a block: the number of uncompressed
+   * bytes in all the blocks before it. Only available if
+   * {@link #hasUncompressedOffsets()}.
+   *
+   * @param block the given block, 0 &le; block &lt; getNumberOfBlocks()
+   * @return the offset in the uncompressed data where this block starts
+   */
+  public long getUncompressedOffset(int block) {
+    return uncompressedOffsets_.get(block);
+  }
+
+  /**
+   * Find the block holding the given uncompressed offset, that is the last
+   * block starting at or before it. Only available if
+   * {@link #hasUncompressedOffsets()}.
+   *
+   * @param uncompressedPos offset in the uncompressed data
+   * @return the block number, or -1 if the index is empty or the offset
+   *         is negative
+   */
+  public int findUncompressedBlock(long uncompressedPos) {
+    int low = 0;
+    int high = uncompressedOffsets_.limit() - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      if (uncompressedOffsets_.get(mid) <= uncompressedPos) {
+        low = mid + 1;
+      } else {
+        high = mid - 1;
       }
-      return blockPositions_[block];
     }
+    return low - 1;
+  }
+
+  /**
+   * @return true if the index records where the first record of each block
+   *         starts
+   */
+  public boolean hasFirstRecordOffsets() {
+    return firstRecordOffsets_ != null;
+  }
+
+  /**
+   * Get the offset in a block's uncompressed data just past its first line
+   * terminator, where a split starting at the block finds its first
+   * record. Only available if {@link #hasFirstRecordOffsets()}.
+   *
+   * @param block the given block, 0 &le; block &lt; getNumberOfBlocks()
+   * @return the offset, or -1 if the block has no line terminator or its
+   *         first one might continue into the next block
+   */
+  public int getFirstRecordOffset(int block) {
+    return firstRecordOffsets_.get(block);
   }
 
   /**
@@ -113,7 +288,7 @@ public class LzoIndex {
    * @return true if the index has no blocks set.
    */
   public boolean isEmpty() {
-    return blockPositions_ == null || blockPositions_.length == 0;
+    return blockPositions_ == null || blockPositions_.limit() == 0;
   }
 
   /**
@@ -159,7 +334,8 @@ public class LzoIndex {
   }
 
   /**
-   * Read the index of the lzo file.
+   * Read the index of the lzo file, from its index file if it has one,
+   * otherwise from the file itself if the index is embedded in it.
 
    * @param fs The index file is on this file system.
    * @param lzoFile the file whose index we are reading -- NOT the index file itself.  That is,
@@ -168,31 +344,319 @@ public class LzoIndex {
    * @return LzoIndex 
    */
   public static LzoIndex readIndex(FileSystem fs, Path lzoFile) throws IOException {
-    FSDataInputStream indexIn = null;
     Path indexFile = lzoFile.suffix(LZO_INDEX_SUFFIX);
 
+    File localIndexFile = getLocalFile(fs, indexFile);
+    if (localIndexFile != null) {
+      RandomAccessFile raf;
+      try {
+        raf = new RandomAccessFile(localIndexFile, "r");
+      } catch (FileNotFoundException fileNotFound) {
+        return readEmbeddedIndex(fs, lzoFile);
+      }
+      try {
+        // The mapping stays valid once the file is closed
+        return fromBuffer(raf.getChannel().map(
+            FileChannel.MapMode.READ_ONLY, 0, raf.length()), indexFile);
+      } finally {
+        raf.close();
+      }
+    }
+
+    FSDataInputStream indexIn = null;
     try {
       indexIn = fs.open(indexFile);
-    } catch (IOException fileNotFound) {
+    } catch (FileNotFoundException fileNotFound) {
+      return readEmbeddedIndex(fs, lzoFile);
+    }
+
+    try {
+      long length = fs.getFileStatus(indexFile).getLen();
+      if (length > Integer.MAX_VALUE) {
+        throw new IOException("Index file " + indexFile + " is too large: " +
+            length + " bytes");
+      }
+      ByteBuffer bytes = ByteBuffer.allocateDirect((int) length);
+      byte[] buf = new byte[64 * 1024];
+      while (bytes.hasRemaining()) {
+        int n = indexIn.read(buf, 0, Math.min(buf.length, bytes.remaining()));
+        if (n < 0) {
+          break;
+        }
+        bytes.put(buf, 0, n);
+      }
+      bytes.flip();
+      return fromBuffer(bytes, indexFile);
+    } finally {
+      indexIn.close();
+    }
+  }
+
+  /**
+   * Read the index embedded at the end of an lzo file, see
+   * {@link LzopOutputStream#setEmbeddedIndex(int)}. Unless the index is
+   * very large, this takes a single positional read.
+   *
+   * @param fs the file system the file is on
+   * @param lzoFile the lzo file
+   * @return the index, empty if the file has none embedded
+   * @throws IOException if the embedded index is malformed or cannot be read
+   */
+  public static LzoIndex readEmbeddedIndex(FileSystem fs, Path lzoFile) throws IOException {
+    long length;
+    try {
+      length = fs.getFileStatus(lzoFile).getLen();
+    } catch (FileNotFoundException fileNotFound) {
       // return empty index, fall back to the unsplittable mode
       return new LzoIndex();
     }
+    return readEmbeddedIndex(fs, lzoFile, length, EMBEDDED_INDEX_READ_SIZE);
+  }
 
-    int capacity = 16 * 1024 * 8; //size for a 4GB file (with 256KB lzo blocks)
-    DataOutputBuffer bytes = new DataOutputBuffer(capacity);
+  /**
+   * @param length the length of the lzo file
+   * @param readSize how much of the end of the file to read at once, in the
+   *        hope that it holds the whole index as well as the locator
+   */
+  static LzoIndex readEmbeddedIndex(FileSystem fs, Path lzoFile, long length,
+      int readSize) throws IOException {
+    FSDataInputStream in;
+    try {
+      in = fs.open(lzoFile);
+    } catch (FileNotFoundException fileNotFound) {
+      // return empty index, fall back to the unsplittable mode
+      return new LzoIndex();
+    }
+    try {
+      int tailLength = (int) Math.min(length, Math.max(readSize, EMBEDDED_INDEX_LOCATOR_LENGTH));
+      byte[] tail = new byte[tailLength];
+      in.readFully(length - tailLength, tail, 0, tailLength);
+      long indexStart = locateEmbeddedIndex(tail, tailLength, length);
+      if (indexStart < 0) {
+        // return empty index, fall back to the unsplittable mode
+        return new LzoIndex();
+      }
 
-    // copy indexIn and close it
-    IOUtils.copyBytes(indexIn, bytes, 4*1024, true);
+      long indexLength = length - EMBEDDED_INDEX_LOCATOR_LENGTH - indexStart;
+      ByteBuffer bytes;
+      if (indexStart >= length - tailLength) {
+        bytes = ByteBuffer.wrap(tail, (int) (indexStart - (length - tailLength)),
+            (int) indexLength);
+      } else {
+        // Larger than the speculative read, so read the rest of it
+        if (indexLength > Integer.MAX_VALUE) {
+          throw new IOException("Embedded index of " + lzoFile + " is too large: " +
+              indexLength + " bytes");
+        }
+        byte[] index = new byte[(int) indexLength];
+        in.readFully(indexStart, index, 0, index.length);
+        bytes = ByteBuffer.wrap(index);
+      }
+      if (bytes.remaining() < INDEX_MAGIC.length) {
+        throw new IOException("Malformed embedded index in " + lzoFile);
+      }
+      for (int i = 0; i < INDEX_MAGIC.length; i++) {
+        if (bytes.get(bytes.position() + i) != INDEX_MAGIC[i]) {
+          throw new IOException("Malformed embedded index in " + lzoFile);
+        }
+      }
+      return fromBuffer(bytes.slice(), lzoFile);
+    } finally {
+      in.close();
+    }
+  }
 
-    ByteBuffer bytesIn = ByteBuffer.wrap(bytes.getData(), 0, bytes.getLength());
-    int blocks = bytesIn.remaining()/8;
-    LzoIndex index = new LzoIndex(blocks);
+  /**
+   * Find where the lzo stream of a file ends, which is where its embedded
+   * index starts if it has one.
+   *
+   * @param in the lzo file; its position is not changed
+   * @param length its length
+   * @return the offset just past the end of stream marker if the file has an
+   *         embedded index, otherwise the length
+   * @throws IOException if the end of the file cannot be read
+   */
+  public static long getStreamEnd(FSDataInputStream in, long length) throws IOException {
+    if (length < EMBEDDED_INDEX_LOCATOR_LENGTH) {
+      return length;
+    }
+    byte[] tail = new byte[EMBEDDED_INDEX_LOCATOR_LENGTH];
+    in.readFully(length - tail.length, tail, 0, tail.length);
+    long indexStart = locateEmbeddedIndex(tail, tail.length, length);
+    return indexStart < 0 ? length : indexStart;
+  }
 
-    for (int i = 0; i < blocks; i++) {
-      index.set(i, bytesIn.getLong());
+  /**
+   * Check whether an lzo file has an embedded index.
+   */
+  public static boolean hasEmbeddedIndex(FileSystem fs, Path lzoFile) throws IOException {
+    FSDataInputStream in = fs.open(lzoFile);
+    try {
+      long length = fs.getFileStatus(lzoFile).getLen();
+      return getStreamEnd(in, length) != length;
+    } finally {
+      in.close();
     }
+  }
 
-    return index;
+  /**
+   * Parse the locator at the end of a file.
+   *
+   * @param tail the last <code>tailLength</code> bytes of the file
+   * @param length the length of the file
+   * @return where the embedded index starts, or -1 if there is none
+   */
+  private static long locateEmbeddedIndex(byte[] tail, int tailLength, long length) {
+    if (tailLength < EMBEDDED_INDEX_LOCATOR_LENGTH) {
+      return -1;
+    }
+    int magicStart = tailLength - EMBEDDED_INDEX_MAGIC.length;
+    for (int i = 0; i < EMBEDDED_INDEX_MAGIC.length; i++) {
+      if (tail[magicStart + i] != EMBEDDED_INDEX_MAGIC[i]) {
+        return -1;
+      }
+    }
+    long indexStart = 0;
+    for (int i = tailLength - EMBEDDED_INDEX_LOCATOR_LENGTH; i < magicStart; i++) {
+      indexStart = (indexStart << 8) | (tail[i] & 0xFF);
+    }
+    // The index follows the end of stream marker, and ends at the locator.
+    if (indexStart < 4 || indexStart > length - EMBEDDED_INDEX_LOCATOR_LENGTH) {
+      return -1;
+    }
+    return indexStart;
+  }
+
+  /**
+   * Create an index over the contents of an index file, in either format.
+   */
+  private static LzoIndex fromBuffer(ByteBuffer bytes, Path indexFile)
+      throws IOException {
+    if (bytes.remaining() < INDEX_MAGIC.length) {
+      return new LzoIndex(bytes);
+    }
+    int start = bytes.position();
+    for (int i = 0; i < INDEX_MAGIC.length; i++) {
+      if (bytes.get(start + i) != INDEX_MAGIC[i]) {
+        return new LzoIndex(bytes);
+      }
+    }
+
+    if (bytes.remaining() < V2_HEADER_LENGTH) {
+      throw new IOException("Truncated header in index file " + indexFile);
+    }
+    int version = bytes.get(start + INDEX_MAGIC.length);
+    int flags = bytes.get(start + INDEX_MAGIC.length + 1);
+    if (version != VERSION_2 || (flags & ~KNOWN_FLAGS) != 0) {
+      throw new IOException("Unsupported version " + version + " (flags " +
+          flags + ") of index file " + indexFile);
+    }
+    bytes.position(start + V2_HEADER_LENGTH);
+
+    boolean hasSizes = (flags & FLAG_UNCOMPRESSED_SIZES) != 0;
+    boolean hasRecords = (flags & FLAG_FIRST_RECORD_OFFSETS) != 0;
+    int varintsPerBlock = 1 + (hasSizes ? 1 : 0) + (hasRecords ? 1 : 0);
+
+    // Every varint ends in a byte without the continuation bit, so count
+    // those to size the decoded buffer exactly.
+    int varints = 0;
+    int end = bytes.limit();
+    for (int i = bytes.position(); i < end; i++) {
+      if (bytes.get(i) >= 0) {
+        varints++;
+      }
+    }
+    if ((end > bytes.position() && bytes.get(end - 1) < 0) ||
+        varints % varintsPerBlock != 0) {
+      throw new IOException("Truncated entry at the end of index file " + indexFile);
+    }
+    int blocks = varints / varintsPerBlock;
+    long decodedLength = (long) blocks * (8 + (hasSizes ? 8 : 0) + (hasRecords ? 4 : 0));
+    if (decodedLength > Integer.MAX_VALUE) {
+      throw new IOException("Index file " + indexFile + " has too many blocks: " + blocks);
+    }
+
+    // All the fields go in one buffer, each in its own slice
+    ByteBuffer all = ByteBuffer.allocateDirect((int) decodedLength);
+    ByteBuffer positions = slice(all, blocks * 8);
+    ByteBuffer uncompressedOffsets = hasSizes ? slice(all, blocks * 8) : null;
+    ByteBuffer firstRecordOffsets = hasRecords ? slice(all, blocks * 4) : null;
+    long pos = 0;
+    long uncompressedPos = 0;
+    while (bytes.hasRemaining()) {
+      pos += readVarLong(bytes, indexFile);
+      if (pos < 0) {
+        throw new IOException("Malformed entry in index file " + indexFile);
+      }
+      positions.putLong(pos);
+      if (hasSizes) {
+        uncompressedOffsets.putLong(uncompressedPos);
+        uncompressedPos += readVarLong(bytes, indexFile);
+        if (uncompressedPos < 0) {
+          throw new IOException("Malformed entry in index file " + indexFile);
+        }
+      }
+      if (hasRecords) {
+        // Stored one higher, so that unknown is 0
+        long offset = readVarLong(bytes, indexFile) - 1;
+        if (offset > Integer.MAX_VALUE) {
+          throw new IOException("Malformed entry in index file " + indexFile);
+        }
+        firstRecordOffsets.putInt((int) offset);
+      }
+    }
+    positions.flip();
+    if (hasSizes) {
+      uncompressedOffsets.flip();
+    }
+    if (hasRecords) {
+      firstRecordOffsets.flip();
+    }
+    return new LzoIndex(positions, uncompressedOffsets, firstRecordOffsets);
+  }
+
+  /**
+   * Take the next <code>len</code> bytes of a buffer as a buffer of their own.
+   */
+  private static ByteBuffer slice(ByteBuffer b, int len) {
+    ByteBuffer slice = b.slice();
+    slice.limit(len);
+    b.position(b.position() + len);
+    return slice;
+  }
+
+  /**
+   * Read an unsigned LEB128 varint, as written by {@link LzoIndexWriter}.
+   */
+  private static long readVarLong(ByteBuffer bytes, Path indexFile)
+      throws IOException {
+    long value = 0;
+    int shift = 0;
+    byte b;
+    do {
+      if (shift > 56 || !bytes.hasRemaining()) {
+        throw new IOException("Malformed entry in index file " + indexFile);
+      }
+      b = bytes.get();
+      value |= (long) (b & 0x7F) << shift;
+      shift += 7;
+    } while (b < 0);
+    return value;
+  }
+
+  /**
+   * Get the local file behind a path, if the file system is local, so that
+   * it can be mapped.
+   *
+   * @return the local file, or null if the file system is not local
+   */
+  private static File getLocalFile(FileSystem fs, Path path) {
+    if (fs instanceof LocalFileSystem) {
+      return ((LocalFileSystem) fs).pathToFile(path);
+    } else if (fs instanceof RawLocalFileSystem) {
+      return ((RawLocalFileSystem) fs).pathToFile(path);
+    }
+    return null;
   }
 
   /**
@@ -228,35 +692,64 @@ public class LzoIndex {
     try {
       is = fs.open(lzoFile);
       os = fs.create(tmpOutputFile);
+      LzoIndexWriter indexWriter = new LzoIndexWriter(os, LzopCodec.getIndexVersion(conf),
+          LzopCodec.getIndexFlags(conf));
       LzopDecompressor decompressor = (LzopDecompressor) codec.createDecompressor();
       // Solely for reading the header
       codec.createInputStream(is, decompressor);
       int numCompressedChecksums = decompressor.getCompressedChecksumsCount();
       int numDecompressedChecksums = decompressor.getDecompressedChecksumsCount();
-
-      while (true) {
-        // read and ignore, we just want to get to the next int
-        int uncompressedBlockSize = is.readInt();
-        if (uncompressedBlockSize == 0) {
-          break;
-        } else if (uncompressedBlockSize < 0) {
+      // Finding where records start means decompressing every block
+      boolean findRecords =
+          (indexWriter.getFlags() & FLAG_FIRST_RECORD_OFFSETS) != 0;
+      byte[] blockBytes = null;
+      ByteBuffer compressed = null;
+      ByteBuffer uncompressed = null;
+
+      LzoBlockScanner scanner = new LzoBlockScanner(is, fs.getFileStatus(lzoFile).getLen(),
+          is.getPos(), numDecompressedChecksums, numCompressedChecksums);
+
+      while (scanner.next()) {
+        int uncompressedBlockSize = scanner.getUncompressedBlockSize();
+        if (uncompressedBlockSize < 0) {
           throw new EOFException();
         }
 
-        int compressedBlockSize = is.readInt();
+        int compressedBlockSize = scanner.getCompressedBlockSize();
         if (compressedBlockSize <= 0) {
           throw new IOException("Could not read compressed block size");
         }
 
-        // See LzopInputStream.getCompressedData
-        boolean isUncompressedBlock = (uncompressedBlockSize == compressedBlockSize);
-        int numChecksumsToSkip = isUncompressedBlock ?
-            numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
-        long pos = is.getPos();
+        int firstRecordOffset = -1;
+        if (findRecords) {
+          if (blockBytes == null || blockBytes.length < uncompressedBlockSize) {
+            blockBytes = new byte[uncompressedBlockSize];
+            compressed = ByteBuffer.allocateDirect(uncompressedBlockSize);
+            uncompressed = ByteBuffer.allocateDirect(uncompressedBlockSize);
+          }
+          if (compressedBlockSize > blockBytes.length) {
+            throw new IOException("Compressed block size " + compressedBlockSize +
+                " is larger than the uncompressed size " + uncompressedBlockSize);
+          }
+          is.readFully(scanner.getDataPosition(), blockBytes, 0, compressedBlockSize);
+          ByteBuffer data;
+          if (scanner.isUncompressedBlock()) {
+            data = ByteBuffer.wrap(blockBytes, 0, compressedBlockSize);
+          } else {
+            compressed.clear();
+            compressed.put(blockBytes, 0, compressedBlockSize);
+            compressed.flip();
+            uncompressed.clear();
+            decompressor.reset();
+            decompressor.setCurrentBlockUncompressed(false);
+            decompressor.decompress(compressed, uncompressed);
+            uncompressed.flip();
+            data = uncompressed;
+          }
+          firstRecordOffset = LzoIndexWriter.firstRecordOffset(data);
+        }
         // write the pos of the block start
-        os.writeLong(pos - 8);
-        // seek to the start of the next block, skip any checksums
-        is.seek(pos + compressedBlockSize + (4 * numChecksumsToSkip));
+        indexWriter.writePosition(scanner.getPosition(), uncompressedBlockSize, firstRecordOffset);
       }
       // If we're here, indexing was successful.
       indexingSucceeded = true;
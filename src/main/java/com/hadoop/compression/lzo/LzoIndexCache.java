@@ -0,0 +1,229 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * A least recently used cache of parsed {@link LzoIndex} objects, so that a
+ * long running process planning many jobs over the same files reads each
+ * index once rather than once per job.
+ *
+ * Entries are keyed by the index file's path and remember its length and
+ * modification time; an index whose file has changed in either is read
+ * again and replaces the old one. An index embedded in its lzo file is
+ * keyed by the lzo file the same way. The cache holds up to a given total of
+ * bytes of parsed indexes, evicting the least recently used indexes past
+ * that. An index takes 8 bytes per block, plus 8 if it has uncompressed
+ * offsets and 4 if it has first record offsets.
+ * Cached indexes are shared and must not be modified.
+ *
+ * One instance is shared by the whole JVM, see {@link #getInstance()}.
+ * It is thread safe.
+ */
+public final class LzoIndexCache {
+
+  private static final LzoIndexCache INSTANCE = new LzoIndexCache(0);
+
+  private final Map<Path, Entry> entries =
+      new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+  private long maxBytes;
+  private long bytes;
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  LzoIndexCache(long maxBytes) {
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * @return the cache shared by the JVM, which holds nothing until given a
+   *         size with {@link #setMaxBytes(long)}
+   */
+  public static LzoIndexCache getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Get the index of an lzo file, reading it if it is not cached or has
+   * changed since it was.
+   *
+   * @param fs the file system the file is on
+   * @param lzoFile the lzo file, not its index
+   * @return the index, empty if the file has none
+   * @throws IOException if the index cannot be read
+   */
+  public LzoIndex get(FileSystem fs, Path lzoFile) throws IOException {
+    Path indexFile = lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX);
+    FileStatus status;
+    boolean embedded = false;
+    try {
+      status = fs.getFileStatus(indexFile);
+    } catch (FileNotFoundException e) {
+      try {
+        status = fs.getFileStatus(lzoFile);
+      } catch (FileNotFoundException e2) {
+        // return empty index, fall back to the unsplittable mode
+        return new LzoIndex();
+      }
+      embedded = true;
+    }
+
+    Path path = fs.makeQualified(embedded ? lzoFile : indexFile);
+    long length = status.getLen();
+    long modificationTime = status.getModificationTime();
+    synchronized (this) {
+      Entry entry = entries.get(path);
+      if (entry != null && entry.length == length &&
+          entry.modificationTime == modificationTime) {
+        hits.incrementAndGet();
+        return entry.index;
+      }
+    }
+    misses.incrementAndGet();
+
+    // Read without holding the lock, other indexes can be looked up meanwhile
+    LzoIndex index = embedded ?
+        LzoIndex.readEmbeddedIndex(fs, lzoFile, length, LzoIndex.EMBEDDED_INDEX_READ_SIZE) :
+        LzoIndex.readIndex(fs, lzoFile);
+    if (embedded && index.isEmpty()) {
+      // No index at all, nothing worth caching
+      return index;
+    }
+    long weight = weigh(index);
+    synchronized (this) {
+      Entry old = entries.remove(path);
+      if (old != null) {
+        bytes -= old.weight;
+      }
+      if (weight <= maxBytes) {
+        entries.put(path, new Entry(length, modificationTime, weight, index));
+        bytes += weight;
+        evict();
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return how many bytes the parsed index takes, whatever the size of its
+   *         file
+   */
+  static long weigh(LzoIndex index) {
+    int bytesPerBlock = 8;
+    if (index.hasUncompressedOffsets()) {
+      bytesPerBlock += 8;
+    }
+    if (index.hasFirstRecordOffsets()) {
+      bytesPerBlock += 4;
+    }
+    return (long) index.getNumberOfBlocks() * bytesPerBlock;
+  }
+
+  /**
+   * Set how many bytes of parsed indexes the cache holds, evicting indexes if
+   * it now holds too many. 0 turns caching off.
+   */
+  public synchronized void setMaxBytes(long maxBytes) {
+    this.maxBytes = maxBytes;
+    evict();
+  }
+
+  public synchronized long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /**
+   * Remove the least recently used indexes until the cache is within its
+   * size.
+   */
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (bytes > maxBytes && it.hasNext()) {
+      bytes -= it.next().weight;
+      it.remove();
+      evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * Drop all cached indexes. The statistics are kept.
+   */
+  public synchronized void clear() {
+    entries.clear();
+    bytes = 0;
+  }
+
+  /** @return the number of indexes cached */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /** @return the total size of the parsed indexes cached */
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  /** @return how many lookups found their index cached */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** @return how many lookups had to read their index */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return how many indexes were dropped to make room for others */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  @Override
+  public String toString() {
+    return "LzoIndexCache(size=" + size() + ", bytes=" + getBytes() +
+        ", hits=" + getHits() + ", misses=" + getMisses() +
+        ", evictions=" + getEvictions() + ")";
+  }
+
+  private static final class Entry {
+    final long length;
+    final long modificationTime;
+    final long weight;
+    final LzoIndex index;
+
+    Entry(long length, long modificationTime, long weight, LzoIndex index) {
+      this.length = length;
+      this.modificationTime = modificationTime;
+      this.weight = weight;
+      this.index = index;
+    }
+  }
+}
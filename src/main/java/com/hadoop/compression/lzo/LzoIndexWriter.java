@@ -0,0 +1,206 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the block positions of an lzo file in one of the index formats
+ * {@link LzoIndex#readIndex} reads.
+ *
+ * {@link LzoIndex#VERSION_1} is a big-endian long per block.
+ * {@link LzoIndex#VERSION_2} starts with {@link LzoIndex#INDEX_MAGIC}, the
+ * version byte and a flags byte, followed by each position as an unsigned
+ * LEB128 varint of its distance from the previous one. Blocks are usually
+ * a few hundred KB apart, so most entries take three bytes instead of eight.
+ * With {@link LzoIndex#FLAG_UNCOMPRESSED_SIZES} each position is followed by
+ * the uncompressed size of its block, also as a varint. With
+ * {@link LzoIndex#FLAG_FIRST_RECORD_OFFSETS} the entry ends with one more
+ * than the block's first record offset, so that 0 stands for unknown.
+ *
+ * The writer does not own the stream; closing it is up to the caller.
+ */
+public final class LzoIndexWriter {
+
+  private final DataOutput out;
+  private final int version;
+  private final int flags;
+  private long lastPosition;
+
+  /**
+   * Create a writer of block positions only, writing the header of the
+   * format right away.
+   *
+   * @param out where to write the index
+   * @param version {@link LzoIndex#VERSION_1} or {@link LzoIndex#VERSION_2}
+   * @throws IOException if the header cannot be written
+   */
+  public LzoIndexWriter(DataOutput out, int version) throws IOException {
+    this(out, version, 0);
+  }
+
+  /**
+   * Create a writer, writing the header of the format right away.
+   *
+   * @param out where to write the index
+   * @param version {@link LzoIndex#VERSION_1} or {@link LzoIndex#VERSION_2}
+   * @param flags the optional fields to record for each block, only
+   *        supported by {@link LzoIndex#VERSION_2}
+   * @throws IOException if the header cannot be written
+   */
+  public LzoIndexWriter(DataOutput out, int version, int flags)
+      throws IOException {
+    if (version != LzoIndex.VERSION_1 && version != LzoIndex.VERSION_2) {
+      throw new IllegalArgumentException("Unsupported lzo index version: " + version);
+    }
+    if ((flags & ~LzoIndex.KNOWN_FLAGS) != 0 ||
+        (flags != 0 && version != LzoIndex.VERSION_2)) {
+      throw new IllegalArgumentException("Unsupported flags " + flags +
+          " for lzo index version " + version);
+    }
+    this.out = out;
+    this.version = version;
+    this.flags = flags;
+    if (version == LzoIndex.VERSION_2) {
+      out.write(LzoIndex.INDEX_MAGIC);
+      out.writeByte(version);
+      out.writeByte(flags);
+    }
+  }
+
+  /**
+   * @return the index format version this writer writes
+   */
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the optional fields this writer records for each block
+   */
+  public int getFlags() {
+    return flags;
+  }
+
+  /**
+   * Add the position of the next block, for an index without optional
+   * fields.
+   *
+   * @param pos offset of the block in the lzo file
+   * @throws IOException if the position is before the previous one, or
+   *         cannot be written
+   */
+  public void writePosition(long pos) throws IOException {
+    if ((flags & LzoIndex.FLAG_UNCOMPRESSED_SIZES) != 0) {
+      throw new IllegalStateException("Index needs the uncompressed size of each block");
+    }
+    writePosition(pos, 0);
+  }
+
+  /**
+   * Add the position and uncompressed size of the next block, for an index
+   * without {@link LzoIndex#FLAG_FIRST_RECORD_OFFSETS}. The size is only
+   * recorded if the index has {@link LzoIndex#FLAG_UNCOMPRESSED_SIZES}.
+   *
+   * @param pos offset of the block in the lzo file
+   * @param uncompressedSize number of bytes the block decompresses to
+   * @throws IOException if the position is before the previous one, or
+   *         cannot be written
+   */
+  public void writePosition(long pos, int uncompressedSize) throws IOException {
+    if ((flags & LzoIndex.FLAG_FIRST_RECORD_OFFSETS) != 0) {
+      throw new IllegalStateException("Index needs the first record offset of each block");
+    }
+    writePosition(pos, uncompressedSize, -1);
+  }
+
+  /**
+   * Add the position, uncompressed size and first record offset of the next
+   * block. Each field is only recorded if the index has the flag for it.
+   *
+   * @param pos offset of the block in the lzo file
+   * @param uncompressedSize number of bytes the block decompresses to
+   * @param firstRecordOffset see {@link #firstRecordOffset(ByteBuffer)}, or
+   *        -1 if unknown
+   * @throws IOException if the position is before the previous one, or
+   *         cannot be written
+   */
+  public void writePosition(long pos, int uncompressedSize,
+      int firstRecordOffset) throws IOException {
+    writeBlockPosition(pos);
+    if ((flags & LzoIndex.FLAG_UNCOMPRESSED_SIZES) != 0) {
+      writeVarLong(uncompressedSize);
+    }
+    if ((flags & LzoIndex.FLAG_FIRST_RECORD_OFFSETS) != 0) {
+      writeVarLong(firstRecordOffset < 0 ? 0 : firstRecordOffset + 1L);
+    }
+  }
+
+  /**
+   * Find where the first record of a block starts: just past the first line
+   * terminator in its uncompressed data, the way LineReader ends lines at
+   * "\n", "\r\n" or a lone "\r". This is where a reader starting in
+   * the middle of the file would be after discarding the partial line.
+   *
+   * @param block the block's uncompressed data, between position and limit;
+   *        the buffer's position is not changed
+   * @return the offset from the position, or -1 if the block has no line
+   *         terminator, or ends with a "\r" that a "\n" in the next block
+   *         might belong to
+   */
+  static int firstRecordOffset(ByteBuffer block) {
+    int start = block.position();
+    int end = block.limit();
+    for (int i = start; i < end; i++) {
+      byte b = block.get(i);
+      if (b == '\n') {
+        return i + 1 - start;
+      } else if (b == '\r') {
+        if (i + 1 == end) {
+          return -1;
+        }
+        return (block.get(i + 1) == '\n' ? i + 2 : i + 1) - start;
+      }
+    }
+    return -1;
+  }
+
+  private void writeBlockPosition(long pos) throws IOException {
+    if (pos < lastPosition) {
+      throw new IOException("Block position " + pos +
+          " is before the previous block at " + lastPosition);
+    }
+    if (version == LzoIndex.VERSION_1) {
+      out.writeLong(pos);
+    } else {
+      writeVarLong(pos - lastPosition);
+    }
+    lastPosition = pos;
+  }
+
+  private void writeVarLong(long value) throws IOException {
+    while ((value & ~0x7FL) != 0) {
+      out.writeByte((int) (value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.writeByte((int) value);
+  }
+}
@@ -19,8 +19,17 @@
 package com.hadoop.compression.lzo;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.text.DecimalFormat;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -28,20 +37,51 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.GenericOptionsParser;
 
+/**
+ * Indexes lzo files in the local process, walking directories for .lzo
+ * files without an index. Directories are listed and files indexed on a
+ * pool of {@link #THREADS_KEY} threads.
+ */
 public class LzoIndexer {
   private static final Log LOG = LogFactory.getLog(LzoIndexer.class);
 
+  /**
+   * How many threads list directories and index files at the same time.
+   * Indexing mostly waits on reads, so more threads than cores pay off.
+   */
+  public static final String THREADS_KEY = "lzo.indexer.threads";
+  private static final int DEFAULT_THREADS = 1;
+
   private final Configuration conf_;
   private final String LZO_EXTENSION = new LzopCodec().getDefaultExtension();
   private final String INDENT_STRING = "  ";
   private final DecimalFormat df_;
 
+  // The state of the index call in progress
+  private ExecutorService executor_;
+  private final AtomicInteger pendingTasks_ = new AtomicInteger();
+  private final AtomicReference<IOException> walkError_ = new AtomicReference<IOException>();
+  private final AtomicLong filesIndexed_ = new AtomicLong();
+  private final AtomicLong filesFailed_ = new AtomicLong();
+  private final AtomicLong bytesIndexed_ = new AtomicLong();
+
   public LzoIndexer(Configuration conf) {
     conf_ = conf;
     df_ = new DecimalFormat("#0.00");
   }
 
+  public static int getThreads(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getInt(THREADS_KEY, DEFAULT_THREADS);
+  }
+
+  public static void setThreads(Configuration conf, int threads) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setInt(THREADS_KEY, threads);
+  }
+
   /**
    * Index the file given by lzoUri in its default filesystem.
    * 
@@ -49,9 +89,91 @@ public class LzoIndexer {
    * @throws IOException if file not found
    */
   public void index(Path lzoPath) throws IOException {
-    indexInternal(lzoPath, 0);
+    index(Collections.singletonList(lzoPath));
+  }
+
+  /**
+   * Index the given files, and the lzo files in the given directories, and
+   * log how fast it went.
+   *
+   * @param lzoPaths The files and directories to index.
+   * @throws IOException if a path is not found or a directory cannot be
+   *         listed; the other paths are still indexed. Files that fail to
+   *         index are logged.
+   */
+  public synchronized void index(Collection<Path> lzoPaths) throws IOException {
+    int threads = Math.max(1, getThreads(conf_));
+    executor_ = Executors.newFixedThreadPool(threads);
+    walkError_.set(null);
+    filesIndexed_.set(0);
+    filesFailed_.set(0);
+    bytesIndexed_.set(0);
+    long startTime = System.currentTimeMillis();
+    try {
+      for (Path lzoPath : lzoPaths) {
+        submit(lzoPath, 0);
+      }
+      awaitTasks();
+    } finally {
+      executor_.shutdownNow();
+      executor_ = null;
+    }
+
+    double elapsed = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+    long bytes = bytesIndexed_.get();
+    LOG.info("Indexed " + filesIndexed_.get() + " files, " +
+             df_.format(bytes / (1024.0 * 1024.0 * 1024.0)) + " GB in " + df_.format(elapsed) +
+             " seconds (" + df_.format(bytes / (1024.0 * 1024.0 * elapsed)) + " MB/s) with " +
+             threads + " threads, " + filesFailed_.get() + " files failed.");
+    if (walkError_.get() != null) {
+      throw walkError_.get();
+    }
   }
 
+  /**
+   * Walk or index a path on the pool.
+   */
+  private void submit(final Path lzoPath, final int nestingLevel) {
+    pendingTasks_.incrementAndGet();
+    executor_.execute(new Runnable() {
+      public void run() {
+        try {
+          indexInternal(lzoPath, nestingLevel);
+        } catch (IOException e) {
+          LOG.error("Error indexing " + lzoPath, e);
+          walkError_.compareAndSet(null, e);
+        } catch (RuntimeException e) {
+          // Would otherwise only reach the pool's thread, and the indexer
+          // would report success
+          LOG.error("Error indexing " + lzoPath, e);
+          walkError_.compareAndSet(null, new IOException("Error indexing " + lzoPath, e));
+        } finally {
+          if (pendingTasks_.decrementAndGet() == 0) {
+            synchronized (pendingTasks_) {
+              pendingTasks_.notifyAll();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Wait until every path submitted, including those found while listing
+   * directories, has been handled.
+   */
+  private void awaitTasks() throws IOException {
+    synchronized (pendingTasks_) {
+      while (pendingTasks_.get() > 0) {
+        try {
+          pendingTasks_.wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while indexing");
+        }
+      }
+    }
+  }
   /**
    * Return indented space for pretty printing.
    * 
@@ -67,7 +189,7 @@ public class LzoIndexer {
   }
 
   /**
-   * Lzo index a given path, calling recursively to index directories when encountered.
+   * Lzo index a given path, submitting the children of directories to the pool.
    * Files are only indexed if they end in .lzo and have no existing .lzo.index file.
    * 
    * @param lzoPath The base path to index.
@@ -83,12 +205,14 @@ public class LzoIndexer {
       LOG.info(getNesting(nestingLevel) + "LZO Indexing directory " + lzoPath + "...");
       FileStatus[] statuses = fs.listStatus(lzoPath);
       for (FileStatus childStatus: statuses) {
-        indexInternal(childStatus.getPath(), nestingLevel + 1);
+        submit(childStatus.getPath(), nestingLevel + 1);
       }
     } else if (lzoPath.toString().endsWith(LZO_EXTENSION)) {
       Path lzoIndexPath = new Path(lzoPath.toString() + LzoIndex.LZO_INDEX_SUFFIX);
       if (fs.exists(lzoIndexPath)) {
         LOG.info(getNesting(nestingLevel) + "[SKIP] LZO index file already exists for " + lzoPath + "\n");
+      } else if (LzoIndex.hasEmbeddedIndex(fs, lzoPath)) {
+        LOG.info(getNesting(nestingLevel) + "[SKIP] LZO index is embedded in " + lzoPath + "\n");
       } else {
         long startTime = System.currentTimeMillis();
         long fileSize = fileStatus.getLen();
@@ -96,11 +220,15 @@ public class LzoIndexer {
         LOG.info(getNesting(nestingLevel) + "[INDEX] LZO Indexing file " + lzoPath + ", size " + 
                  df_.format(fileSize / (1024.0 * 1024.0 * 1024.0)) + " GB...");
         if (indexSingleFile(fs, lzoPath)) {
+          filesIndexed_.incrementAndGet();
+          bytesIndexed_.addAndGet(fileSize);
           long indexSize = fs.getFileStatus(lzoIndexPath).getLen();
           double elapsed = (System.currentTimeMillis() - startTime) / 1000.0;
           LOG.info(getNesting(nestingLevel) + "Completed LZO Indexing in " + df_.format(elapsed) + " seconds (" + 
                    df_.format(fileSize / (1024.0 * 1024.0 * elapsed)) + " MB/s).  Index size is " + 
                    df_.format(indexSize / 1024.0) + " KB.\n");
+        } else {
+          filesFailed_.incrementAndGet();
         }
       }
     }
@@ -124,25 +252,30 @@ public class LzoIndexer {
 
   /**
    * Run the LzoIndexer on each argument passed via stdin.  The files should be HDFS locations.
+   * Generic options such as -D lzo.indexer.threads=8 come first.
    * @param args arguments
    */
-  public static void main(String[] args) {
+  public static void main(String[] args) throws IOException {
+    Configuration conf = new Configuration();
+    args = new GenericOptionsParser(conf, args).getRemainingArgs();
     if (args.length == 0) {
       printUsage();
       System.exit(1);
     }
 
-    LzoIndexer lzoIndexer = new LzoIndexer(new Configuration());
-    for (String arg: args) {
-      try {
-        lzoIndexer.index(new Path(arg));
-      } catch (IOException e) {
-        LOG.error("Error indexing " + arg, e);
-      }
+    LzoIndexer lzoIndexer = new LzoIndexer(conf);
+    Path[] paths = new Path[args.length];
+    for (int i = 0; i < args.length; i++) {
+      paths[i] = new Path(args[i]);
+    }
+    try {
+      lzoIndexer.index(Arrays.asList(paths));
+    } catch (IOException e) {
+      // Already logged with the path it was for
     }
   }
 
   public static void printUsage() {
-    System.out.println("Usage: hadoop jar /path/to/this/jar com.hadoop.compression.lzo.LzoIndexer <file.lzo | directory> [file2.lzo directory3 ...]");
+    System.out.println("Usage: hadoop jar /path/to/this/jar com.hadoop.compression.lzo.LzoIndexer [-D lzo.indexer.threads=N] <file.lzo | directory> [file2.lzo directory3 ...]");
   }
 }
@@ -18,7 +18,28 @@
 
 package com.hadoop.compression.lzo;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 
 import com.hadoop.compression.lzo.LzopCodec;
 
@@ -44,6 +65,56 @@ public abstract class LzoInputFormatCommon {
    */
   public static final String FULL_LZO_INDEX_SUFFIX =
     LzopCodec.DEFAULT_LZO_EXTENSION + LzoIndex.LZO_INDEX_SUFFIX;
+  /**
+   * The integer property <code>lzo.text.input.format.index.read.threads</code>
+   * is the number of threads the LZO text input format uses to read the
+   * index files of its inputs, and so the most index files it has open at
+   * once. The default of 1 reads them one after another.
+   */
+  public static final String INDEX_READ_THREADS_KEY = "lzo.text.input.format.index.read.threads";
+  /**
+   * Default value of the <code>lzo.text.input.format.index.read.threads</code>
+   * property.
+   */
+  public static final int DEFAULT_INDEX_READ_THREADS = 1;
+  /**
+   * The long property <code>lzo.text.input.format.uncompressed.split.size</code>
+   * makes the LZO text input formats split indexed LZO files into pieces
+   * holding about this many bytes of uncompressed data, rather than by the
+   * usual compressed split size, so that files with very different
+   * compression ratios give maps of similar length. It is off, 0, by default.
+   */
+  public static final String UNCOMPRESSED_SPLIT_SIZE_KEY = "lzo.text.input.format.uncompressed.split.size";
+  /**
+   * Default value of the <code>lzo.text.input.format.uncompressed.split.size</code>
+   * property.
+   */
+  public static final long DEFAULT_UNCOMPRESSED_SPLIT_SIZE = 0;
+  /**
+   * The long property <code>lzo.text.input.format.index.cache.size</code> is
+   * how many bytes of parsed indexes the LZO text input formats keep in the
+   * JVM-wide {@link LzoIndexCache}, so that a process submitting many
+   * jobs over the same files does not read their indexes every time. The
+   * default of 0 turns the cache off. An index takes 8 bytes per block, 16
+   * with uncompressed offsets and 4 more with first record offsets, however
+   * compact its file. The cache is shared, so the size set
+   * by the latest job applies to all of them. The cache notices a rewritten index by
+   * its length and modification time, so it should only be used on file
+   * systems that keep modification times to the millisecond, like HDFS.
+   */
+  public static final String INDEX_CACHE_SIZE_KEY = "lzo.text.input.format.index.cache.size";
+  /**
+   * Default value of the <code>lzo.text.input.format.index.cache.size</code>
+   * property.
+   */
+  public static final long DEFAULT_INDEX_CACHE_SIZE = 0;
+  /**
+   * Like FileInputFormat, a last split may be this much bigger than the
+   * split size rather than leaving a tiny one.
+   */
+  private static final double SPLIT_SLOP = 1.1;
+
+  private static final AtomicInteger poolNumber = new AtomicInteger(1);
 
   /**
    * @param conf the Configuration object
@@ -55,6 +126,246 @@ public abstract class LzoInputFormatCommon {
     return conf.getBoolean(IGNORE_NONLZO_KEY, DEFAULT_IGNORE_NONLZO);
   }
 
+  /**
+   * @param conf the Configuration object
+   * @return the value of the <code>lzo.text.input.format.index.read.threads</code>
+   *         property in <code>conf</code>, or <code>DEFAULT_INDEX_READ_THREADS</code>
+   *         if the property is not set.
+   */
+  public static int getIndexReadThreadsProperty(Configuration conf) {
+    return conf.getInt(INDEX_READ_THREADS_KEY, DEFAULT_INDEX_READ_THREADS);
+  }
+
+  /**
+   * @param conf the Configuration object
+   * @return the value of the <code>lzo.text.input.format.uncompressed.split.size</code>
+   *         property in <code>conf</code>, or <code>DEFAULT_UNCOMPRESSED_SPLIT_SIZE</code>
+   *         if the property is not set.
+   */
+  public static long getUncompressedSplitSizeProperty(Configuration conf) {
+    return conf.getLong(UNCOMPRESSED_SPLIT_SIZE_KEY, DEFAULT_UNCOMPRESSED_SPLIT_SIZE);
+  }
+
+  /**
+   * @param conf the Configuration object
+   * @return the value of the <code>lzo.text.input.format.index.cache.size</code>
+   *         property in <code>conf</code>, or <code>DEFAULT_INDEX_CACHE_SIZE</code>
+   *         if the property is not set.
+   */
+  public static long getIndexCacheSizeProperty(Configuration conf) {
+    return conf.getLong(INDEX_CACHE_SIZE_KEY, DEFAULT_INDEX_CACHE_SIZE);
+  }
+
+  /**
+   * Read the indexes of the given lzo files, on as many threads as the
+   * <code>lzo.text.input.format.index.read.threads</code> property allows.
+   * Files without an index get an empty one, as with
+   * {@link LzoIndex#readIndex(FileSystem, Path)}. Indexes come from the
+   * {@link LzoIndexCache} if <code>lzo.text.input.format.index.cache.size</code>
+   * is set.
+   *
+   * @param conf the Configuration object
+   * @param lzoFiles the lzo files whose indexes to read
+   * @return the index of each file
+   * @throws IOException if any index cannot be read
+   */
+  public static Map<Path, LzoIndex> readIndexes(final Configuration conf,
+      List<Path> lzoFiles) throws IOException {
+    Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+    long cacheSize = getIndexCacheSizeProperty(conf);
+    final LzoIndexCache cache = cacheSize > 0 ? LzoIndexCache.getInstance() : null;
+    if (cache != null) {
+      cache.setMaxBytes(cacheSize);
+    }
+    int numThreads = Math.min(getIndexReadThreadsProperty(conf), lzoFiles.size());
+    if (numThreads <= 1) {
+      for (Path file : lzoFiles) {
+        indexes.put(file, readIndex(conf, cache, file));
+      }
+      return indexes;
+    }
+
+    final String prefix = "lzo-index-reader-" + poolNumber.getAndIncrement() + "-";
+    ExecutorService executor = Executors.newFixedThreadPool(numThreads,
+        new ThreadFactory() {
+          private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+          public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+          }
+        });
+    try {
+      List<Future<LzoIndex>> futures = new ArrayList<Future<LzoIndex>>(lzoFiles.size());
+      for (final Path file : lzoFiles) {
+        futures.add(executor.submit(new Callable<LzoIndex>() {
+          public LzoIndex call() throws IOException {
+            return readIndex(conf, cache, file);
+          }
+        }));
+      }
+      for (int i = 0; i < lzoFiles.size(); i++) {
+        indexes.put(lzoFiles.get(i), futures.get(i).get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted reading lzo indexes");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Error reading lzo index", cause);
+    } finally {
+      executor.shutdownNow();
+    }
+    return indexes;
+  }
+
+  private static LzoIndex readIndex(Configuration conf, LzoIndexCache cache,
+      Path file) throws IOException {
+    FileSystem fs = file.getFileSystem(conf);
+    return cache != null ? cache.get(fs, file) : LzoIndex.readIndex(fs, file);
+  }
+
+  /**
+   * Plan the splits of an indexed lzo file so that each holds about
+   * <code>splitSize</code> bytes of uncompressed data. The size of each block
+   * comes from the index if it has {@link LzoIndex#hasUncompressedOffsets()},
+   * otherwise from the block's header in the file.
+   *
+   * @param fs the file system the file is on
+   * @param file the lzo file
+   * @param index its non-empty index
+   * @param fileLength the length of the file
+   * @param splitSize the uncompressed bytes to aim for in each split
+   * @return the split boundaries: 0, the block positions where splits
+   *         start, then the file length
+   * @throws IOException if a block header cannot be read
+   */
+  public static long[] planUncompressedSplits(FileSystem fs, Path file,
+      LzoIndex index, long fileLength, long splitSize) throws IOException {
+    long[] sizes = getUncompressedBlockSizes(fs, file, index);
+    long remaining = 0;
+    for (long size : sizes) {
+      remaining += size;
+    }
+
+    List<Long> bounds = new ArrayList<Long>();
+    bounds.add(0L);
+    long splitBytes = 0;
+    for (int i = 0; i < sizes.length - 1; i++) {
+      splitBytes += sizes[i];
+      remaining -= sizes[i];
+      if (splitBytes >= splitSize && (double) remaining / splitSize > SPLIT_SLOP - 1) {
+        bounds.add(index.getPosition(i + 1));
+        splitBytes = 0;
+      }
+    }
+    bounds.add(fileLength);
+
+    long[] result = new long[bounds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = bounds.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Get the uncompressed size of each block of an indexed lzo file.
+   */
+  private static long[] getUncompressedBlockSizes(FileSystem fs, Path file,
+      LzoIndex index) throws IOException {
+    int blocks = index.getNumberOfBlocks();
+    long[] sizes = new long[blocks];
+    int first = 0;
+    if (index.hasUncompressedOffsets()) {
+      for (int i = 0; i < blocks - 1; i++) {
+        sizes[i] = index.getUncompressedOffset(i + 1) - index.getUncompressedOffset(i);
+      }
+      // Only the header knows how long the last block is
+      first = blocks - 1;
+    }
+
+    FSDataInputStream in = fs.open(file);
+    try {
+      byte[] header = new byte[4];
+      for (int i = first; i < blocks; i++) {
+        long pos = index.getPosition(i);
+        in.readFully(pos, header, 0, header.length);
+        int size = ((header[0] & 0xFF) << 24) | ((header[1] & 0xFF) << 16) |
+            ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        if (size <= 0) {
+          throw new IOException("Bad block header at " + pos + " in " + file +
+              ", the index may be out of date");
+        }
+        sizes[i] = size;
+      }
+    } finally {
+      in.close();
+    }
+    return sizes;
+  }
+
+  /**
+   * Get the hosts to schedule a split of a file on: every host holding part
+   * of the split, most bytes first, and no more of them than a block has
+   * replicas. A split aligned to lzo blocks rarely matches the file system
+   * block it was cut from, so the hosts of that block may hold little of it.
+   *
+   * @param blocks the block locations of the file
+   * @param start the start of the split
+   * @param end the end of the split
+   * @return the hosts, or none if no block overlaps the split
+   * @throws IOException if the hosts of a block cannot be read
+   */
+  public static String[] getSplitHosts(BlockLocation[] blocks, long start,
+      long end) throws IOException {
+    final Map<String, Long> hostBytes = new LinkedHashMap<String, Long>();
+    int replicas = 0;
+    for (BlockLocation block : blocks) {
+      long overlap = Math.min(end, block.getOffset() + block.getLength()) -
+          Math.max(start, block.getOffset());
+      if (overlap <= 0) {
+        continue;
+      }
+      String[] hosts = block.getHosts();
+      replicas = Math.max(replicas, hosts.length);
+      for (String host : hosts) {
+        Long bytes = hostBytes.get(host);
+        hostBytes.put(host, bytes == null ? overlap : bytes + overlap);
+      }
+    }
+
+    List<String> hosts = new ArrayList<String>(hostBytes.keySet());
+    // Stable, so hosts holding as much keep their block order
+    Collections.sort(hosts, new Comparator<String>() {
+      public int compare(String a, String b) {
+        long diff = hostBytes.get(b) - hostBytes.get(a);
+        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+      }
+    });
+    return hosts.subList(0, Math.min(replicas, hosts.size())).toArray(new String[0]);
+  }
+
+  /**
+   * Look up where the first record starts in the block a split starts at,
+   * so the split's reader can skip straight to it.
+   *
+   * @param index the index of the lzo file
+   * @param splitStart the start of the split, aligned to a block
+   * @return the offset in the block's uncompressed data, or -1 if the split
+   *         starts at the beginning of the file or the index does not know
+   */
+  public static long getFirstRecordOffset(LzoIndex index, long splitStart) {
+    if (splitStart == 0 || !index.hasFirstRecordOffsets()) {
+      return -1;
+    }
+    int block = index.findBlock(splitStart);
+    return block < 0 ? -1 : index.getFirstRecordOffset(block);
+  }
+
   /**
    * Checks if the given filename ends in ".lzo".
    *
@@ -24,6 +24,7 @@ import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.EnumSet;
 
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.CodecPool;
@@ -48,6 +49,77 @@ public class LzopCodec extends LzoCodec {
   /** Latest verion of lzop this should be compatible with */
   public static final int LZOP_COMPAT_VERSION = 0x0940;
   public static final String DEFAULT_LZO_EXTENSION = ".lzo";
+  /**
+   * Number of threads used to compress blocks of an lzop output stream.
+   * The default of 1 compresses on the writing thread.
+   */
+  public static final String LZO_COMPRESSION_THREADS_KEY = "io.compression.codec.lzo.compression.threads";
+  public static final int DEFAULT_LZO_COMPRESSION_THREADS = 1;
+  /**
+   * Number of blocks an lzop input stream may read and decompress ahead of
+   * the consumer, counting the block being consumed. The default of 1
+   * decompresses on the reading thread.
+   */
+  public static final String LZO_READAHEAD_BLOCKS_KEY = "io.compression.codec.lzo.readahead.blocks";
+  public static final int DEFAULT_LZO_READAHEAD_BLOCKS = 1;
+  /**
+   * Number of threads decompressing blocks that are read ahead.
+   */
+  public static final String LZO_DECOMPRESSION_THREADS_KEY = "io.compression.codec.lzo.decompression.threads";
+  public static final int DEFAULT_LZO_DECOMPRESSION_THREADS = 2;
+  /**
+   * Percentage of blocks whose checksums an lzop input stream computes and
+   * verifies. 100 verifies every block, 0 none, and anything in between a
+   * sample of about that many picked by the blocks' positions in the file,
+   * so that a block is sampled or not however the file is split.
+   * Blocks that are not verified are not checksummed at all.
+   */
+  public static final String LZO_CHECKSUM_VERIFY_PERCENT_KEY = "io.compression.codec.lzo.checksum.verify.percent";
+  public static final int DEFAULT_LZO_CHECKSUM_VERIFY_PERCENT = 100;
+  /**
+   * Format of the index files written for lzop files, either
+   * {@link LzoIndex#VERSION_1} or the more compact {@link LzoIndex#VERSION_2}.
+   * Version 2 indexes can only be read by this release and later ones, so
+   * the default stays at version 1.
+   */
+  public static final String LZO_INDEX_VERSION_KEY = "io.compression.codec.lzo.index.version";
+  public static final int DEFAULT_LZO_INDEX_VERSION = LzoIndex.VERSION_1;
+  /**
+   * Whether index files also record the uncompressed size of each block,
+   * which {@link SeekableLzopInputStream} needs. Requires index version 2.
+   */
+  public static final String LZO_INDEX_UNCOMPRESSED_SIZES_KEY = "io.compression.codec.lzo.index.uncompressed.sizes";
+  public static final boolean DEFAULT_LZO_INDEX_UNCOMPRESSED_SIZES = false;
+  /**
+   * Whether index files also record where the first record of each block
+   * starts, so that split readers can skip to it instead of reading and
+   * discarding a line. Requires index version 2.
+   */
+  public static final String LZO_INDEX_FIRST_RECORD_OFFSETS_KEY = "io.compression.codec.lzo.index.first.record.offsets";
+  public static final boolean DEFAULT_LZO_INDEX_FIRST_RECORD_OFFSETS = false;
+  /**
+   * Whether lzop files also carry their index at the end, after the end of
+   * stream marker, so that they are splittable without an index file. The
+   * embedded index is always version 2 and records the fields the index
+   * flags ask for. Releases before this one cannot read it.
+   */
+  public static final String LZO_INDEX_EMBEDDED_KEY = "io.compression.codec.lzo.index.embedded";
+  public static final boolean DEFAULT_LZO_INDEX_EMBEDDED = false;
+  /**
+   * Checksums written with each block of lzop output: "none", or
+   * "adler32" or "crc32" of both the uncompressed and the compressed data,
+   * as lzop writes by default and with --crc32. They are computed in the
+   * call that compresses the block.
+   */
+  public static final String LZO_CHECKSUM_KEY = "io.compression.codec.lzo.checksum";
+  public static final String DEFAULT_LZO_CHECKSUM = "none";
+  /**
+   * Whether lzop output streams sample each block before compressing it,
+   * and store the blocks that look incompressible, such as images or
+   * nested gzip, without running the compressor on them.
+   */
+  public static final String LZO_INCOMPRESSIBLE_SAMPLING_KEY = "io.compression.codec.lzo.incompressible.sampling";
+  public static final boolean DEFAULT_LZO_INCOMPRESSIBLE_SAMPLING = false;
 
   /**
    * CodecPool.getCompressor() that takes conf is supported only in CDH3.
@@ -92,24 +164,47 @@ public class LzopCodec extends LzoCodec {
 
   public CompressionOutputStream createIndexedOutputStream(OutputStream out,
         DataOutputStream indexOut, Compressor compressor) throws IOException {
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
+    checkCompressorAvailable(getConf());
     LzoCompressor.CompressionStrategy strategy = LzoCompressor.CompressionStrategy.valueOf(
           getConf().get(LZO_COMPRESSOR_KEY, LzoCompressor.CompressionStrategy.LZO1X_1.name()));
     int bufferSize = getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE);
-    return new LzopOutputStream(out, indexOut, compressor, bufferSize, strategy);
+    int numThreads = getConf().getInt(LZO_COMPRESSION_THREADS_KEY, DEFAULT_LZO_COMPRESSION_THREADS);
+    String checksum = getChecksum(getConf());
+    EnumSet<DChecksum> dflags = EnumSet.noneOf(DChecksum.class);
+    EnumSet<CChecksum> cflags = EnumSet.noneOf(CChecksum.class);
+    if (checksum.equals("adler32")) {
+      dflags.add(DChecksum.F_ADLER32D);
+      cflags.add(CChecksum.F_ADLER32C);
+    } else if (checksum.equals("crc32")) {
+      dflags.add(DChecksum.F_CRC32D);
+      cflags.add(CChecksum.F_CRC32C);
+    } else if (!checksum.equals("none")) {
+      throw new IllegalArgumentException("Unknown lzo checksum " + checksum +
+          " in " + LZO_CHECKSUM_KEY);
+    }
+    LzopOutputStream.Options options = new LzopOutputStream.Options()
+        .setThreads(numThreads)
+        .setIndexFormat(getIndexVersion(getConf()), getIndexFlags(getConf()))
+        .setChecksums(dflags, cflags);
+    LzopOutputStream lzopOut = new LzopOutputStream(out, indexOut, compressor, bufferSize,
+        strategy, options);
+    if (isIndexEmbedded(getConf())) {
+      lzopOut.setEmbeddedIndex(getIndexFlags(getConf()));
+    }
+    lzopOut.setIncompressibleSampling(isIncompressibleSampling(getConf()));
+    return lzopOut;
   }
 
   @Override
   public CompressionInputStream createInputStream(InputStream in,
           Decompressor decompressor) throws IOException {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
-    return new LzopInputStream(in, decompressor,
-            getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE));
+    // lzop is always LZO1X, which can be decompressed without native-lzo
+    LzopInputStream lzopIn = new LzopInputStream(in, decompressor,
+            getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE),
+            getConf().getInt(LZO_READAHEAD_BLOCKS_KEY, DEFAULT_LZO_READAHEAD_BLOCKS),
+            getConf().getInt(LZO_DECOMPRESSION_THREADS_KEY, DEFAULT_LZO_DECOMPRESSION_THREADS));
+    lzopIn.setChecksumVerifyPercent(getChecksumVerifyPercent(getConf()));
+    return lzopIn;
   }
 
   // Previous versions of the API accidentally added/removed compressor/decompressors from the pool
@@ -151,19 +246,13 @@ public class LzopCodec extends LzoCodec {
 
   @Override
   public Class<? extends Decompressor> getDecompressorType() {
-    // Ensure native-lzo library is loaded & initialized
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
     return LzopDecompressor.class;
   }
 
   @Override
   public Decompressor createDecompressor() {
-    if (!isNativeLzoLoaded(getConf())) {
-      throw new RuntimeException("native-lzo library not available");
-    }
-    return new LzopDecompressor(getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE));
+    return new LzopDecompressor(getConf().getInt(LZO_BUFFER_SIZE_KEY, DEFAULT_LZO_BUFFER_SIZE),
+        isPureJava(getConf()));
   }
 
   private Compressor getCompressor() {
@@ -180,4 +269,92 @@ public class LzopCodec extends LzoCodec {
   public String getDefaultExtension() {
     return DEFAULT_LZO_EXTENSION;
   }
+
+  public static void setCompressionThreads(Configuration conf, int numThreads) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setInt(LZO_COMPRESSION_THREADS_KEY, numThreads);
+  }
+
+  public static void setReadAhead(Configuration conf, int readAheadBlocks,
+      int numThreads) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setInt(LZO_READAHEAD_BLOCKS_KEY, readAheadBlocks);
+    conf.setInt(LZO_DECOMPRESSION_THREADS_KEY, numThreads);
+  }
+
+  public static int getChecksumVerifyPercent(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getInt(LZO_CHECKSUM_VERIFY_PERCENT_KEY, DEFAULT_LZO_CHECKSUM_VERIFY_PERCENT);
+  }
+
+  public static void setChecksumVerifyPercent(Configuration conf, int percent) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setInt(LZO_CHECKSUM_VERIFY_PERCENT_KEY, percent);
+  }
+
+  public static int getIndexVersion(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getInt(LZO_INDEX_VERSION_KEY, DEFAULT_LZO_INDEX_VERSION);
+  }
+
+  public static void setIndexVersion(Configuration conf, int version) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setInt(LZO_INDEX_VERSION_KEY, version);
+  }
+
+  /**
+   * @return the {@link LzoIndex} flags for the optional per-block fields
+   *         that <code>conf</code> asks index files to record
+   */
+  public static int getIndexFlags(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    int flags = 0;
+    if (conf.getBoolean(LZO_INDEX_UNCOMPRESSED_SIZES_KEY, DEFAULT_LZO_INDEX_UNCOMPRESSED_SIZES)) {
+      flags |= LzoIndex.FLAG_UNCOMPRESSED_SIZES;
+    }
+    if (conf.getBoolean(LZO_INDEX_FIRST_RECORD_OFFSETS_KEY, DEFAULT_LZO_INDEX_FIRST_RECORD_OFFSETS)) {
+      flags |= LzoIndex.FLAG_FIRST_RECORD_OFFSETS;
+    }
+    return flags;
+  }
+
+  public static void setIndexUncompressedSizes(Configuration conf, boolean uncompressedSizes) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setBoolean(LZO_INDEX_UNCOMPRESSED_SIZES_KEY, uncompressedSizes);
+  }
+
+  public static void setIndexFirstRecordOffsets(Configuration conf, boolean firstRecordOffsets) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setBoolean(LZO_INDEX_FIRST_RECORD_OFFSETS_KEY, firstRecordOffsets);
+  }
+
+  public static String getChecksum(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.get(LZO_CHECKSUM_KEY, DEFAULT_LZO_CHECKSUM).trim().toLowerCase();
+  }
+
+  public static void setChecksum(Configuration conf, String checksum) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.set(LZO_CHECKSUM_KEY, checksum);
+  }
+
+  public static boolean isIncompressibleSampling(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getBoolean(LZO_INCOMPRESSIBLE_SAMPLING_KEY, DEFAULT_LZO_INCOMPRESSIBLE_SAMPLING);
+  }
+
+  public static void setIncompressibleSampling(Configuration conf, boolean sample) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setBoolean(LZO_INCOMPRESSIBLE_SAMPLING_KEY, sample);
+  }
+
+  public static boolean isIndexEmbedded(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getBoolean(LZO_INDEX_EMBEDDED_KEY, DEFAULT_LZO_INDEX_EMBEDDED);
+  }
+
+  public static void setIndexEmbedded(Configuration conf, boolean embedded) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setBoolean(LZO_INDEX_EMBEDDED_KEY, embedded);
+  }
 }
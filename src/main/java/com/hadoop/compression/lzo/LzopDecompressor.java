@@ -19,6 +19,8 @@
 package com.hadoop.compression.lzo;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.EnumMap;
 import java.util.EnumSet;
 import java.util.zip.Checksum;
@@ -27,6 +29,10 @@ public class LzopDecompressor extends LzoDecompressor {
 
   private final EnumMap<DChecksum,Checksum> chkDMap = new EnumMap<DChecksum,Checksum>(DChecksum.class);
   private final EnumMap<CChecksum,Checksum> chkCMap = new EnumMap<CChecksum,Checksum>(CChecksum.class);
+  private byte[] checksumBuf = null;
+  // Native checksums asked for by the header flags
+  private int nativeChecksums = 0;
+  private boolean currentBlockChecksummed = true;
 
   /**
    * Create an LzoDecompressor with LZO1X strategy (the only lzo algorithm
@@ -37,6 +43,16 @@ public class LzopDecompressor extends LzoDecompressor {
     super(LzoDecompressor.CompressionStrategy.LZO1X_SAFE, bufferSize);
   }
 
+  /**
+   * Create an LzoDecompressor with LZO1X strategy.
+   * @param bufferSize The buffer size
+   * @param pureJava Whether to decompress in Java rather than with the
+   *        native-lzo library
+   */
+  public LzopDecompressor(int bufferSize, boolean pureJava) {
+    super(LzoDecompressor.CompressionStrategy.LZO1X_SAFE, bufferSize, pureJava);
+  }
+
   /**
    * Given a set of decompressed and compressed checksums,
    * @param dflags The decompressed flags
@@ -44,18 +60,69 @@ public class LzopDecompressor extends LzoDecompressor {
    */
   public void initHeaderFlags(EnumSet<DChecksum> dflags,
       EnumSet<CChecksum> cflags) {
+    nativeChecksums = 0;
     try {
       for (DChecksum flag : dflags) {
         chkDMap.put(flag, flag.getChecksumClass().newInstance());
+        nativeChecksums |= nativeChecksum(flag);
       }
       for (CChecksum flag : cflags) {
         chkCMap.put(flag, flag.getChecksumClass().newInstance());
+        nativeChecksums |= nativeChecksum(flag);
       }
     } catch (InstantiationException e) {
       throw new RuntimeException("Internal error", e);
     } catch (IllegalAccessException e) {
       throw new RuntimeException("Internal error", e);
     }
+    // Compressed blocks are checksummed by the native decompress call,
+    // stored ones still in Java.
+    currentBlockChecksummed = true;
+    if (!isPureJava()) {
+      setNativeChecksums(nativeChecksums);
+    }
+  }
+
+  /**
+   * Set whether the checksums of the current block are computed. Blocks
+   * whose checksums are not going to be verified can skip the work.
+   * @param checksummed Whether to update the checksums
+   */
+  public synchronized void setCurrentBlockChecksummed(boolean checksummed) {
+    if (checksummed != currentBlockChecksummed && !isPureJava()) {
+      setNativeChecksums(checksummed ? nativeChecksums : 0);
+    }
+    currentBlockChecksummed = checksummed;
+  }
+
+  public boolean isCurrentBlockChecksummed() {
+    return currentBlockChecksummed;
+  }
+
+  static int nativeChecksum(DChecksum flag) {
+    return flag == DChecksum.F_ADLER32D ? CHECKSUM_UNCOMPRESSED_ADLER32
+        : CHECKSUM_UNCOMPRESSED_CRC32;
+  }
+
+  static int nativeChecksum(CChecksum flag) {
+    return flag == CChecksum.F_ADLER32C ? CHECKSUM_COMPRESSED_ADLER32
+        : CHECKSUM_COMPRESSED_CRC32;
+  }
+
+  /**
+   * Whether the checksums of the current block are computed natively:
+   * it is compressed, and not decompressed in Java.
+   */
+  private boolean isChecksummedNatively() {
+    return !isPureJava() && !isCurrentBlockUncompressed();
+  }
+
+  /**
+   * Whether the checksums of the current block are left to the overrides
+   * here.
+   */
+  private boolean isChecksummedInJava() {
+    return currentBlockChecksummed && !isChecksummedNatively();
   }
 
   /**
@@ -91,6 +158,9 @@ public class LzopDecompressor extends LzoDecompressor {
   public synchronized void resetChecksum() {
     for (Checksum chk : chkDMap.values()) chk.reset();
     for (Checksum chk : chkCMap.values()) chk.reset();
+    if (!isPureJava()) {
+      resetNativeChecksums();
+    }
   }
 
   /**
@@ -101,6 +171,9 @@ public class LzopDecompressor extends LzoDecompressor {
    * @return Whether the checksum is correct
    */
   public synchronized boolean verifyDChecksum(DChecksum typ, int checksum) {
+    if (areNativeChecksumsUpdated()) {
+      return checksum == getNativeChecksum(nativeChecksum(typ));
+    }
     return (checksum == (int)chkDMap.get(typ).getValue());
   }
 
@@ -112,12 +185,15 @@ public class LzopDecompressor extends LzoDecompressor {
    * @return Whether the checksum is correct
    */
   public synchronized boolean verifyCChecksum(CChecksum typ, int checksum) {
+    if (areNativeChecksumsUpdated()) {
+      return checksum == getNativeChecksum(nativeChecksum(typ));
+    }
     return (checksum == (int)chkCMap.get(typ).getValue());
   }
 
   @Override
   public synchronized void setInput(byte[] b, int off, int len) {
-    if (!isCurrentBlockUncompressed()) {
+    if (!isCurrentBlockUncompressed() && isChecksummedInJava()) {
       // If the current block is uncompressed, there was no compressed
       // checksum and no compressed data, so nothing to update.
       for (Checksum chk : chkCMap.values()) chk.update(b, off, len);
@@ -129,9 +205,53 @@ public class LzopDecompressor extends LzoDecompressor {
   public synchronized int decompress(byte[] b, int off, int len)
   throws IOException {
     int ret = super.decompress(b, off, len);
-    if (ret > 0) {
+    if (ret > 0 && isChecksummedInJava()) {
       for (Checksum chk : chkDMap.values()) chk.update(b, off, ret);
     }
     return ret;
   }
+
+  /**
+   * Decompress a whole block between direct buffers as
+   * {@link LzoDecompressor#decompress(ByteBuffer, ByteBuffer)} does,
+   * updating the checksums registered for this decompressor.
+   */
+  @Override
+  public synchronized int decompress(ByteBuffer src, ByteBuffer dst)
+  throws IOException {
+    if (!isChecksummedInJava()) {
+      return super.decompress(src, dst);
+    }
+    if (!isCurrentBlockUncompressed()) {
+      updateChecksums(chkCMap.values(), src.duplicate());
+    }
+    ByteBuffer out = dst.duplicate();
+    int ret = super.decompress(src, dst);
+    out.limit(out.position() + ret);
+    updateChecksums(chkDMap.values(), out);
+    return ret;
+  }
+
+  private void updateChecksums(Collection<Checksum> checksums, ByteBuffer b) {
+    if (checksums.isEmpty() || !b.hasRemaining()) {
+      return;
+    }
+    if (b.hasArray()) {
+      for (Checksum chk : checksums) {
+        chk.update(b.array(), b.arrayOffset() + b.position(), b.remaining());
+      }
+      return;
+    }
+    // Checksum only takes arrays, so go through a small scratch buffer
+    if (checksumBuf == null) {
+      checksumBuf = new byte[64 * 1024];
+    }
+    while (b.hasRemaining()) {
+      int len = Math.min(checksumBuf.length, b.remaining());
+      b.get(checksumBuf, 0, len);
+      for (Checksum chk : checksums) {
+        chk.update(checksumBuf, 0, len);
+      }
+    }
+  }
 }
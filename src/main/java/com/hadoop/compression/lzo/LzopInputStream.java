@@ -19,6 +19,7 @@
 package com.hadoop.compression.lzo;
 
 import java.io.EOFException;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Arrays;
@@ -30,6 +31,7 @@ import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.Seekable;
 import org.apache.hadoop.io.compress.BlockDecompressorStream;
 import org.apache.hadoop.io.compress.Decompressor;
 
@@ -43,15 +45,50 @@ public class LzopInputStream extends BlockDecompressorStream {
   private final byte[] buf = new byte[9];
   private final EnumMap<DChecksum,Integer> dcheck = new EnumMap<DChecksum,Integer>(DChecksum.class);
   private final EnumMap<CChecksum,Integer> ccheck = new EnumMap<CChecksum,Integer>(CChecksum.class);
+  // Checksums of no data, expected again after a block is discarded
+  private final EnumMap<DChecksum,Integer> dcheckEmpty = new EnumMap<DChecksum,Integer>(DChecksum.class);
+  private final EnumMap<CChecksum,Integer> ccheckEmpty = new EnumMap<CChecksum,Integer>(CChecksum.class);
 
   private int noUncompressedBytes = 0;
-  private int noCompressedBytes = 0;
+  private long noCompressedBytes = 0;
   private int uncompressedBlockSize = 0;
 
+  private final int readAheadBlocks;
+  private final int numThreads;
+  private ParallelLzoBlockDecompressor readAhead = null;
+  private ParallelLzoBlockDecompressor.Block currentBlock = null;
+  private long readAheadLimit = Long.MAX_VALUE;
+
+  private int checksumVerifyPercent = LzopCodec.DEFAULT_LZO_CHECKSUM_VERIFY_PERCENT;
+  // Where the first block starts in the file, just past the header
+  private final long firstBlockPosition;
+  // Where the block being read starts in the file, which picks whether it
+  // is in the checksum sample
+  private long blockPosition = 0;
+  private boolean verifyCurrentBlock = true;
+  private long blocksVerified = 0;
+  private long blocksSkipped = 0;
+
   public LzopInputStream(InputStream in, Decompressor decompressor,
       int bufferSize) throws IOException {
+    this(in, decompressor, bufferSize, 0, 1);
+  }
+
+  /**
+   * Create a stream that, when <code>readAheadBlocks</code> is greater than
+   * one, reads up to that many blocks ahead on a background thread and
+   * decompresses them on <code>numThreads</code> worker threads. Reading
+   * ahead starts with the first read, so the underlying stream may still be
+   * repositioned after construction.
+   */
+  public LzopInputStream(InputStream in, Decompressor decompressor,
+      int bufferSize, int readAheadBlocks, int numThreads) throws IOException {
     super(in, decompressor, bufferSize);
-    readHeader(in);
+    this.readAheadBlocks = readAheadBlocks;
+    this.numThreads = Math.max(1, numThreads);
+    CountingInputStream header = new CountingInputStream(in);
+    readHeader(header);
+    firstBlockPosition = header.bytesRead;
   }
 
   /**
@@ -65,7 +102,7 @@ public class LzopInputStream extends BlockDecompressorStream {
    * @param off offset from the buffer
    * @param len the length of bytes to read
    */
-  private static void readFully( InputStream in, byte buf[],
+  static void readFully( InputStream in, byte buf[],
       int off, int len ) throws IOException, EOFException {
     int toRead = len;
     while ( toRead > 0 ) {
@@ -82,7 +119,7 @@ public class LzopInputStream extends BlockDecompressorStream {
    * Read len bytes into buf, st LSB of int returned is the last byte of the
    * first word read.
    */
-  private static int readInt(InputStream in, byte[] buf, int len)
+  static int readInt(InputStream in, byte[] buf, int len)
   throws IOException {
     readFully(in, buf, 0, len);
     int ret = (0xFF & buf[0]) << 24;
@@ -166,6 +203,8 @@ public class LzopInputStream extends BlockDecompressorStream {
     } catch (IllegalAccessException e) {
       throw new RuntimeException("Internal error", e);
     }
+    dcheckEmpty.putAll(dcheck);
+    ccheckEmpty.putAll(ccheck);
     ((LzopDecompressor)decompressor).initHeaderFlags(dflags, cflags);
     boolean useCRC32 = 0 != (hitem & 0x00001000);   // F_H_CRC32
     boolean extraField = 0 != (hitem & 0x00000040); // F_H_EXTRA_FIELD
@@ -214,6 +253,9 @@ public class LzopInputStream extends BlockDecompressorStream {
    * those recorded by the decomrpessor.
    */
   private void verifyChecksums() throws IOException {
+    if (!verifyCurrentBlock) {
+      return;
+    }
     LzopDecompressor ldecompressor = ((LzopDecompressor)decompressor);
     for (Map.Entry<DChecksum,Integer> chk : dcheck.entrySet()) {
       if (!ldecompressor.verifyDChecksum(chk.getKey(), chk.getValue())) {
@@ -234,9 +276,13 @@ public class LzopInputStream extends BlockDecompressorStream {
     if (eof) {
       return -1;
     }
+    if (readAheadBlocks > 1) {
+      return readAheadDecompress(b, off, len);
+    }
 
     // Check if we are the beginning of a block
     if (noUncompressedBytes == uncompressedBlockSize) {
+      blockPosition = getPosition();
       // Get original data size
       try {
         byte[] tempBuf = new byte[4];
@@ -300,6 +346,9 @@ public class LzopInputStream extends BlockDecompressorStream {
     // In this case, the compressed size and the uncompressed size in the header
     // are identical, and there is NO compressed checksum written.
     ldecompressor.setCurrentBlockUncompressed(compressedLen >= uncompressedBlockSize);
+    verifyCurrentBlock = isBlockVerified(blockPosition, checksumVerifyPercent);
+    countBlock(verifyCurrentBlock);
+    ldecompressor.setCurrentBlockChecksummed(verifyCurrentBlock);
 
     for (DChecksum chk : dcheck.keySet()) {
       dcheck.put(chk, readInt(in, buf, 4));
@@ -328,12 +377,162 @@ public class LzopInputStream extends BlockDecompressorStream {
     return compressedLen;
   }
 
+  /**
+   * Copy out data from blocks decompressed ahead of time. Compressed bytes
+   * are counted as each block is reached, so that the count matches what a
+   * serial read would report rather than how far the reader has got.
+   */
+  private int readAheadDecompress(byte[] b, int off, int len) throws IOException {
+    if (readAhead == null) {
+      readAhead = new ParallelLzoBlockDecompressor(in, dflags, cflags,
+          ((LzopDecompressor)decompressor).getDirectBufferSize(),
+          readAheadBlocks, numThreads,
+          ((LzopDecompressor)decompressor).isPureJava(), readAheadLimit,
+          getPosition(), checksumVerifyPercent);
+    }
+    while (currentBlock == null || !currentBlock.uncompressed.hasRemaining()) {
+      if (currentBlock != null) {
+        readAhead.recycle(currentBlock);
+        currentBlock = null;
+      }
+      ParallelLzoBlockDecompressor.Block block;
+      try {
+        block = readAhead.take();
+      } catch (IOException e) {
+        LOG.warn("IOException reading ahead; likely LZO corruption.", e);
+        throw e;
+      }
+      noCompressedBytes += block.compressedBytes;
+      if (block.eof) {
+        eof = true;
+        return -1;
+      }
+      countBlock(block.verified);
+      currentBlock = block;
+    }
+    int n = Math.min(len, currentBlock.uncompressed.remaining());
+    currentBlock.uncompressed.get(b, off, n);
+    return n;
+  }
+
+  /**
+   * Only read ahead up to the block starting <code>compressedBytes</code>
+   * into the stream, as counted by {@link #getCompressedBytesRead()}.
+   * Blocks after it are read and decompressed when they are reached, so a
+   * reader that will stop soon after that point does not make the stream
+   * decompress blocks it will never use. Has no effect unless reading ahead.
+   *
+   * @param compressedBytes the offset of the last block to read ahead to
+   */
+  public void setReadAheadLimit(long compressedBytes) {
+    readAheadLimit = compressedBytes;
+    if (readAhead != null) {
+      readAhead.setLimit(compressedBytes);
+    }
+  }
+
+  /**
+   * Only compute and verify the checksums of <code>percent</code> percent
+   * of the blocks, see {@link LzopCodec#LZO_CHECKSUM_VERIFY_PERCENT_KEY}.
+   * Must be called before the first read.
+   *
+   * @param percent from 0, verifying nothing, to 100, verifying every block
+   */
+  public void setChecksumVerifyPercent(int percent) {
+    if (percent < 0 || percent > 100) {
+      throw new IllegalArgumentException("Checksum verify percentage " + percent +
+          " is not between 0 and 100");
+    }
+    checksumVerifyPercent = percent;
+  }
+
+  /**
+   * Whether the block starting at <code>position</code> in its file is in
+   * the checksum sample. Every block is in it at 100 percent and none at 0.
+   * In between, about <code>percent</code> percent of the blocks are, picked
+   * by a hash of their positions, so that a block is in the sample or not
+   * whichever split or stream reads it.
+   */
+  static boolean isBlockVerified(long position, int percent) {
+    long hash = position * 0x9E3779B97F4A7C15L;
+    // The top 32 bits of the hash scaled down to [0, 100)
+    return (((hash >>> 32) * 100) >>> 32) < percent;
+  }
+
+  /**
+   * @return where the next block starts in the file. Only a seekable stream
+   *         can have been moved to another block, so other streams are
+   *         still where the blocks read so far have brought them.
+   */
+  private long getPosition() throws IOException {
+    if (in instanceof Seekable) {
+      return ((Seekable) in).getPos();
+    }
+    return firstBlockPosition + noCompressedBytes;
+  }
+
+  private void countBlock(boolean verified) {
+    if (verified) {
+      blocksVerified++;
+    } else {
+      blocksSkipped++;
+    }
+  }
+
+  /**
+   * @return the number of blocks reached whose checksums were verified
+   */
+  public long getBlocksVerified() {
+    return blocksVerified;
+  }
+
+  /**
+   * @return the number of blocks reached whose checksums were not verified
+   */
+  public long getBlocksSkipped() {
+    return blocksSkipped;
+  }
+
+  /**
+   * Drop whatever is left of the current block, so that the next read
+   * starts at a block header wherever the underlying stream has been moved
+   * to. Only for streams that do not read ahead.
+   */
+  void discardBlock() {
+    if (readAheadBlocks > 1) {
+      throw new IllegalStateException("Cannot discard blocks that are read ahead");
+    }
+    decompressor.reset();
+    ((LzopDecompressor)decompressor).resetChecksum();
+    dcheck.putAll(dcheckEmpty);
+    ccheck.putAll(ccheckEmpty);
+    noUncompressedBytes = 0;
+    uncompressedBlockSize = 0;
+    eof = false;
+  }
+
+  /**
+   * Bytes of compressed data, including block headers, consumed so far.
+   * When reading ahead this counts only blocks that have been reached.
+   */
   public long getCompressedBytesRead() {
     return noCompressedBytes;
   }
 
   @Override
   public void close() throws IOException {
+    if (readAheadBlocks > 1) {
+      // The reader must be done with the stream before it is closed
+      try {
+        if (readAhead != null) {
+          readAhead.shutdown();
+          readAhead = null;
+        }
+      } finally {
+        super.close();
+      }
+      return;
+    }
     byte[] b = new byte[4096];
     while (!decompressor.finished()) {
       decompressor.decompress(b, 0, b.length);
@@ -347,4 +546,37 @@ public class LzopInputStream extends BlockDecompressorStream {
       LOG.warn("Incorrect LZO file format: file did not end with four trailing zeroes.", e);
     }
   }
+
+  /**
+   * Counts the bytes of the header as it is read.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    public CountingInputStream(InputStream in) {
+      super(in);
+    }
+
+    long bytesRead = 0;
+
+    public int read() throws IOException {
+      int b = in.read();
+      if (b >= 0) {
+        bytesRead++;
+      }
+      return b;
+    }
+
+    public int read(byte[] b, int off, int len) throws IOException {
+      int n = in.read(b, off, len);
+      if (n > 0) {
+        bytesRead += n;
+      }
+      return n;
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      bytesRead += skipped;
+      return skipped;
+    }
+  }
 }
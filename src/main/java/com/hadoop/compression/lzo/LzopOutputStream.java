@@ -22,6 +22,8 @@ import java.io.DataOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
 import java.util.zip.Adler32;
 
 import org.apache.hadoop.io.DataOutputBuffer;
@@ -32,7 +34,25 @@ public class LzopOutputStream extends CompressorStream {
 
   final int MAX_INPUT_SIZE;
   protected DataOutputStream indexOut;
+  private LzoIndexWriter indexWriter;
   private CountingOutputStream cout;
+  // The index written into the file itself at close, if asked for.
+  private DataOutputBuffer embeddedIndexOut;
+  private LzoIndexWriter embeddedIndexWriter;
+  private boolean dataWritten;
+  // Checksums written with each block
+  private final EnumSet<DChecksum> dflags;
+  private final EnumSet<CChecksum> cflags;
+  private boolean sampleBlocks = false;
+  private long blocksCompressed = 0;
+  private long blocksStored = 0;
+  private long blocksStoredBySampling = 0;
+
+  // Only set when compressing on more than one thread.
+  private ParallelLzoBlockCompressor parallel;
+  // Data waiting to be compressed, held in buffers that the compressor
+  // works on in place: direct ones, or heap ones when it is pure Java.
+  private ParallelLzoBlockCompressor.Block currentBlock;
 
   /**
    * Write an lzop-compatible header to the OutputStream provided.
@@ -44,10 +64,27 @@ public class LzopOutputStream extends CompressorStream {
   protected static void writeLzopHeader(OutputStream out,
           LzoCompressor.CompressionStrategy strategy,
           int compressionLevel) throws IOException {
+    writeLzopHeader(out, strategy, compressionLevel, 0);
+  }
+
+  /**
+   * Write an lzop-compatible header with the given flags, such as the
+   * header masks of the block checksums.
+   * @param out OutputStream
+   * @param strategy The lzo compression algorithm
+   * @param compressionLevel the lzo compression level
+   * @param flags the lzop header flags
+   * @throws IOException if lzop strategy is incompatible
+   */
+  protected static void writeLzopHeader(OutputStream out,
+          LzoCompressor.CompressionStrategy strategy,
+          int compressionLevel, int flags) throws IOException {
     DataOutputBuffer dob = new DataOutputBuffer();
     try {
       dob.writeShort(LzopCodec.LZOP_VERSION);
-      dob.writeShort(LzoCompressor.LZO_LIBRARY_VERSION);
+      // Without native-lzo, the version the pure Java compressor follows
+      dob.writeShort(LzoCompressor.LZO_LIBRARY_VERSION > 0
+          ? LzoCompressor.LZO_LIBRARY_VERSION : Lzo1xCompressor.LZO_LIBRARY_VERSION);
       dob.writeShort(LzopCodec.LZOP_COMPAT_VERSION);
       switch (strategy) {
       case LZO1X_1:
@@ -65,7 +102,7 @@ public class LzopOutputStream extends CompressorStream {
       default:
         throw new IOException("Incompatible lzop strategy: " + strategy);
       }
-      dob.writeInt(0);                                    // all flags 0
+      dob.writeInt(flags);                                // flags
       dob.writeInt(0x81A4);                               // mode
       dob.writeInt((int)(System.currentTimeMillis() / 1000)); // mtime
       dob.writeInt(0);                                    // gmtdiff ignored
@@ -81,6 +118,65 @@ public class LzopOutputStream extends CompressorStream {
     }
   }
 
+  /**
+   * Settings of an lzop output stream beyond the compressor and its buffer
+   * size. By default blocks are compressed on the writing thread, the index,
+   * if any, is written in the {@link LzoIndex#VERSION_1} format, and blocks
+   * have no checksums.
+   */
+  public static class Options {
+    private int numThreads = 1;
+    private int indexVersion = LzoIndex.VERSION_1;
+    private int indexFlags = 0;
+    private EnumSet<DChecksum> dflags = EnumSet.noneOf(DChecksum.class);
+    private EnumSet<CChecksum> cflags = EnumSet.noneOf(CChecksum.class);
+
+    /**
+     * Compress full blocks on <code>numThreads</code> worker threads. The
+     * blocks are written out in order, so the output and index are
+     * identical to those of a single threaded stream given the same writes.
+     * With more than one thread the stream's compressor is only used as a
+     * template for the workers' compressors.
+     *
+     * @param numThreads number of compression threads; 1 compresses on the
+     *        writing thread
+     */
+    public Options setThreads(int numThreads) {
+      this.numThreads = numThreads;
+      return this;
+    }
+
+    /**
+     * Write the index, if any, in the given format, recording the given
+     * optional fields for each block.
+     *
+     * @param indexVersion {@link LzoIndex#VERSION_1} or
+     *        {@link LzoIndex#VERSION_2}
+     * @param indexFlags {@link LzoIndex} flags, such as
+     *        {@link LzoIndex#FLAG_UNCOMPRESSED_SIZES}
+     */
+    public Options setIndexFormat(int indexVersion, int indexFlags) {
+      this.indexVersion = indexVersion;
+      this.indexFlags = indexFlags;
+      return this;
+    }
+
+    /**
+     * Write the given checksums of each block, as lzop does. The compressor
+     * computes them in the same call that compresses the block, natively
+     * while the data is still in cache.
+     *
+     * @param dflags checksums of the uncompressed data of each block
+     * @param cflags checksums of the compressed data of each block that
+     *        is stored compressed
+     */
+    public Options setChecksums(EnumSet<DChecksum> dflags, EnumSet<CChecksum> cflags) {
+      this.dflags = EnumSet.copyOf(dflags);
+      this.cflags = EnumSet.copyOf(cflags);
+      return this;
+    }
+  }
+
   public LzopOutputStream(OutputStream out, Compressor compressor,
           int bufferSize, LzoCompressor.CompressionStrategy strategy)
   throws IOException {
@@ -91,30 +187,145 @@ public class LzopOutputStream extends CompressorStream {
       Compressor compressor, int bufferSize,
       LzoCompressor.CompressionStrategy strategy)
       throws IOException {
+    this(out, indexOut, compressor, bufferSize, strategy, new Options());
+  }
+
+  /**
+   * Create an lzop output stream with the given {@link Options}.
+   *
+   * @param out the underlying stream
+   * @param indexOut stream to write block offsets to, or null
+   * @param compressor an {@link LzoCompressor}
+   * @param bufferSize the lzo buffer size
+   * @param strategy the lzo compression algorithm
+   * @param options threads, index format and checksums
+   * @throws IOException if the header cannot be written
+   */
+  public LzopOutputStream(OutputStream out, DataOutputStream indexOut,
+      Compressor compressor, int bufferSize,
+      LzoCompressor.CompressionStrategy strategy, Options options)
+      throws IOException {
     super(new CountingOutputStream(out), compressor, bufferSize);
 
     this.cout = (CountingOutputStream) this.out;
     this.indexOut = indexOut;
+    if (indexOut != null) {
+      indexWriter = new LzoIndexWriter(indexOut, options.indexVersion, options.indexFlags);
+    }
     int overhead = strategy.name().contains("LZO1") ?
       (bufferSize >> 4) + 64 + 3 : (bufferSize >> 3) + 128 + 3;
     MAX_INPUT_SIZE = bufferSize - overhead;
 
     int compressionLevel = ((LzoCompressor) compressor).getCompressionLevel();
 
-    writeLzopHeader(this.out, strategy, compressionLevel);
+    this.dflags = EnumSet.copyOf(options.dflags);
+    this.cflags = EnumSet.copyOf(options.cflags);
+    int headerFlags = 0;
+    int checksums = 0;
+    for (DChecksum flag : dflags) {
+      headerFlags |= flag.getHeaderMask();
+      checksums |= LzopDecompressor.nativeChecksum(flag);
+    }
+    for (CChecksum flag : cflags) {
+      headerFlags |= flag.getHeaderMask();
+      checksums |= LzopDecompressor.nativeChecksum(flag);
+    }
+    // Before the workers copy it
+    ((LzoCompressor) compressor).setChecksums(checksums);
+
+    writeLzopHeader(this.out, strategy, compressionLevel, headerFlags);
+
+    if (options.numThreads > 1) {
+      parallel = new ParallelLzoBlockCompressor((LzoCompressor) compressor,
+          options.numThreads, bufferSize);
+      currentBlock = parallel.newBlock();
+    } else {
+      currentBlock = new ParallelLzoBlockCompressor.Block(bufferSize,
+          !((LzoCompressor) compressor).isPureJava());
+    }
+  }
+
+  /**
+   * Also write the positions of the blocks into the file itself, after the
+   * end of stream marker, so that it can be split without an index file.
+   * Readers of the lzo stream stop at the marker and never see the index;
+   * {@link LzoIndex#readIndex} finds it from a locator at the very end of
+   * the file. The index is kept in memory until the stream is closed,
+   * typically a few bytes per block.
+   *
+   * @param indexFlags {@link LzoIndex} flags for the optional fields to
+   *        record for each block
+   * @throws IllegalStateException if data has already been written
+   */
+  public void setEmbeddedIndex(int indexFlags) throws IOException {
+    if (dataWritten) {
+      throw new IllegalStateException("Embedded index must be set before writing data");
+    }
+    embeddedIndexOut = new DataOutputBuffer();
+    embeddedIndexWriter = new LzoIndexWriter(embeddedIndexOut, LzoIndex.VERSION_2, indexFlags);
+  }
+
+  /**
+   * Sample each block before compressing it, and store the blocks that
+   * look incompressible, such as already compressed data, without running
+   * the compressor on them. See {@link LzoBlockSampler}.
+   *
+   * @param sample whether to sample blocks
+   */
+  public void setIncompressibleSampling(boolean sample) {
+    sampleBlocks = sample;
   }
 
   /**
-   * Close the underlying stream and write a null word to the output stream.
+   * @return the number of blocks written compressed so far
+   */
+  public long getBlocksCompressed() {
+    return blocksCompressed;
+  }
+
+  /**
+   * @return the number of blocks written as they are so far, because
+   *         compressing did not or, judging from a sample, would not make
+   *         them smaller
+   */
+  public long getBlocksStored() {
+    return blocksStored;
+  }
+
+  /**
+   * @return how many of the {@link #getBlocksStored() stored blocks} were
+   *         never compressed, because sampling them found them
+   *         incompressible
+   */
+  public long getBlocksStoredBySampling() {
+    return blocksStoredBySampling;
+  }
+
+  /**
+   * Close the underlying stream and write a null word to the output stream,
+   * followed by the embedded index if there is one.
    */
   @Override
   public void close() throws IOException {
     if (!closed) {
-      finish();
-      out.write(new byte[]{ 0, 0, 0, 0 });
-      out.close();
-      if (indexOut != null) {
-        indexOut.close();
+      try {
+        finish();
+        out.write(new byte[]{ 0, 0, 0, 0 });
+        if (embeddedIndexWriter != null) {
+          long indexStart = cout.bytesWritten;
+          out.write(embeddedIndexOut.getData(), 0, embeddedIndexOut.getLength());
+          rawWriteInt((int) (indexStart >>> 32));
+          rawWriteInt((int) indexStart);
+          out.write(LzoIndex.EMBEDDED_INDEX_MAGIC);
+        }
+        out.close();
+        if (indexOut != null) {
+          indexOut.close();
+        }
+      } finally {
+        if (parallel != null) {
+          parallel.shutdown();
+        }
       }
       closed = true;
     }
@@ -130,7 +341,7 @@ public class LzopOutputStream extends CompressorStream {
     // See: https://github.com/toddlipcon/hadoop-lzo/commit/5fe6dd4736a73fa33b86656ce8aeb011e7f2046c
 
     // Sanity checks
-    if (compressor.finished()) {
+    if (closed) {
       throw new IOException("write beyond end of stream");
     }
     if (b == null) {
@@ -141,76 +352,121 @@ public class LzopOutputStream extends CompressorStream {
     } else if (len == 0) {
       return;
     }
+    dataWritten = true;
 
-    long limlen = compressor.getBytesRead();
-    if (len + limlen > MAX_INPUT_SIZE && limlen > 0) {
+    int pending = currentBlock.uncompressed.position();
+    if (len + pending > MAX_INPUT_SIZE && pending > 0) {
       // Adding this segment would exceed the maximum size.
       // Flush data if we have it.
-      finish();
-      compressor.reset();
+      compress();
     }
 
-    if (len > MAX_INPUT_SIZE) {
-      // The data we're given exceeds the maximum size. Any data
-      // we had have been flushed, so we write out this chunk in segments
-      // not exceeding the maximum size until it is exhausted.
-      do {
-        int bufLen = Math.min(len, MAX_INPUT_SIZE);
+    // The data we're given may exceed the maximum size. Any data we had
+    // have been flushed, so we write out this chunk in segments not
+    // exceeding the maximum size until it is exhausted.
+    boolean segmented = len > MAX_INPUT_SIZE;
+    do {
+      int bufLen = Math.min(len, MAX_INPUT_SIZE);
+      currentBlock.uncompressed.put(b, off, bufLen);
+      if (segmented) {
+        compress();
+      }
+      off += bufLen;
+      len -= bufLen;
+    } while (len > 0);
+  }
 
-        compressor.setInput(b, off, bufLen);
-        finish();
-        compressor.reset();
-        off += bufLen;
-        len -= bufLen;
-      } while (len > 0);
+  /**
+   * Compress and write out the pending block. With more than one thread the
+   * block is handed to the worker pool instead, after writing out whatever
+   * the workers have finished.
+   */
+  @Override
+  protected void compress() throws IOException {
+    if (currentBlock.uncompressed.position() == 0) {
+      return;
+    }
+    if (parallel == null) {
+      currentBlock.compress((LzoCompressor) compressor, sampleBlocks);
+      writeBlock(currentBlock);
+      currentBlock.clear();
       return;
     }
 
-    // Give data to the compressor
-    compressor.setInput(b, off, len);
-    if (!compressor.needsInput()) {
-      // compressor buffer size might be smaller than the maximum
-      // size, so we permit it to flush if required.
-      do {
-        compress();
-      } while (!compressor.needsInput());
+    // Wait for the oldest block if there are too many in flight.
+    while (parallel.isHeadDone() || !parallel.hasCapacity()) {
+      writeParallelBlock(parallel.take());
     }
+    parallel.submit(currentBlock, sampleBlocks);
+    currentBlock = parallel.newBlock();
+  }
+
+  private void writeParallelBlock(ParallelLzoBlockCompressor.Block block)
+      throws IOException {
+    writeBlock(block);
+    parallel.recycle(block);
   }
 
   @Override
   public void finish() throws IOException {
-    if (!compressor.finished()) {
-      compressor.finish();
-      while (!compressor.finished()) {
-        compress();
+    compress();
+    if (parallel != null) {
+      while (parallel.hasPending()) {
+        writeParallelBlock(parallel.take());
       }
     }
   }
-  @Override
-  protected void compress() throws IOException {
-    int len = compressor.compress(buffer, 0, buffer.length);
-    if (len > 0) {
-      // new lzo block. write current position to index file.
-      if (indexOut != null) {
-        indexOut.writeLong(cout.bytesWritten);
+
+  /**
+   * Write one compressed lzo block: the uncompressed and stored sizes, the
+   * checksums, and the stored bytes.
+   */
+  private void writeBlock(ParallelLzoBlockCompressor.Block block)
+      throws IOException {
+    // new lzo block. write current position to index file.
+    if (indexWriter != null || embeddedIndexWriter != null) {
+      int flags = (indexWriter != null ? indexWriter.getFlags() : 0) |
+          (embeddedIndexWriter != null ? embeddedIndexWriter.getFlags() : 0);
+      int firstRecordOffset = -1;
+      if ((flags & LzoIndex.FLAG_FIRST_RECORD_OFFSETS) != 0) {
+        firstRecordOffset = LzoIndexWriter.firstRecordOffset(block.uncompressed);
+      }
+      if (indexWriter != null) {
+        indexWriter.writePosition(cout.bytesWritten, block.uncompressedLen,
+            firstRecordOffset);
+      }
+      if (embeddedIndexWriter != null) {
+        embeddedIndexWriter.writePosition(cout.bytesWritten, block.uncompressedLen,
+            firstRecordOffset);
       }
+    }
 
-      rawWriteInt((int)compressor.getBytesRead());
-
-      // If the compressed buffer is actually larger than the uncompressed buffer,
-      // the LZO specification says that we should write the uncompressed bytes rather
-      // than the compressed bytes.  The decompressor understands this because both sizes
-      // get written to the stream.
-      if (compressor.getBytesRead() <= compressor.getBytesWritten()) {
-        // Compression actually increased the size of the buffer, so write the uncompressed bytes.
-        byte[] uncompressed = ((LzoCompressor)compressor).uncompressedBytes();
-        rawWriteInt(uncompressed.length);
-        out.write(uncompressed, 0, uncompressed.length);
-      } else {
-        // Write out the compressed chunk.
-        rawWriteInt(len);
-        out.write(buffer, 0, len);
+    // Stored blocks are told apart by the decompressor because both sizes
+    // written to the stream are the same.
+    ByteBuffer data = block.stored ? block.uncompressed : block.compressed;
+    if (block.stored) {
+      blocksStored++;
+      if (block.storedBySampling) {
+        blocksStoredBySampling++;
       }
+    } else {
+      blocksCompressed++;
+    }
+    rawWriteInt(block.uncompressedLen);
+    rawWriteInt(data.remaining());
+    for (DChecksum flag : dflags) {
+      rawWriteInt(block.getChecksum(LzopDecompressor.nativeChecksum(flag)));
+    }
+    // Stored blocks have no compressed data to checksum
+    if (!block.stored) {
+      for (CChecksum flag : cflags) {
+        rawWriteInt(block.getChecksum(LzopDecompressor.nativeChecksum(flag)));
+      }
+    }
+    while (data.hasRemaining()) {
+      int len = Math.min(data.remaining(), buffer.length);
+      data.get(buffer, 0, len);
+      out.write(buffer, 0, len);
     }
   }
 
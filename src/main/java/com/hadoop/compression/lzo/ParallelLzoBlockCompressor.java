@@ -0,0 +1,260 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compresses whole lzop blocks on a pool of worker threads, each with its
+ * own {@link LzoCompressor}, and hands the results back in the order the
+ * blocks were submitted.
+ *
+ * At most two blocks per worker are in flight at any time; block buffers
+ * are recycled, so a stream allocates nothing per block once the pool is
+ * warm.
+ */
+class ParallelLzoBlockCompressor {
+
+  /**
+   * An uncompressed block and, once compressed, the compressor's output for
+   * it. Both live in direct buffers so the compressor works on them in place,
+   * or in heap buffers for a pure Java compressor.
+   */
+  static class Block {
+    /** Filled by the writer, then holds the uncompressed data once compressed. */
+    final ByteBuffer uncompressed;
+    int uncompressedLen;
+    final ByteBuffer compressed;
+    int compressedLen;
+    /** Whether the block is written as it is rather than compressed. */
+    boolean stored;
+    /** Whether it was stored without running the compressor at all. */
+    boolean storedBySampling;
+    /** The compressor's checksums of the block, by CHECKSUM_* flag bit. */
+    private final int[] checksums = new int[4];
+    /** Created for the first block sampled, then reused with the buffers. */
+    private LzoBlockSampler sampler;
+
+    Block(int bufferSize, boolean direct) {
+      if (direct) {
+        uncompressed = ByteBuffer.allocateDirect(bufferSize);
+        compressed = ByteBuffer.allocateDirect(bufferSize);
+      } else {
+        uncompressed = ByteBuffer.allocate(bufferSize);
+        compressed = ByteBuffer.allocate(bufferSize);
+      }
+    }
+
+    /**
+     * Compress the data written so far. Afterwards both buffers are
+     * positioned at the start of their data, ready to be written out.
+     *
+     * @param sample whether to first sample the data, and store it
+     *        without compressing if {@link LzoBlockSampler} finds it
+     *        incompressible
+     */
+    void compress(LzoCompressor compressor, boolean sample) throws IOException {
+      uncompressed.flip();
+      uncompressedLen = uncompressed.remaining();
+      compressed.clear();
+      if (sample && sampler == null) {
+        sampler = new LzoBlockSampler();
+      }
+      storedBySampling = sample && sampler.isIncompressible(uncompressed);
+      if (storedBySampling) {
+        compressor.checksumStored(uncompressed);
+        compressedLen = 0;
+        compressed.limit(0);
+      } else {
+        compressedLen = compressor.compress(uncompressed, compressed);
+        uncompressed.rewind();
+        compressed.flip();
+      }
+      // If compressing made the block larger, the LZO specification says
+      // that we should write the uncompressed bytes instead.
+      stored = storedBySampling || uncompressedLen <= compressedLen;
+      int flags = compressor.getChecksums();
+      for (int i = 0; i < checksums.length; i++) {
+        if ((flags & (1 << i)) != 0) {
+          checksums[i] = compressor.getChecksum(1 << i);
+        }
+      }
+    }
+
+    /**
+     * @param checksum one of the LzoDecompressor CHECKSUM_* flags the
+     *        compressor computed
+     */
+    int getChecksum(int checksum) {
+      return checksums[Integer.numberOfTrailingZeros(checksum)];
+    }
+
+    void clear() {
+      uncompressed.clear();
+      compressed.clear();
+      uncompressedLen = 0;
+      compressedLen = 0;
+      stored = false;
+      storedBySampling = false;
+    }
+  }
+
+  private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+  private final ExecutorService executor;
+  private final BlockingQueue<LzoCompressor> idleCompressors;
+  private final Deque<Block> freeBlocks = new ArrayDeque<Block>();
+  private final Deque<Future<Block>> pending = new ArrayDeque<Future<Block>>();
+  private final int maxInFlight;
+  private final int bufferSize;
+  private final boolean directBlocks;
+
+  /**
+   * @param template compressor whose strategy, level and buffer size the
+   *        workers copy
+   * @param numThreads number of worker threads
+   * @param bufferSize size of the block buffers
+   */
+  ParallelLzoBlockCompressor(LzoCompressor template, int numThreads,
+      int bufferSize) {
+    this.bufferSize = bufferSize;
+    this.directBlocks = !template.isPureJava();
+    this.maxInFlight = 2 * numThreads;
+    this.idleCompressors = new ArrayBlockingQueue<LzoCompressor>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      idleCompressors.add(new LzoCompressor(template));
+    }
+
+    final String prefix = "lzop-compressor-" + poolNumber.getAndIncrement() + "-";
+    executor = Executors.newFixedThreadPool(numThreads, new ThreadFactory() {
+      private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    });
+  }
+
+  /**
+   * Whether another block can be submitted without first taking a
+   * finished one.
+   */
+  boolean hasCapacity() {
+    return pending.size() < maxInFlight;
+  }
+
+  /**
+   * Whether any submitted block has not been taken yet.
+   */
+  boolean hasPending() {
+    return !pending.isEmpty();
+  }
+
+  /**
+   * Whether the oldest submitted block has finished compressing, i.e.
+   * {@link #take()} would not wait.
+   */
+  boolean isHeadDone() {
+    return !pending.isEmpty() && pending.peekFirst().isDone();
+  }
+
+  /**
+   * Get an empty block to fill with uncompressed data.
+   */
+  Block newBlock() {
+    Block block = freeBlocks.pollFirst();
+    if (block == null) {
+      block = new Block(bufferSize, directBlocks);
+    } else {
+      block.clear();
+    }
+    return block;
+  }
+
+  /**
+   * Queue a filled block for compression. The caller must check
+   * {@link #hasCapacity()} first.
+   *
+   * @param sample see {@link Block#compress(LzoCompressor, boolean)}
+   */
+  void submit(final Block block, final boolean sample) {
+    assert hasCapacity() : "too many blocks in flight";
+    pending.addLast(executor.submit(new Callable<Block>() {
+      public Block call() throws Exception {
+        LzoCompressor compressor = idleCompressors.take();
+        try {
+          block.compress(compressor, sample);
+          return block;
+        } finally {
+          idleCompressors.put(compressor);
+        }
+      }
+    }));
+  }
+
+  /**
+   * Wait for the oldest submitted block and return it. The block should be
+   * handed back through {@link #recycle(Block)} once written out.
+   */
+  Block take() throws IOException {
+    Future<Block> future = pending.pollFirst();
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for lzo block");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Error compressing lzo block", cause);
+    }
+  }
+
+  void recycle(Block block) {
+    freeBlocks.addLast(block);
+  }
+
+  /**
+   * Stop the worker threads. Blocks that have not been taken are dropped.
+   */
+  void shutdown() {
+    for (Future<Block> future : pending) {
+      future.cancel(true);
+    }
+    pending.clear();
+    executor.shutdownNow();
+  }
+}
@@ -0,0 +1,402 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads lzop blocks ahead of the consumer on a background thread and
+ * decompresses them on a pool of worker threads, each with its own
+ * {@link LzopDecompressor}. Blocks are handed back in file order. Workers
+ * decompress between direct buffers owned by the blocks, or heap buffers
+ * when decompressing in pure Java, so uncompressed data is not staged
+ * through the decompressors' own buffers.
+ *
+ * At most <code>readAheadBlocks</code> blocks are held at any time, counting
+ * the one being consumed, so memory use is bounded by that many compressed
+ * and uncompressed block buffers. Buffers are recycled once consumed.
+ */
+class ParallelLzoBlockDecompressor {
+
+  /**
+   * A block as read from the file and, once its task has run, its
+   * decompressed contents. The end of the stream is marked by a block with
+   * <code>eof</code> set.
+   */
+  static class Block {
+    ByteBuffer compressed;
+    int compressedLen;
+    /**
+     * Once decompressed, positioned at the next byte to hand to the
+     * consumer and limited to the end of the block's data.
+     */
+    ByteBuffer uncompressed;
+    int uncompressedLen;
+    boolean stored;
+    final int[] dchecks;
+    final int[] cchecks;
+    /** Bytes of the file this block occupies, including its headers. */
+    long compressedBytes;
+    /** Whether the block's checksums are verified. */
+    boolean verified;
+    boolean eof;
+
+    Block(int numDChecksums, int numCChecksums) {
+      dchecks = new int[numDChecksums];
+      cchecks = new int[numCChecksums];
+    }
+  }
+
+  private static final AtomicInteger poolNumber = new AtomicInteger(1);
+
+  private final InputStream in;
+  private final EnumSet<DChecksum> dflags;
+  private final EnumSet<CChecksum> cflags;
+  private final ExecutorService executor;
+  private final Thread reader;
+  private final BlockingQueue<LzopDecompressor> idleDecompressors;
+  private final BlockingQueue<Future<Block>> pending;
+  private final ConcurrentLinkedQueue<Block> freeBlocks = new ConcurrentLinkedQueue<Block>();
+  private final Semaphore slots;
+  private final int bufferSize;
+  private final boolean pureJava;
+  private final long position;
+  private final int checksumVerifyPercent;
+  private volatile boolean closed = false;
+  /** Compressed bytes past which blocks are only read once asked for. */
+  private volatile long limit;
+  // Blocks the consumer has asked for and blocks the reader has queued,
+  // guarded by demand.
+  private final Object demand = new Object();
+  private long blocksRequested = 0;
+  private long blocksQueued = 0;
+
+  /**
+   * @param in stream positioned at the start of a block
+   * @param dflags uncompressed checksums present in each block
+   * @param cflags compressed checksums present in each compressed block
+   * @param bufferSize direct buffer size of the worker decompressors
+   * @param readAheadBlocks maximum number of blocks held at once
+   * @param numThreads number of decompression threads
+   * @param pureJava whether the workers decompress in Java, in which case
+   *        blocks are held in heap buffers instead
+   * @param limit see {@link #setLimit(long)}
+   * @param position where the next block of the stream starts in its file
+   * @param checksumVerifyPercent see {@link LzopInputStream#setChecksumVerifyPercent(int)}
+   */
+  ParallelLzoBlockDecompressor(InputStream in, EnumSet<DChecksum> dflags,
+      EnumSet<CChecksum> cflags, int bufferSize, int readAheadBlocks,
+      int numThreads, boolean pureJava, long limit, long position,
+      int checksumVerifyPercent) {
+    this.in = in;
+    this.position = position;
+    this.checksumVerifyPercent = checksumVerifyPercent;
+    this.limit = limit;
+    this.pureJava = pureJava;
+    this.dflags = dflags;
+    this.cflags = cflags;
+    this.slots = new Semaphore(readAheadBlocks);
+    this.bufferSize = bufferSize;
+    this.pending = new ArrayBlockingQueue<Future<Block>>(readAheadBlocks);
+    this.idleDecompressors = new ArrayBlockingQueue<LzopDecompressor>(numThreads);
+    for (int i = 0; i < numThreads; i++) {
+      LzopDecompressor decompressor = new LzopDecompressor(bufferSize, pureJava);
+      decompressor.initHeaderFlags(dflags, cflags);
+      idleDecompressors.add(decompressor);
+    }
+
+    final String prefix = "lzop-decompressor-" + poolNumber.getAndIncrement() + "-";
+    final AtomicInteger threadNumber = new AtomicInteger(1);
+    ThreadFactory threadFactory = new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread t = new Thread(r, prefix + threadNumber.getAndIncrement());
+        t.setDaemon(true);
+        return t;
+      }
+    };
+    executor = Executors.newFixedThreadPool(numThreads, threadFactory);
+    reader = threadFactory.newThread(new Runnable() {
+      public void run() {
+        readBlocks();
+      }
+    });
+    reader.setName(prefix + "reader");
+    reader.start();
+  }
+
+  /**
+   * Read blocks until the end of the stream, an error, or shutdown, queueing
+   * each for decompression. Errors are queued in place of the block that
+   * hit them so the consumer sees them in order.
+   */
+  private void readBlocks() {
+    byte[] buf = new byte[4];
+    byte[] staging = new byte[bufferSize];
+    long readBytes = 0;
+    try {
+      while (!closed) {
+        if (readBytes > limit) {
+          awaitDemand();
+        }
+        slots.acquire();
+        Block block = freeBlocks.poll();
+        if (block == null) {
+          block = new Block(dflags.size(), cflags.size());
+        }
+        long blockPosition = position + readBytes;
+        staging = readBlock(block, buf, staging);
+        readBytes += block.compressedBytes;
+        synchronized (demand) {
+          blocksQueued++;
+        }
+        if (block.eof) {
+          pending.put(completed(block, null));
+          return;
+        }
+        block.verified = LzopInputStream.isBlockVerified(blockPosition,
+            checksumVerifyPercent);
+        pending.put(executor.submit(new DecompressTask(block)));
+      }
+    } catch (InterruptedException e) {
+      // shut down
+    } catch (Throwable t) {
+      if (!closed) {
+        pending.offer(completed(null, t));
+      }
+    }
+  }
+
+  /**
+   * Wait until the consumer asks for a block that has not been queued.
+   */
+  private void awaitDemand() throws InterruptedException {
+    synchronized (demand) {
+      while (blocksRequested <= blocksQueued) {
+        demand.wait();
+      }
+    }
+  }
+
+  /**
+   * Stop reading ahead past the block that starts <code>limit</code>
+   * compressed bytes into the stream. Later blocks are still read, one at
+   * a time as they are taken.
+   */
+  void setLimit(long limit) {
+    this.limit = limit;
+  }
+
+  /**
+   * Fill in the block read from the head of the stream. A missing or
+   * truncated block ends the stream, like a serial read would.
+   *
+   * @return the staging array, which is replaced if it had to grow
+   */
+  private byte[] readBlock(Block block, byte[] buf, byte[] staging)
+  throws IOException {
+    block.eof = false;
+    block.compressedBytes = 0;
+    try {
+      int uncompressedLen = LzopInputStream.readInt(in, buf, 4);
+      if (uncompressedLen == 0) {
+        block.eof = true;
+        block.compressedBytes = 4;
+        return staging;
+      }
+      if (uncompressedLen < 0 || uncompressedLen > LzoCodec.MAX_BLOCK_SIZE) {
+        throw new IOException("Uncompressed length " + uncompressedLen +
+            " exceeds max block size " + LzoCodec.MAX_BLOCK_SIZE +
+            " (probably corrupt file)");
+      }
+      int compressedLen = LzopInputStream.readInt(in, buf, 4);
+      if (compressedLen < 0 || compressedLen > LzoCodec.MAX_BLOCK_SIZE) {
+        throw new IOException("Compressed length " + compressedLen +
+            " exceeds max block size " + LzoCodec.MAX_BLOCK_SIZE +
+            " (probably corrupt file)");
+      }
+      // Blocks that did not shrink are stored as-is, without
+      // compressed checksums.
+      block.stored = compressedLen >= uncompressedLen;
+      for (int i = 0; i < block.dchecks.length; i++) {
+        block.dchecks[i] = LzopInputStream.readInt(in, buf, 4);
+      }
+      int numCChecks = block.stored ? 0 : block.cchecks.length;
+      for (int i = 0; i < numCChecks; i++) {
+        block.cchecks[i] = LzopInputStream.readInt(in, buf, 4);
+      }
+      if (staging.length < compressedLen) {
+        staging = new byte[compressedLen];
+      }
+      LzopInputStream.readFully(in, staging, 0, compressedLen);
+      block.compressed = ensureCapacity(block.compressed, compressedLen);
+      block.compressed.put(staging, 0, compressedLen);
+      block.compressed.flip();
+      block.uncompressed = ensureCapacity(block.uncompressed, uncompressedLen);
+      block.uncompressed.limit(uncompressedLen);
+      block.compressedLen = compressedLen;
+      block.uncompressedLen = uncompressedLen;
+      block.compressedBytes = 8 + 4 * (block.dchecks.length + numCChecks) +
+          compressedLen;
+    } catch (EOFException e) {
+      block.eof = true;
+      block.compressedBytes = 0;
+    }
+    return staging;
+  }
+
+  /**
+   * Return a cleared buffer of at least <code>len</code> bytes, reusing
+   * <code>b</code> if it is big enough.
+   */
+  private ByteBuffer ensureCapacity(ByteBuffer b, int len) {
+    if (b == null || b.capacity() < len) {
+      int capacity = Math.max(len, bufferSize);
+      return pureJava ? ByteBuffer.allocate(capacity)
+          : ByteBuffer.allocateDirect(capacity);
+    }
+    b.clear();
+    return b;
+  }
+
+  private class DecompressTask implements Callable<Block> {
+    private final Block block;
+
+    DecompressTask(Block block) {
+      this.block = block;
+    }
+
+    public Block call() throws Exception {
+      LzopDecompressor decompressor = idleDecompressors.take();
+      try {
+        decompressor.reset();
+        decompressor.setCurrentBlockUncompressed(block.stored);
+        decompressor.setCurrentBlockChecksummed(block.verified);
+        decompressor.resetChecksum();
+        int n = decompressor.decompress(block.compressed, block.uncompressed);
+        if (n != block.uncompressedLen) {
+          throw new IOException("Corrupted compressed block: expected " +
+              block.uncompressedLen + " uncompressed bytes, got " + n);
+        }
+        block.uncompressed.flip();
+        if (!block.verified) {
+          return block;
+        }
+        int i = 0;
+        for (DChecksum chk : dflags) {
+          if (!decompressor.verifyDChecksum(chk, block.dchecks[i++])) {
+            throw new IOException("Corrupted uncompressed block");
+          }
+        }
+        if (!block.stored) {
+          i = 0;
+          for (CChecksum chk : cflags) {
+            if (!decompressor.verifyCChecksum(chk, block.cchecks[i++])) {
+              throw new IOException("Corrupted compressed block");
+            }
+          }
+        }
+        return block;
+      } finally {
+        idleDecompressors.put(decompressor);
+      }
+    }
+  }
+
+  private static Future<Block> completed(final Block block, final Throwable t) {
+    FutureTask<Block> future = new FutureTask<Block>(new Callable<Block>() {
+      public Block call() throws Exception {
+        if (t instanceof Exception) {
+          throw (Exception) t;
+        } else if (t != null) {
+          throw (Error) t;
+        }
+        return block;
+      }
+    });
+    future.run();
+    return future;
+  }
+
+  /**
+   * Wait for the next block in file order. It should be handed back through
+   * {@link #recycle(Block)} once consumed; the block marking the end of the
+   * stream need not be.
+   */
+  Block take() throws IOException {
+    synchronized (demand) {
+      blocksRequested++;
+      demand.notifyAll();
+    }
+    try {
+      return pending.take().get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for lzo block");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Error decompressing lzo block", cause);
+    }
+  }
+
+  void recycle(Block block) {
+    freeBlocks.offer(block);
+    slots.release();
+  }
+
+  /**
+   * Stop the reader and worker threads. Blocks that have not been taken are
+   * dropped. The underlying stream is left open, and once this returns the
+   * reader no longer uses it, unless the calling thread was interrupted
+   * while waiting for the reader to finish a read in progress.
+   */
+  void shutdown() {
+    closed = true;
+    reader.interrupt();
+    Future<Block> future;
+    while ((future = pending.poll()) != null) {
+      future.cancel(true);
+    }
+    executor.shutdownNow();
+    try {
+      reader.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
@@ -0,0 +1,133 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.io.compress.Decompressor;
+
+/**
+ * An lzop input stream that can seek to any offset in the uncompressed
+ * data. It needs an index written with
+ * {@link LzoIndex#FLAG_UNCOMPRESSED_SIZES}: a seek finds the block holding
+ * the offset in the index, moves the underlying stream to it and
+ * decompresses only that block up to the offset. Seeking forward within
+ * the current block just reads ahead.
+ *
+ * Positions returned by {@link #getPos()} are uncompressed offsets.
+ *
+ * This wraps an {@link LzopInputStream} rather than extending it, because
+ * Hadoop 2's CompressionInputStream declares seek without IOException.
+ */
+public class SeekableLzopInputStream extends InputStream implements Seekable {
+
+  private final LzopInputStream lzoIn;
+  private final FSDataInputStream fileIn;
+  private final LzoIndex index;
+  private long pos = 0;
+
+  /**
+   * @param in the lzop file, positioned at its start
+   * @param decompressor an {@link LzopDecompressor}
+   * @param bufferSize the lzo buffer size
+   * @param index the index of the file, with uncompressed offsets
+   * @throws IOException if the lzop header cannot be read
+   */
+  public SeekableLzopInputStream(FSDataInputStream in, Decompressor decompressor,
+      int bufferSize, LzoIndex index) throws IOException {
+    if (!index.hasUncompressedOffsets()) {
+      throw new IllegalArgumentException("Index has no uncompressed block offsets");
+    }
+    this.lzoIn = new LzopInputStream(in, decompressor, bufferSize);
+    this.fileIn = in;
+    this.index = index;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b = lzoIn.read();
+    if (b >= 0) {
+      pos++;
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    int n = lzoIn.read(b, off, len);
+    if (n > 0) {
+      pos += n;
+    }
+    return n;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = lzoIn.skip(n);
+    pos += skipped;
+    return skipped;
+  }
+
+  @Override
+  public void close() throws IOException {
+    lzoIn.close();
+  }
+
+  @Override
+  public long getPos() {
+    return pos;
+  }
+
+  @Override
+  public void seek(long target) throws IOException {
+    if (target < 0) {
+      throw new EOFException("Cannot seek to negative offset " + target);
+    }
+    if (target == pos) {
+      return;
+    }
+    int block = index.findUncompressedBlock(target);
+    if (block < 0) {
+      throw new EOFException("Cannot seek to " + target + " in an empty stream");
+    }
+    if (target < pos || index.findUncompressedBlock(pos) != block) {
+      lzoIn.discardBlock();
+      fileIn.seek(index.getPosition(block));
+      pos = index.getUncompressedOffset(block);
+    }
+    long remaining = target - pos;
+    while (remaining > 0) {
+      long skipped = skip(remaining);
+      if (skipped <= 0) {
+        throw new EOFException("Cannot seek to " + target +
+            " past the end of the stream at " + pos);
+      }
+      remaining -= skipped;
+    }
+  }
+
+  @Override
+  public boolean seekToNewSource(long targetPos) throws IOException {
+    return false;
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapred;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.FileSplit;
+
+/**
+ * A split of an lzo file starting at an lzo block, which also carries where
+ * the first record of that block starts, as recorded in the file's index.
+ * {@link DeprecatedLzoLineRecordReader} skips straight to it rather than
+ * reading and discarding the partial line in front of it.
+ */
+@SuppressWarnings("deprecation")
+public class DeprecatedLzoFileSplit extends FileSplit {
+
+  private long firstRecordOffset;
+
+  /** For deserialization. */
+  public DeprecatedLzoFileSplit() {
+    super((Path) null, 0, 0, (String[]) null);
+  }
+
+  /**
+   * @param firstRecordOffset offset of the first record in the uncompressed
+   *        data of the block the split starts at
+   */
+  public DeprecatedLzoFileSplit(Path file, long start, long length, String[] hosts,
+      long firstRecordOffset) {
+    super(file, start, length, hosts);
+    this.firstRecordOffset = firstRecordOffset;
+  }
+
+  public long getFirstRecordOffset() {
+    return firstRecordOffset;
+  }
+
+  @Override
+  public void write(DataOutput out) throws IOException {
+    super.write(out);
+    out.writeLong(firstRecordOffset);
+  }
+
+  @Override
+  public void readFields(DataInput in) throws IOException {
+    super.readFields(in);
+    firstRecordOffset = in.readLong();
+  }
+}
@@ -24,14 +24,20 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.mapred.FileSplit;
 import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
 import org.apache.hadoop.util.LineReader;
 
+import com.hadoop.compression.lzo.LzopInputStream;
+import com.hadoop.mapreduce.LzoLineRecordReader;
+
 @SuppressWarnings("deprecation")
 public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable, Text> {
   private CompressionCodecFactory codecFactory = null;
@@ -40,8 +46,13 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
   private final long end;
   private final LineReader in;
   private final FSDataInputStream fileIn;
+  private LzopInputStream lzopIn;
+  private final long streamStart;
+  private final Reporter reporter;
 
-  DeprecatedLzoLineRecordReader(Configuration conf, FileSplit split) throws IOException {
+  DeprecatedLzoLineRecordReader(Configuration conf, FileSplit split,
+      Reporter reporter) throws IOException {
+    this.reporter = reporter;
     start = split.getStart();
     end = start + split.getLength();
     final Path file = split.getPath();
@@ -56,18 +67,46 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
     // Open the file and seek to the next split.
     fileIn = fs.open(file);
     // Create input stream and read the file header.
-    in = new LineReader(codec.createInputStream(fileIn), conf);
+    CompressionInputStream cIn = codec.createInputStream(fileIn);
+    in = new LineReader(cIn, conf);
+    if (cIn instanceof LzopInputStream) {
+      lzopIn = (LzopInputStream) cIn;
+    }
     if (start != 0) {
       fileIn.seek(start);
+    }
+    streamStart = fileIn.getPos();
+    if (lzopIn != null) {
+      // Only the block starting at the end of the split can hold the rest
+      // of its last line, so there is no point reading ahead past it.
+      lzopIn.setReadAheadLimit(end - streamStart);
+    }
 
-      // Read and ignore the first line.
-      in.readLine(new Text());
-      start = fileIn.getPos();
+    if (start != 0) {
+      if (split instanceof DeprecatedLzoFileSplit) {
+        // The index says where the first line ends, skip to the next one.
+        IOUtils.skipFully(cIn, ((DeprecatedLzoFileSplit) split).getFirstRecordOffset());
+      } else {
+        // Read and ignore the first line.
+        in.readLine(new Text());
+      }
+      start = getFilePosition();
     }
 
     pos = start;
   }
 
+  /**
+   * Position in the file just past the last block handed to the line reader.
+   * An lzop stream that reads ahead has moved fileIn further than that.
+   */
+  private long getFilePosition() throws IOException {
+    if (lzopIn != null) {
+      return streamStart + lzopIn.getCompressedBytesRead();
+    }
+    return fileIn.getPos();
+  }
+
   public LongWritable createKey() {
     return new LongWritable();
   }
@@ -86,7 +125,7 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
       if (newSize == 0) {
         return false;
       }
-      pos = fileIn.getPos();
+      pos = getFilePosition();
       return true;
     }
     return false;
@@ -108,5 +147,12 @@ public class DeprecatedLzoLineRecordReader implements RecordReader<LongWritable,
     if (in != null) {
       in.close();
     }
+    if (lzopIn != null) {
+      reporter.incrCounter(LzoLineRecordReader.Counters.CHECKSUM_BLOCKS_VERIFIED,
+          lzopIn.getBlocksVerified());
+      reporter.incrCounter(LzoLineRecordReader.Counters.CHECKSUM_BLOCKS_SKIPPED,
+          lzopIn.getBlocksSkipped());
+      lzopIn = null;
+    }
   }
 }
@@ -22,10 +22,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -70,6 +73,7 @@ public class DeprecatedLzoTextInputFormat extends TextInputFormat {
     List<FileStatus> files = new ArrayList<FileStatus>(Arrays.asList(super.listStatus(conf)));
 
     boolean ignoreNonLzo = LzoInputFormatCommon.getIgnoreNonLzoProperty(conf);
+    List<Path> lzoFiles = new ArrayList<Path>();
 
     Iterator<FileStatus> it = files.iterator();
     while (it.hasNext()) {
@@ -85,12 +89,13 @@ public class DeprecatedLzoTextInputFormat extends TextInputFormat {
           it.remove();
         }
       } else {
-        FileSystem fs = file.getFileSystem(conf);
-        LzoIndex index = LzoIndex.readIndex(fs, file);
-        indexes.put(file, index);
+        lzoFiles.add(file);
       }
     }
 
+    //read the index files
+    indexes.putAll(LzoInputFormatCommon.readIndexes(conf, lzoFiles));
+
     return files.toArray(new FileStatus[] {});
   }
 
@@ -111,6 +116,11 @@ public class DeprecatedLzoTextInputFormat extends TextInputFormat {
     // Find new starts/ends of the filesplit that align with the LZO blocks.
 
     List<FileSplit> result = new ArrayList<FileSplit>();
+    long uncompressedSplitSize = LzoInputFormatCommon.getUncompressedSplitSizeProperty(conf);
+    Set<Path> planned = new HashSet<Path>();
+    Path lastFile = null;
+    FileStatus status = null;
+    BlockLocation[] blocks = null;
 
     for (FileSplit fileSplit: splits) {
       Path file = fileSplit.getPath();
@@ -133,27 +143,70 @@ public class DeprecatedLzoTextInputFormat extends TextInputFormat {
         continue;
       }
 
+      if (uncompressedSplitSize > 0) {
+        // Replace all the splits of the file at once.
+        if (planned.add(file)) {
+          addUncompressedSplits(fs, file, index, uncompressedSplitSize, result);
+        }
+        continue;
+      }
+
       long start = fileSplit.getStart();
       long end = start + fileSplit.getLength();
 
       long lzoStart = index.alignSliceStartToIndex(start, end);
-      long lzoEnd = index.alignSliceEndToIndex(end, fs.getFileStatus(file).getLen());
+      if (!file.equals(lastFile)) {
+        // The splits of a file come together.
+        lastFile = file;
+        status = fs.getFileStatus(file);
+        blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+      }
+      long lzoEnd = index.alignSliceEndToIndex(end, status.getLen());
 
       if (lzoStart != LzoIndex.NOT_FOUND  && lzoEnd != LzoIndex.NOT_FOUND) {
-        result.add(new FileSplit(file, lzoStart, lzoEnd - lzoStart, fileSplit.getLocations()));
+        result.add(newSplit(file, lzoStart, lzoEnd,
+            LzoInputFormatCommon.getSplitHosts(blocks, lzoStart, lzoEnd), index));
       }
     }
 
     return result.toArray(new FileSplit[result.size()]);
   }
 
+  /**
+   * Split an LZO file by the uncompressed size of its blocks.
+   */
+  private void addUncompressedSplits(FileSystem fs, Path file, LzoIndex index,
+      long splitSize, List<FileSplit> result) throws IOException {
+    FileStatus status = fs.getFileStatus(file);
+    long[] bounds = LzoInputFormatCommon.planUncompressedSplits(fs, file, index,
+        status.getLen(), splitSize);
+    BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+    for (int i = 0; i < bounds.length - 1; i++) {
+      result.add(newSplit(file, bounds[i], bounds[i + 1],
+          LzoInputFormatCommon.getSplitHosts(blocks, bounds[i], bounds[i + 1]), index));
+    }
+  }
+
+  /**
+   * Create the split of an LZO file between two block positions, carrying
+   * where its first record starts if the index knows.
+   */
+  private FileSplit newSplit(Path file, long start, long end, String[] hosts,
+      LzoIndex index) {
+    long firstRecordOffset = LzoInputFormatCommon.getFirstRecordOffset(index, start);
+    if (firstRecordOffset >= 0) {
+      return new DeprecatedLzoFileSplit(file, start, end - start, hosts, firstRecordOffset);
+    }
+    return new FileSplit(file, start, end - start, hosts);
+  }
+
   @Override
   public RecordReader<LongWritable, Text> getRecordReader(InputSplit split,
       JobConf conf, Reporter reporter) throws IOException {
     FileSplit fileSplit = (FileSplit) split;
     if (LzoInputFormatCommon.isLzoFile(fileSplit.getPath().toString())) {
       reporter.setStatus(split.toString());
-      return new DeprecatedLzoLineRecordReader(conf, (FileSplit)split);
+      return new DeprecatedLzoLineRecordReader(conf, (FileSplit)split, reporter);
     } else {
       // delegate non-LZO files to the TextInputFormat base class.
       return super.getRecordReader(split, conf, reporter);
@@ -0,0 +1,374 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputFormat;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileRecordReader;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.lib.input.LineRecordReader;
+
+import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoInputFormatCommon;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * An {@link InputFormat} for lzop compressed text files that packs many
+ * files, or pieces of files, into each split, so that directories of small
+ * files do not need a map task per file.
+ * <p>
+ * Indexed files are cut into pieces at most
+ * <code>lzo.combine.text.input.format.split.size</code> bytes long within
+ * each file system block, aligned to lzo blocks with {@link LzoIndex} the
+ * same way {@link LzoTextInputFormat} aligns its splits. Unindexed files
+ * are kept whole. The pieces are then packed into splits of about that size,
+ * first from pieces stored on the same node, then on the same rack, then
+ * whatever is left. Each piece is read with a {@link LzoLineRecordReader}.
+ * <p>
+ * See {@link LzoInputFormatCommon} for a description of the boolean property
+ * <code>lzo.text.input.format.ignore.nonlzo</code>; non-LZO files that are
+ * kept are read whole with a {@link LineRecordReader}.
+ */
+public class CombineLzoTextInputFormat extends CombineFileInputFormat<LongWritable, Text> {
+  /**
+   * The number of bytes of input each combined split aims for.
+   */
+  public static final String SPLIT_SIZE_KEY = "lzo.combine.text.input.format.split.size";
+  public static final long DEFAULT_SPLIT_SIZE = 256L * 1024 * 1024;
+
+  private static final String DEFAULT_RACK = "/default-rack";
+
+  private final Map<Path, LzoIndex> indexes = new HashMap<Path, LzoIndex>();
+
+  public static long getSplitSize(Configuration conf) {
+    assert conf != null : "Configuration cannot be null!";
+    return conf.getLong(SPLIT_SIZE_KEY, DEFAULT_SPLIT_SIZE);
+  }
+
+  public static void setSplitSize(Configuration conf, long splitSize) {
+    assert conf != null : "Configuration cannot be null!";
+    conf.setLong(SPLIT_SIZE_KEY, splitSize);
+  }
+
+  @Override
+  protected List<FileStatus> listStatus(JobContext job) throws IOException {
+    List<FileStatus> files = super.listStatus(job);
+
+    Configuration conf = CompatibilityUtil.getConfiguration(job);
+    boolean ignoreNonLzo = LzoInputFormatCommon.getIgnoreNonLzoProperty(conf);
+    List<Path> lzoFiles = new ArrayList<Path>();
+
+    for (Iterator<FileStatus> iterator = files.iterator(); iterator.hasNext();) {
+      FileStatus fileStatus = iterator.next();
+      Path file = fileStatus.getPath();
+
+      if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
+        // Same rules as LzoTextInputFormat, index files are never input.
+        if (ignoreNonLzo || LzoInputFormatCommon.isLzoIndexFile(file.toString())) {
+          iterator.remove();
+        }
+      } else {
+        lzoFiles.add(file);
+      }
+    }
+
+    indexes.putAll(LzoInputFormatCommon.readIndexes(conf, lzoFiles));
+
+    return files;
+  }
+
+  @Override
+  protected boolean isSplitable(JobContext context, Path filename) {
+    if (LzoInputFormatCommon.isLzoFile(filename.toString())) {
+      LzoIndex index = indexes.get(filename);
+      return index != null && !index.isEmpty();
+    }
+    // Only whole non-LZO files are combined
+    return false;
+  }
+
+  @Override
+  public List<InputSplit> getSplits(JobContext job) throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(job);
+    long splitSize = getSplitSize(conf);
+    if (splitSize <= 0) {
+      throw new IOException("Invalid " + SPLIT_SIZE_KEY + ": " + splitSize);
+    }
+
+    List<Chunk> chunks = new ArrayList<Chunk>();
+    for (FileStatus file : listStatus(job)) {
+      addChunks(job, file, splitSize, chunks);
+    }
+
+    // Where each chunk is stored, in the order they were found
+    Map<String, List<Chunk>> nodeChunks = new LinkedHashMap<String, List<Chunk>>();
+    Map<String, List<Chunk>> rackChunks = new LinkedHashMap<String, List<Chunk>>();
+    Map<String, Set<String>> rackHosts = new HashMap<String, Set<String>>();
+    for (Chunk chunk : chunks) {
+      for (String host : chunk.hosts) {
+        get(nodeChunks, host).add(chunk);
+      }
+      for (int i = 0; i < chunk.racks.length; i++) {
+        get(rackChunks, chunk.racks[i]).add(chunk);
+        Set<String> hosts = rackHosts.get(chunk.racks[i]);
+        if (hosts == null) {
+          hosts = new LinkedHashSet<String>();
+          rackHosts.put(chunk.racks[i], hosts);
+        }
+        if (i < chunk.hosts.length) {
+          hosts.add(chunk.hosts[i]);
+        }
+      }
+    }
+
+    List<InputSplit> splits = new ArrayList<InputSplit>();
+    // Full splits of chunks on one node
+    for (Map.Entry<String, List<Chunk>> e : nodeChunks.entrySet()) {
+      pack(e.getValue(), splitSize, new String[] { e.getKey() }, false, splits);
+    }
+    // Then full splits of chunks on one rack
+    for (Map.Entry<String, List<Chunk>> e : rackChunks.entrySet()) {
+      Set<String> hosts = rackHosts.get(e.getKey());
+      pack(e.getValue(), splitSize, hosts.toArray(new String[hosts.size()]),
+          false, splits);
+    }
+    // Then the rest, wherever they are
+    List<Chunk> rest = new ArrayList<Chunk>();
+    for (Chunk chunk : chunks) {
+      if (!chunk.assigned) {
+        rest.add(chunk);
+      }
+    }
+    pack(rest, splitSize, null, true, splits);
+    return splits;
+  }
+
+  /**
+   * Cut a file into the chunks that splits are made of.
+   */
+  private void addChunks(JobContext job, FileStatus file, long splitSize,
+      List<Chunk> chunks) throws IOException {
+    Path path = file.getPath();
+    long length = file.getLen();
+    if (length == 0) {
+      return;
+    }
+    FileSystem fs = path.getFileSystem(CompatibilityUtil.getConfiguration(job));
+    BlockLocation[] blocks = fs.getFileBlockLocations(file, 0, length);
+    if (!isSplitable(job, path)) {
+      chunks.add(new Chunk(path, 0, length, largestBlock(blocks)));
+      return;
+    }
+
+    LzoIndex index = indexes.get(path);
+    for (BlockLocation block : blocks) {
+      long blockEnd = Math.min(block.getOffset() + block.getLength(), length);
+      for (long start = block.getOffset(); start < blockEnd; start += splitSize) {
+        long end = Math.min(start + splitSize, blockEnd);
+        long lzoStart = index.alignSliceStartToIndex(start, end);
+        long lzoEnd = index.alignSliceEndToIndex(end, length);
+        if (lzoStart != LzoIndex.NOT_FOUND && lzoEnd != LzoIndex.NOT_FOUND) {
+          chunks.add(new Chunk(path, lzoStart, lzoEnd - lzoStart, block));
+        }
+      }
+    }
+  }
+
+  private static BlockLocation largestBlock(BlockLocation[] blocks) {
+    BlockLocation largest = null;
+    for (BlockLocation block : blocks) {
+      if (largest == null || block.getLength() > largest.getLength()) {
+        largest = block;
+      }
+    }
+    return largest;
+  }
+
+  /**
+   * Pack chunks not yet in a split into splits of at least
+   * <code>splitSize</code> bytes.
+   *
+   * @param locations the hosts of the splits, or null to use the hosts of
+   *        their chunks
+   * @param packRemainder whether the chunks left over at the end make up a
+   *        last, smaller split, or are left for a later pass
+   */
+  private static void pack(List<Chunk> candidates, long splitSize,
+      String[] locations, boolean packRemainder, List<InputSplit> splits) {
+    List<Chunk> current = new ArrayList<Chunk>();
+    long size = 0;
+    for (Chunk chunk : candidates) {
+      if (chunk.assigned) {
+        continue;
+      }
+      current.add(chunk);
+      size += chunk.length;
+      if (size >= splitSize) {
+        splits.add(newSplit(current, locations));
+        current.clear();
+        size = 0;
+      }
+    }
+    if (packRemainder && !current.isEmpty()) {
+      splits.add(newSplit(current, locations));
+    }
+  }
+
+  private static CombineFileSplit newSplit(List<Chunk> chunks,
+      String[] locations) {
+    int n = chunks.size();
+    Path[] paths = new Path[n];
+    long[] starts = new long[n];
+    long[] lengths = new long[n];
+    Set<String> hosts = new LinkedHashSet<String>();
+    for (int i = 0; i < n; i++) {
+      Chunk chunk = chunks.get(i);
+      chunk.assigned = true;
+      paths[i] = chunk.path;
+      starts[i] = chunk.start;
+      lengths[i] = chunk.length;
+      for (String host : chunk.hosts) {
+        hosts.add(host);
+      }
+    }
+    if (locations == null) {
+      locations = hosts.toArray(new String[hosts.size()]);
+    }
+    return new CombineFileSplit(paths, starts, lengths, locations);
+  }
+
+  private static <T> List<T> get(Map<String, List<T>> map, String key) {
+    List<T> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<T>();
+      map.put(key, list);
+    }
+    return list;
+  }
+
+  @Override
+  public RecordReader<LongWritable, Text> createRecordReader(InputSplit split,
+      TaskAttemptContext taskAttempt) throws IOException {
+    return new CombineFileRecordReader<LongWritable, Text>(
+        (CombineFileSplit) split, taskAttempt, ChunkRecordReader.class);
+  }
+
+  /**
+   * A range of a file that goes into a split as a whole.
+   */
+  private static class Chunk {
+    final Path path;
+    final long start;
+    final long length;
+    final String[] hosts;
+    final String[] racks;
+    boolean assigned;
+
+    Chunk(Path path, long start, long length, BlockLocation block)
+        throws IOException {
+      this.path = path;
+      this.start = start;
+      this.length = length;
+      this.hosts = block == null ? new String[0] : block.getHosts();
+      String[] topologyPaths = block == null ? new String[0] : block.getTopologyPaths();
+      if (topologyPaths.length == 0) {
+        racks = new String[] { DEFAULT_RACK };
+      } else {
+        racks = new String[topologyPaths.length];
+        for (int i = 0; i < topologyPaths.length; i++) {
+          racks[i] = new Path(topologyPaths[i]).getParent().toUri().getPath();
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the chunk at one index of a combined split, for
+   * {@link CombineFileRecordReader}.
+   */
+  private static class ChunkRecordReader extends RecordReader<LongWritable, Text> {
+    private final FileSplit split;
+    private final RecordReader<LongWritable, Text> reader;
+
+    // Called by CombineFileRecordReader
+    public ChunkRecordReader(CombineFileSplit split, TaskAttemptContext context,
+        Integer index) {
+      this.split = new FileSplit(split.getPath(index), split.getOffset(index),
+          split.getLength(index), null);
+      if (LzoInputFormatCommon.isLzoFile(this.split.getPath().toString())) {
+        reader = new LzoLineRecordReader();
+      } else {
+        reader = new LineRecordReader();
+      }
+    }
+
+    @Override
+    public void initialize(InputSplit ignored, TaskAttemptContext context)
+        throws IOException, InterruptedException {
+      reader.initialize(split, context);
+    }
+
+    @Override
+    public boolean nextKeyValue() throws IOException, InterruptedException {
+      return reader.nextKeyValue();
+    }
+
+    @Override
+    public LongWritable getCurrentKey() throws IOException, InterruptedException {
+      return reader.getCurrentKey();
+    }
+
+    @Override
+    public Text getCurrentValue() throws IOException, InterruptedException {
+      return reader.getCurrentValue();
+    }
+
+    @Override
+    public float getProgress() throws IOException, InterruptedException {
+      return reader.getProgress();
+    }
+
+    @Override
+    public void close() throws IOException {
+      reader.close();
+    }
+  }
+}
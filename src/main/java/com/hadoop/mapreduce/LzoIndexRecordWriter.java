@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -11,13 +12,19 @@ import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.mapreduce.RecordWriter;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 
+import com.hadoop.compression.lzo.DistributedLzoIndexer;
 import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzoIndexWriter;
+import com.hadoop.compression.lzo.LzopCodec;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
 public class LzoIndexRecordWriter extends RecordWriter<Path, LongWritable> {
   private static final Log LOG = LogFactory.getLog(LzoIndexRecordWriter.class);
 
   private FSDataOutputStream outputStream;
+  private LzoIndexWriter indexWriter;
+  // Set when the indexer splits files, and each task only writes part of an index.
+  private boolean partial;
   private final TaskAttemptContext context;
 
   private FileSystem fs;
@@ -34,9 +41,18 @@ public class LzoIndexRecordWriter extends RecordWriter<Path, LongWritable> {
     if (outputStream == null) {
       // Set up the output file on the first record.
       LOG.info("Setting up output stream to write index file for " + path);
-      outputStream = setupOutputFile(path);
+      outputStream = setupOutputFile(path, offset.get());
+      if (!partial) {
+        indexWriter = new LzoIndexWriter(outputStream,
+            LzopCodec.getIndexVersion(CompatibilityUtil.getConfiguration(context)));
+      }
+    }
+    if (partial) {
+      // Partial indexes are merged by the indexer, which only needs the positions.
+      outputStream.writeLong(offset.get());
+    } else {
+      indexWriter.writePosition(offset.get());
     }
-    offset.write(outputStream);
   }
 
   @Override
@@ -51,10 +67,23 @@ public class LzoIndexRecordWriter extends RecordWriter<Path, LongWritable> {
     }
   }
 
-  private FSDataOutputStream setupOutputFile(Path path) throws IOException {
-    fs = path.getFileSystem(CompatibilityUtil.getConfiguration(context));
+  private FSDataOutputStream setupOutputFile(Path path, long firstPosition) throws IOException {
+    Configuration conf = CompatibilityUtil.getConfiguration(context);
+    fs = path.getFileSystem(conf);
     inputPath = path;
 
+    partial = DistributedLzoIndexer.getSplitSize(conf) > 0;
+    if (partial) {
+      // For /a/b/c.lzo, the part of the index starting at the block at 1234 is
+      // /a/b/c.lzo.index.part-00000000000000001234, written to a .tmp file first.
+      // The indexer merges the parts into /a/b/c.lzo.index once all tasks are done.
+      realIndexPath = DistributedLzoIndexer.getPartialIndexPath(path, firstPosition);
+      tmpIndexPath = realIndexPath.suffix(".tmp");
+      // A failed attempt at the same split may have left files of the same names.
+      fs.delete(realIndexPath, false);
+      return fs.create(tmpIndexPath, true);
+    }
+
     // For /a/b/c.lzo, tmpIndexPath = /a/b/c.lzo.index.tmp,
     // and it is moved to realIndexPath = /a/b/c.lzo.index upon completion.
     tmpIndexPath = path.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX);
@@ -24,16 +24,21 @@ import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionCodecFactory;
+import org.apache.hadoop.io.compress.CompressionInputStream;
+import org.apache.hadoop.mapreduce.Counter;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.util.LineReader;
 
+import com.hadoop.compression.lzo.LzopInputStream;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
 /**
@@ -47,6 +52,19 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
   private long end;
   private LineReader in;
   private FSDataInputStream fileIn;
+  private LzopInputStream lzopIn;
+  private long streamStart;
+  private Counter blocksVerifiedCounter = null;
+  private Counter blocksSkippedCounter = null;
+
+  /**
+   * Blocks of lzop input whose checksums were verified or not, see
+   * {@link com.hadoop.compression.lzo.LzopCodec#LZO_CHECKSUM_VERIFY_PERCENT_KEY}.
+   */
+  public enum Counters {
+    CHECKSUM_BLOCKS_VERIFIED,
+    CHECKSUM_BLOCKS_SKIPPED
+  }
 
   private final LongWritable key = new LongWritable();
   private final Text value = new Text();
@@ -67,11 +85,27 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
     return pos;
   }
 
+  /**
+   * Position in the file just past the last block handed to the line reader.
+   * An lzop stream that reads ahead has moved fileIn further than that.
+   */
+  private long getFilePosition() throws IOException {
+    if (lzopIn != null) {
+      return streamStart + lzopIn.getCompressedBytesRead();
+    }
+    return fileIn.getPos();
+  }
+
   @Override
   public synchronized void close() throws IOException {
     if (in != null) {
       in.close();
     }
+    if (lzopIn != null && blocksVerifiedCounter != null) {
+      CompatibilityUtil.incrementCounter(blocksVerifiedCounter, lzopIn.getBlocksVerified());
+      CompatibilityUtil.incrementCounter(blocksSkippedCounter, lzopIn.getBlocksSkipped());
+      lzopIn = null;
+    }
   }
 
   @Override
@@ -91,6 +125,11 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
     end = start + split.getLength();
     final Path file = split.getPath();
     Configuration job = CompatibilityUtil.getConfiguration(context);
+    if (context instanceof TaskInputOutputContext<?, ?, ?, ?>) {
+      TaskInputOutputContext<?, ?, ?, ?> ioContext = (TaskInputOutputContext<?, ?, ?, ?>) context;
+      blocksVerifiedCounter = CompatibilityUtil.getCounter(ioContext, Counters.CHECKSUM_BLOCKS_VERIFIED);
+      blocksSkippedCounter = CompatibilityUtil.getCounter(ioContext, Counters.CHECKSUM_BLOCKS_SKIPPED);
+    }
 
     FileSystem fs = file.getFileSystem(job);
     CompressionCodecFactory compressionCodecs = new CompressionCodecFactory(job);
@@ -103,14 +142,31 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
     fileIn = fs.open(split.getPath());
 
     // creates input stream and also reads the file header
-    in = new LineReader(codec.createInputStream(fileIn), job);
+    CompressionInputStream cIn = codec.createInputStream(fileIn);
+    in = new LineReader(cIn, job);
+    if (cIn instanceof LzopInputStream) {
+      lzopIn = (LzopInputStream) cIn;
+    }
 
     if (start != 0) {
       fileIn.seek(start);
+    }
+    streamStart = fileIn.getPos();
+    if (lzopIn != null) {
+      // Only the block starting at the end of the split can hold the rest
+      // of its last line, so there is no point reading ahead past it.
+      lzopIn.setReadAheadLimit(end - streamStart);
+    }
 
-      // read and ignore the first line
-      in.readLine(new Text());
-      start = fileIn.getPos();
+    if (start != 0) {
+      if (split instanceof LzoFileSplit) {
+        // the index says where the first line ends, skip to the next one
+        IOUtils.skipFully(cIn, ((LzoFileSplit) split).getFirstRecordOffset());
+      } else {
+        // read and ignore the first line
+        in.readLine(new Text());
+      }
+      start = getFilePosition();
     }
 
     this.pos = start;
@@ -129,7 +185,7 @@ public class LzoLineRecordReader extends RecordReader<LongWritable, Text> {
       if (newSize == 0) {
         return false;
       }
-      pos = fileIn.getPos();
+      pos = getFilePosition();
 
       return true;
     }
@@ -10,6 +10,9 @@ import org.apache.hadoop.mapreduce.RecordReader;
 import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
 
+import com.hadoop.compression.lzo.DistributedLzoIndexer;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
 public class LzoSplitInputFormat extends FileInputFormat<Path, LongWritable> {
 
   @Override
@@ -20,8 +23,9 @@ public class LzoSplitInputFormat extends FileInputFormat<Path, LongWritable> {
 
   @Override
   protected boolean isSplitable(JobContext context, Path filename) {
-    // Force the files to be unsplittable, because indexing requires seeing all the
-    // compressed blocks in succession.
-    return false;
+    // Unless asked to split them, keep the files whole, so that one task sees all the
+    // compressed blocks in succession. Split files are indexed in parts that the
+    // indexer merges.
+    return DistributedLzoIndexer.getSplitSize(CompatibilityUtil.getConfiguration(context)) > 0;
   }
 }
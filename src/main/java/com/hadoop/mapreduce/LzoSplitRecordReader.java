@@ -20,22 +20,39 @@ import org.apache.hadoop.mapreduce.TaskAttemptContext;
 import org.apache.hadoop.mapreduce.TaskInputOutputContext;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 
+import com.hadoop.compression.lzo.LzoBlockScanner;
+import com.hadoop.compression.lzo.LzoIndex;
 import com.hadoop.compression.lzo.LzopDecompressor;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
 
+/**
+ * Reads the positions of the lzo blocks starting in a split of an lzo file.
+ * A split that does not start at the beginning of the file first looks for
+ * the first block header in it: a plausible pair of block sizes, followed
+ * by a chain of further plausible headers, or the end of the file.
+ */
 public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
   private static final Log LOG = LogFactory.getLog(LzoSplitRecordReader.class);
 
   private final int LOG_EVERY_N_BLOCKS = 1000;
 
+  /** lzop refuses blocks bigger than this. */
+  private static final int MAX_BLOCK_SIZE = 64 * 1024 * 1024;
+  /** How many following headers a candidate block header must lead to. */
+  private static final int HEADER_CHAIN_LENGTH = 8;
+  private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
   private final LongWritable curValue = new LongWritable(-1);
   private FSDataInputStream rawInputStream;
+  private LzoBlockScanner scanner;
   private TaskAttemptContext context;
 
   private int numBlocksRead = 0;
   private int numDecompressedChecksums = -1;
   private int numCompressedChecksums = -1;
   private long totalFileSize = 0;
+  private long splitStart = 0;
+  private long splitEnd = 0;
   private Path lzoFile;
   private Counter readSuccessCounter = null;
 
@@ -48,8 +65,9 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
     context = taskAttemptContext;
     FileSplit fileSplit = (FileSplit)genericSplit;
     lzoFile = fileSplit.getPath();
-    // The LzoSplitInputFormat is not splittable, so the split length is the whole file.
-    totalFileSize = fileSplit.getLength();
+    // Unless the indexer splits files, the split length is the whole file.
+    splitStart = fileSplit.getStart();
+    splitEnd = splitStart + fileSplit.getLength();
 
     if (taskAttemptContext instanceof TaskInputOutputContext<?, ?, ?, ?>) {
       readSuccessCounter = CompatibilityUtil.getCounter(
@@ -65,6 +83,8 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
     LzopDecompressor lzopDecompressor = (LzopDecompressor)codec.createDecompressor();
     FileSystem fs = lzoFile.getFileSystem(conf);
     rawInputStream = fs.open(lzoFile);
+    // Leave out the index embedded at the end of the file, if there is one.
+    totalFileSize = LzoIndex.getStreamEnd(rawInputStream, fs.getFileStatus(lzoFile).getLen());
 
     // Creating the LzopInputStream here just reads the lzo header for us, nothing more.
     // We do the rest of our input off of the raw stream is.
@@ -75,44 +95,124 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
     // erroneously returns zero, and all block offsets will be wrong.
     numCompressedChecksums = lzopDecompressor.getCompressedChecksumsCount();
     numDecompressedChecksums = lzopDecompressor.getDecompressedChecksumsCount();
+
+    long firstBlock = rawInputStream.getPos();
+    if (splitStart > firstBlock) {
+      firstBlock = findFirstBlock(splitStart, splitEnd);
+      LOG.info("First block at or after " + splitStart + " in " + lzoFile + " is at " + firstBlock);
+      if (firstBlock < 0) {
+        // There is no block in the split, start at its end.
+        firstBlock = splitEnd;
+      }
+    }
+    scanner = new LzoBlockScanner(rawInputStream, totalFileSize, firstBlock,
+        numDecompressedChecksums, numCompressedChecksums);
+  }
+
+  /**
+   * Find the first block header in [from, to).
+   *
+   * @return its position, or -1 if no block starts in the range
+   */
+  private long findFirstBlock(long from, long to) throws IOException {
+    byte[] buf = new byte[SCAN_BUFFER_SIZE + 8];
+    for (long base = from; base < to && base + 8 <= totalFileSize; base += SCAN_BUFFER_SIZE) {
+      int len = (int) Math.min(buf.length, totalFileSize - base);
+      rawInputStream.readFully(base, buf, 0, len);
+      int candidates = (int) Math.min(Math.min(SCAN_BUFFER_SIZE, to - base), len - 7);
+      for (int i = 0; i < candidates; i++) {
+        int uncompressedBlockSize = readInt(buf, i);
+        int compressedBlockSize = readInt(buf, i + 4);
+        if (isBlockHeader(uncompressedBlockSize, compressedBlockSize) &&
+            isFollowedByBlocks(base + i, uncompressedBlockSize, compressedBlockSize)) {
+          return base + i;
+        }
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Check that the blocks following a candidate header have plausible
+   * headers too, as far as the chain length or the end of the file.
+   */
+  private boolean isFollowedByBlocks(long pos, int uncompressedBlockSize,
+      int compressedBlockSize) throws IOException {
+    byte[] header = new byte[8];
+    for (int i = 0; i < HEADER_CHAIN_LENGTH; i++) {
+      pos = nextBlockPosition(pos, uncompressedBlockSize, compressedBlockSize);
+      if (pos == totalFileSize) {
+        // A truncated file without the end marker
+        return true;
+      } else if (pos + 4 > totalFileSize) {
+        return false;
+      }
+      rawInputStream.readFully(pos, header, 0, 4);
+      uncompressedBlockSize = readInt(header, 0);
+      if (uncompressedBlockSize == 0) {
+        // The end marker is the last thing in the file
+        return pos + 4 == totalFileSize;
+      } else if (pos + 8 > totalFileSize) {
+        return false;
+      }
+      rawInputStream.readFully(pos + 4, header, 4, 4);
+      compressedBlockSize = readInt(header, 4);
+      if (!isBlockHeader(uncompressedBlockSize, compressedBlockSize)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isBlockHeader(int uncompressedBlockSize, int compressedBlockSize) {
+    // Blocks that do not compress are stored as is
+    return uncompressedBlockSize > 0 && uncompressedBlockSize <= MAX_BLOCK_SIZE &&
+        compressedBlockSize > 0 && compressedBlockSize <= uncompressedBlockSize;
+  }
+
+  private long nextBlockPosition(long pos, int uncompressedBlockSize, int compressedBlockSize) {
+    return pos + LzoBlockScanner.getHeaderLength(uncompressedBlockSize,
+        compressedBlockSize, numDecompressedChecksums, numCompressedChecksums) +
+        compressedBlockSize;
+  }
+
+  private static int readInt(byte[] b, int off) {
+    return ((b[off] & 0xFF) << 24) | ((b[off + 1] & 0xFF) << 16) |
+        ((b[off + 2] & 0xFF) << 8) | (b[off + 3] & 0xFF);
   }
 
   @Override
   public boolean nextKeyValue() throws IOException {
 
     try {
-      int uncompressedBlockSize = rawInputStream.readInt();
-      if (uncompressedBlockSize == 0) {
+      if (scanner.getNextPosition() >= splitEnd) {
+        // The next block belongs to the next split.
+        if (readSuccessCounter != null) {
+          CompatibilityUtil.incrementCounter(readSuccessCounter, 1);
+        }
+        return false;
+      }
+      if (!scanner.next()) {
         // An uncompressed block size of zero means end of file.
         if (readSuccessCounter != null) {
           CompatibilityUtil.incrementCounter(readSuccessCounter, 1);
         }
         return false;
-      } else if (uncompressedBlockSize < 0) {
+      } else if (scanner.getUncompressedBlockSize() < 0) {
         throw new EOFException("Could not read uncompressed block size at position " +
-                               rawInputStream.getPos() + " in file " + lzoFile);
+                               scanner.getPosition() + " in file " + lzoFile);
       }
 
-      int compressedBlockSize = rawInputStream.readInt();
-      if (compressedBlockSize <= 0) {
+      if (scanner.getCompressedBlockSize() <= 0) {
         throw new EOFException("Could not read compressed block size at position " +
-                               rawInputStream.getPos() + " in file " + lzoFile);
+                               (scanner.getPosition() + 4) + " in file " + lzoFile);
       }
 
-      // See LzopInputStream.getCompressedData
-      boolean isUncompressedBlock = (uncompressedBlockSize == compressedBlockSize);
-      int numChecksumsToSkip = isUncompressedBlock ?
-              numDecompressedChecksums : numDecompressedChecksums + numCompressedChecksums;
-
-      // Get the current position.  Since we've read two ints, the current block started 8 bytes ago.
-      long pos = rawInputStream.getPos();
-      curValue.set(pos - 8);
+      long pos = scanner.getPosition();
+      curValue.set(pos);
 
-      // Seek beyond the checksums and beyond the block data to the beginning of the next block.
-      long nextBlockOffset = pos + compressedBlockSize + (4 * numChecksumsToSkip);
-      if (nextBlockOffset < totalFileSize) {
-        rawInputStream.seek(nextBlockOffset);
-      } else { // truncated
+      // The block must end before the file does, otherwise it is truncated.
+      if (scanner.getNextPosition() >= totalFileSize) {
         throw new EOFException("truncated");
       }
 
@@ -153,10 +253,11 @@ public class LzoSplitRecordReader extends RecordReader<Path, LongWritable> {
 
   @Override
   public float getProgress() throws IOException {
-    if (totalFileSize == 0) {
+    if (splitEnd == splitStart || scanner == null) {
       return 0.0f;
     } else {
-      return (float)rawInputStream.getPos() / totalFileSize;
+      return Math.max(0.0f, Math.min(1.0f,
+          (float)(scanner.getNextPosition() - splitStart) / (splitEnd - splitStart)));
     }
   }
 
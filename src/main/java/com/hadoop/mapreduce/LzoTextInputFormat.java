@@ -21,11 +21,14 @@ package com.hadoop.mapreduce;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -61,11 +64,11 @@ public class LzoTextInputFormat extends TextInputFormat {
 
     Configuration conf = CompatibilityUtil.getConfiguration(job);
     boolean ignoreNonLzo = LzoInputFormatCommon.getIgnoreNonLzoProperty(conf);
+    List<Path> lzoFiles = new ArrayList<Path>();
 
     for (Iterator<FileStatus> iterator = files.iterator(); iterator.hasNext();) {
       FileStatus fileStatus = iterator.next();
       Path file = fileStatus.getPath();
-      FileSystem fs = file.getFileSystem(conf);
 
       if (!LzoInputFormatCommon.isLzoFile(file.toString())) {
         // Get rid of non-LZO files, unless the conf explicitly tells us to
@@ -76,12 +79,13 @@ public class LzoTextInputFormat extends TextInputFormat {
           iterator.remove();
         }
       } else {
-        //read the index file
-        LzoIndex index = LzoIndex.readIndex(fs, file);
-        indexes.put(file, index);
+        lzoFiles.add(file);
       }
     }
 
+    //read the index files
+    indexes.putAll(LzoInputFormatCommon.readIndexes(conf, lzoFiles));
+
     return files;
   }
 
@@ -104,6 +108,11 @@ public class LzoTextInputFormat extends TextInputFormat {
     // with the lzo blocks
 
     List<InputSplit> result = new ArrayList<InputSplit>();
+    long uncompressedSplitSize = LzoInputFormatCommon.getUncompressedSplitSizeProperty(conf);
+    Set<Path> planned = new HashSet<Path>();
+    Path lastFile = null;
+    FileStatus status = null;
+    BlockLocation[] blocks = null;
 
     for (InputSplit genericSplit : splits) {
       FileSplit fileSplit = (FileSplit) genericSplit;
@@ -128,20 +137,63 @@ public class LzoTextInputFormat extends TextInputFormat {
         continue;
       }
 
+      if (uncompressedSplitSize > 0) {
+        // replace all the splits of the file at once
+        if (planned.add(file)) {
+          addUncompressedSplits(fs, file, index, uncompressedSplitSize, result);
+        }
+        continue;
+      }
+
       long start = fileSplit.getStart();
       long end = start + fileSplit.getLength();
 
       long lzoStart = index.alignSliceStartToIndex(start, end);
-      long lzoEnd = index.alignSliceEndToIndex(end, fs.getFileStatus(file).getLen());
+      if (!file.equals(lastFile)) {
+        // the splits of a file come together
+        lastFile = file;
+        status = fs.getFileStatus(file);
+        blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+      }
+      long lzoEnd = index.alignSliceEndToIndex(end, status.getLen());
 
       if (lzoStart != LzoIndex.NOT_FOUND  && lzoEnd != LzoIndex.NOT_FOUND) {
-        result.add(new FileSplit(file, lzoStart, lzoEnd - lzoStart, fileSplit.getLocations()));
+        result.add(newSplit(file, lzoStart, lzoEnd,
+            LzoInputFormatCommon.getSplitHosts(blocks, lzoStart, lzoEnd), index));
       }
     }
 
     return result;
   }
 
+  /**
+   * Split an lzo file by the uncompressed size of its blocks.
+   */
+  private void addUncompressedSplits(FileSystem fs, Path file, LzoIndex index,
+      long splitSize, List<InputSplit> result) throws IOException {
+    FileStatus status = fs.getFileStatus(file);
+    long[] bounds = LzoInputFormatCommon.planUncompressedSplits(fs, file, index,
+        status.getLen(), splitSize);
+    BlockLocation[] blocks = fs.getFileBlockLocations(status, 0, status.getLen());
+    for (int i = 0; i < bounds.length - 1; i++) {
+      result.add(newSplit(file, bounds[i], bounds[i + 1],
+          LzoInputFormatCommon.getSplitHosts(blocks, bounds[i], bounds[i + 1]), index));
+    }
+  }
+
+  /**
+   * Create the split of an lzo file between two block positions, carrying
+   * where its first record starts if the index knows.
+   */
+  private FileSplit newSplit(Path file, long start, long end, String[] hosts,
+      LzoIndex index) {
+    long firstRecordOffset = LzoInputFormatCommon.getFirstRecordOffset(index, start);
+    if (firstRecordOffset >= 0) {
+      return new LzoFileSplit(file, start, end - start, hosts, firstRecordOffset);
+    }
+    return new FileSplit(file, start, end - start, hosts);
+  }
+
   @Override
   public RecordReader<LongWritable, Text> createRecordReader(InputSplit split,
       TaskAttemptContext taskAttempt) {
@@ -162,6 +162,17 @@ typedef unsigned (__LZO_CDECL *lzo_version_t)();
 typedef int (__LZO_CDECL *lzo_init_t)(unsigned, int, int, int, int, int, int,
   int, int, int);
 
+// type of pointer to lzo_adler32 and lzo_crc32
+typedef lzo_uint32 (__LZO_CDECL *lzo_checksum_t)(lzo_uint32, const lzo_bytep,
+  lzo_uint);
+
+// Block checksums computed along with (de)compressing; must match the
+// CHECKSUM_* flags of LzoDecompressor
+#define CHECKSUM_COMPRESSED_ADLER32 0x01
+#define CHECKSUM_COMPRESSED_CRC32 0x02
+#define CHECKSUM_UNCOMPRESSED_ADLER32 0x04
+#define CHECKSUM_UNCOMPRESSED_CRC32 0x08
+
 // type of pointer to compression level function
 typedef int (__LZO_CDECL *lzo_compress_level_t)(const lzo_bytep, lzo_uint,
   lzo_bytep, lzo_uintp, lzo_voidp, const lzo_bytep, lzo_uint, lzo_callback_p,
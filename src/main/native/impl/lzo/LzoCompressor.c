@@ -25,6 +25,9 @@
 static void *liblzo2 = NULL;
 // lzo2 library version
 static jint liblzo2_version = 0;
+// lzo2 checksum functions, for the checksums computed along with compressing
+static lzo_checksum_t lzo_adler32_func = NULL;
+static lzo_checksum_t lzo_crc32_func = NULL;
 
 // The lzo 'compressors'
 typedef struct {
@@ -107,7 +110,6 @@ typedef int
                                   lzo_bytep dst, lzo_uintp dst_len,
                                   lzo_voidp wrkmem, int compression_level );
 
-static jfieldID LzoCompressor_clazz;
 static jfieldID LzoCompressor_finish;
 static jfieldID LzoCompressor_finished;
 static jfieldID LzoCompressor_uncompressedDirectBuf;
@@ -119,6 +121,14 @@ static jfieldID LzoCompressor_lzoCompressLevelFunc;
 static jfieldID LzoCompressor_lzoCompressionLevel;
 static jfieldID LzoCompressor_workingMemoryBufLen;
 static jfieldID LzoCompressor_workingMemoryBuf;
+static jfieldID LzoCompressor_uncompressedDirectBufAddr;
+static jfieldID LzoCompressor_compressedDirectBufAddr;
+static jfieldID LzoCompressor_workingMemoryBufAddr;
+static jfieldID LzoCompressor_checksums;
+static jfieldID LzoCompressor_compressedAdler32;
+static jfieldID LzoCompressor_compressedCrc32;
+static jfieldID LzoCompressor_uncompressedAdler32;
+static jfieldID LzoCompressor_uncompressedCrc32;
 
 JNIEXPORT void JNICALL
 Java_com_hadoop_compression_lzo_LzoCompressor_initIDs(
@@ -145,8 +155,6 @@ Java_com_hadoop_compression_lzo_LzoCompressor_initIDs(
   }
 #endif
     
-  LzoCompressor_clazz = (*env)->GetStaticFieldID(env, class, "clazz", 
-                                                 "Ljava/lang/Class;");
   LzoCompressor_finish = (*env)->GetFieldID(env, class, "finish", "Z");
   LzoCompressor_finished = (*env)->GetFieldID(env, class, "finished", "Z");
   LzoCompressor_uncompressedDirectBuf = (*env)->GetFieldID(env, class, 
@@ -170,6 +178,21 @@ Java_com_hadoop_compression_lzo_LzoCompressor_initIDs(
                                               "Ljava/nio/ByteBuffer;");
   LzoCompressor_lzoCompressLevelFunc = (*env)->GetFieldID(env, class,
     "lzoCompressLevelFunc", "J");
+  LzoCompressor_uncompressedDirectBufAddr = (*env)->GetFieldID(env, class,
+                                              "uncompressedDirectBufAddr", "J");
+  LzoCompressor_compressedDirectBufAddr = (*env)->GetFieldID(env, class,
+                                              "compressedDirectBufAddr", "J");
+  LzoCompressor_workingMemoryBufAddr = (*env)->GetFieldID(env, class,
+                                              "workingMemoryBufAddr", "J");
+  LzoCompressor_checksums = (*env)->GetFieldID(env, class, "checksums", "I");
+  LzoCompressor_compressedAdler32 = (*env)->GetFieldID(env, class,
+                                              "compressedAdler32", "I");
+  LzoCompressor_compressedCrc32 = (*env)->GetFieldID(env, class,
+                                              "compressedCrc32", "I");
+  LzoCompressor_uncompressedAdler32 = (*env)->GetFieldID(env, class,
+                                              "uncompressedAdler32", "I");
+  LzoCompressor_uncompressedCrc32 = (*env)->GetFieldID(env, class,
+                                              "uncompressedCrc32", "I");
 
   // record lzo library version
 #ifdef UNIX
@@ -183,6 +206,48 @@ Java_com_hadoop_compression_lzo_LzoCompressor_initIDs(
 
   liblzo2_version = (NULL == lzo_version_ptr) ? 0
     : (jint) ((lzo_version_t)lzo_version_ptr)();
+
+#ifdef UNIX
+  LOAD_DYNAMIC_SYMBOL(lzo_adler32_func, env, liblzo2, "lzo_adler32");
+  LOAD_DYNAMIC_SYMBOL(lzo_crc32_func, env, liblzo2, "lzo_crc32");
+#endif
+
+#ifdef WINDOWS
+  LOAD_DYNAMIC_SYMBOL(lzo_checksum_t, lzo_adler32_func, env, liblzo2,
+    "lzo_adler32");
+  LOAD_DYNAMIC_SYMBOL(lzo_checksum_t, lzo_crc32_func, env, liblzo2,
+    "lzo_crc32");
+#endif
+}
+
+/**
+ * Set the checksums LzoCompressor asked for to those of a block just
+ * compressed, while both sides of it are still in cache. A block stored
+ * without compressing it has no compressed side.
+ */
+static void compute_checksums(JNIEnv *env, jobject this,
+                              const lzo_bytep uncompressed, lzo_uint uncompressed_len,
+                              const lzo_bytep compressed, lzo_uint compressed_len) {
+  jint checksums = (*env)->GetIntField(env, this, LzoCompressor_checksums);
+  if (checksums & CHECKSUM_UNCOMPRESSED_ADLER32) {
+    (*env)->SetIntField(env, this, LzoCompressor_uncompressedAdler32,
+                        (jint) lzo_adler32_func(1, uncompressed, uncompressed_len));
+  }
+  if (checksums & CHECKSUM_UNCOMPRESSED_CRC32) {
+    (*env)->SetIntField(env, this, LzoCompressor_uncompressedCrc32,
+                        (jint) lzo_crc32_func(0, uncompressed, uncompressed_len));
+  }
+  if (compressed == NULL) {
+    return;
+  }
+  if (checksums & CHECKSUM_COMPRESSED_ADLER32) {
+    (*env)->SetIntField(env, this, LzoCompressor_compressedAdler32,
+                        (jint) lzo_adler32_func(1, compressed, compressed_len));
+  }
+  if (checksums & CHECKSUM_COMPRESSED_CRC32) {
+    (*env)->SetIntField(env, this, LzoCompressor_compressedCrc32,
+                        (jint) lzo_crc32_func(0, compressed, compressed_len));
+  }
 }
 
 JNIEXPORT void JNICALL
@@ -254,40 +319,19 @@ Java_com_hadoop_compression_lzo_LzoCompressor_getLzoLibraryVersion(
   return liblzo2_version;
 }
 
-JNIEXPORT jint JNICALL
-Java_com_hadoop_compression_lzo_LzoCompressor_compressBytesDirect(
-  JNIEnv *env, jobject this, jint compressor 
-	) {
-  jobject clazz = NULL;
-  jobject uncompressed_direct_buf = NULL;
-  lzo_uint uncompressed_direct_buf_len = 0;
-  jobject compressed_direct_buf = NULL;
-  lzo_uint compressed_direct_buf_len = 0;
-  int compression_level = UNDEFINED_COMPRESSION_LEVEL;
-  jobject working_memory_buf = NULL;
+/**
+ * Compress src into dst with the compressor and level set up on this
+ * LzoCompressor. On entry *dst_len is the room in dst; on return it is the
+ * compressed length. Returns the lzo return code.
+ */
+static int compress_block(JNIEnv *env, jobject this, jint compressor,
+                          lzo_bytep src, lzo_uint src_len,
+                          lzo_bytep dst, lzo_uintp dst_len, lzo_voidp workmem) {
+  const char *lzo_compressor_function = lzo_compressors[compressor].function;
   jlong lzo_compressor_funcptr = 0;
   jlong lzo_compress_level_funcptr = 0;
   lzo_compress_level_t compressLevelPtr = NULL;
-  lzo_bytep uncompressed_bytes = NULL;
-  lzo_bytep compressed_bytes = NULL;
-  lzo_voidp workmem = NULL;
-  lzo_uint no_compressed_bytes = 0;
-  int rv = 0;
-  char exception_msg[MSG_LEN];
-  const char *lzo_compressor_function = lzo_compressors[compressor].function;
-
-	// Get members of LzoCompressor
-    clazz = (*env)->GetStaticObjectField(env, this, 
-                                                 LzoCompressor_clazz);
-	uncompressed_direct_buf = (*env)->GetObjectField(env, this, 
-									                    LzoCompressor_uncompressedDirectBuf);
-	uncompressed_direct_buf_len = (*env)->GetIntField(env, this, 
-									                  LzoCompressor_uncompressedDirectBufLen);
-
-	compressed_direct_buf = (*env)->GetObjectField(env, this, 
-									                        LzoCompressor_compressedDirectBuf);
-	compressed_direct_buf_len = (*env)->GetIntField(env, this, 
-									                            LzoCompressor_directBufferSize);
+  int compression_level = UNDEFINED_COMPRESSION_LEVEL;
 
   // Prefer the user defined compression level.
   compression_level = (*env)->GetIntField(env, this,
@@ -296,49 +340,12 @@ Java_com_hadoop_compression_lzo_LzoCompressor_compressBytesDirect(
     compression_level = lzo_compressors[compressor].compression_level;
   }
 
-	working_memory_buf = (*env)->GetObjectField(env, this, 
-									                      LzoCompressor_workingMemoryBuf);
-
   lzo_compressor_funcptr = (*env)->GetLongField(env, this,
                   LzoCompressor_lzoCompressor);
 
-    // Get the input direct buffer
-    LOCK_CLASS(env, clazz, "LzoCompressor");
-	uncompressed_bytes = (*env)->GetDirectBufferAddress(env, 
-                                            uncompressed_direct_buf);
-    UNLOCK_CLASS(env, clazz, "LzoCompressor");
-    
-  if (uncompressed_bytes == 0) {
-    	return (jint)0;
-	}
-	
-    // Get the output direct buffer
-    LOCK_CLASS(env, clazz, "LzoCompressor");
-	compressed_bytes = (*env)->GetDirectBufferAddress(env, 
-                                            compressed_direct_buf);
-    UNLOCK_CLASS(env, clazz, "LzoCompressor");
-    
-  if (compressed_bytes == 0) {
-		return (jint)0;
-	}
-	
-    // Get the working-memory direct buffer
-    LOCK_CLASS(env, clazz, "LzoCompressor");
-    workmem = (*env)->GetDirectBufferAddress(env, working_memory_buf);
-    UNLOCK_CLASS(env, clazz, "LzoCompressor");
-    
-  if (workmem == 0) {
-    return (jint)0;
-  }
-  
-	// Compress
-  no_compressed_bytes = compressed_direct_buf_len;
-  rv = 0;
   if (compression_level == UNDEFINED_COMPRESSION_LEVEL) {
     lzo_compress_t fptr = (lzo_compress_t) FUNC_PTR(lzo_compressor_funcptr);
-    rv = fptr(uncompressed_bytes, uncompressed_direct_buf_len,
-              compressed_bytes, &no_compressed_bytes, 
-              workmem);
+    return fptr(src, src_len, dst, dst_len, workmem);
   } else if (strstr(lzo_compressor_function, "lzo1x_999")
              || strstr(lzo_compressor_function, "lzo1y_999")) {
     // Compression levels are only available in these codecs.
@@ -346,15 +353,73 @@ Java_com_hadoop_compression_lzo_LzoCompressor_compressBytesDirect(
       LzoCompressor_lzoCompressLevelFunc);
     compressLevelPtr = (lzo_compress_level_t)FUNC_PTR(
       lzo_compress_level_funcptr);
-    rv = compressLevelPtr(uncompressed_bytes, uncompressed_direct_buf_len,
-      compressed_bytes, &no_compressed_bytes, workmem, NULL, 0, 0,
+    return compressLevelPtr(src, src_len, dst, dst_len, workmem, NULL, 0, 0,
       compression_level);
   } else {
     lzo_compress2_t fptr = (lzo_compress2_t) FUNC_PTR(lzo_compressor_funcptr);
-    rv = fptr(uncompressed_bytes, uncompressed_direct_buf_len,
-              compressed_bytes, &no_compressed_bytes, 
-              workmem, compression_level); 
+    return fptr(src, src_len, dst, dst_len, workmem, compression_level);
   }
+}
+
+/**
+ * Look up the address of the direct buffer in buf_field and store it in
+ * addr_field, so the per-block calls need not resolve it again.
+ */
+static void cache_buffer_address(JNIEnv *env, jobject this,
+                                 jfieldID buf_field, jfieldID addr_field) {
+  jobject buf = (*env)->GetObjectField(env, this, buf_field);
+  void *addr = (buf == NULL) ? NULL : (*env)->GetDirectBufferAddress(env, buf);
+  (*env)->SetLongField(env, this, addr_field, JLONG(addr));
+}
+
+JNIEXPORT void JNICALL
+Java_com_hadoop_compression_lzo_LzoCompressor_initBufferAddresses(
+  JNIEnv *env, jobject this
+  ) {
+  cache_buffer_address(env, this, LzoCompressor_uncompressedDirectBuf,
+                       LzoCompressor_uncompressedDirectBufAddr);
+  cache_buffer_address(env, this, LzoCompressor_compressedDirectBuf,
+                       LzoCompressor_compressedDirectBufAddr);
+  cache_buffer_address(env, this, LzoCompressor_workingMemoryBuf,
+                       LzoCompressor_workingMemoryBufAddr);
+}
+
+JNIEXPORT jint JNICALL
+Java_com_hadoop_compression_lzo_LzoCompressor_compressBytesDirect(
+  JNIEnv *env, jobject this, jint compressor 
+	) {
+  lzo_uint uncompressed_direct_buf_len = 0;
+  lzo_uint compressed_direct_buf_len = 0;
+  lzo_bytep uncompressed_bytes = NULL;
+  lzo_bytep compressed_bytes = NULL;
+  lzo_voidp workmem = NULL;
+  lzo_uint no_compressed_bytes = 0;
+  int rv = 0;
+  char exception_msg[MSG_LEN];
+  const char *lzo_compressor_function = lzo_compressors[compressor].function;
+
+  // Get members of LzoCompressor. The buffer addresses were cached when the
+  // buffers were allocated, so no locking is needed here.
+  uncompressed_direct_buf_len = (*env)->GetIntField(env, this,
+                                  LzoCompressor_uncompressedDirectBufLen);
+  compressed_direct_buf_len = (*env)->GetIntField(env, this,
+                                  LzoCompressor_directBufferSize);
+
+  uncompressed_bytes = (lzo_bytep) FUNC_PTR((*env)->GetLongField(env, this,
+                                  LzoCompressor_uncompressedDirectBufAddr));
+  compressed_bytes = (lzo_bytep) FUNC_PTR((*env)->GetLongField(env, this,
+                                  LzoCompressor_compressedDirectBufAddr));
+  workmem = (lzo_voidp) FUNC_PTR((*env)->GetLongField(env, this,
+                                  LzoCompressor_workingMemoryBufAddr));
+  if (uncompressed_bytes == NULL || compressed_bytes == NULL || workmem == NULL) {
+    return (jint)0;
+  }
+
+	// Compress
+  no_compressed_bytes = compressed_direct_buf_len;
+  rv = compress_block(env, this, compressor, uncompressed_bytes,
+                      uncompressed_direct_buf_len, compressed_bytes,
+                      &no_compressed_bytes, workmem);
 
   if (rv == LZO_E_OK) {
     // lzo compresses all input data
@@ -377,6 +442,75 @@ Java_com_hadoop_compression_lzo_LzoCompressor_compressBytesDirect(
   return (jint)no_compressed_bytes;
 }
 
+JNIEXPORT jint JNICALL
+Java_com_hadoop_compression_lzo_LzoCompressor_compressBufferDirect(
+  JNIEnv *env, jobject this, jint compressor,
+  jobject src, jint src_off, jint src_len,
+  jobject dst, jint dst_off, jint dst_len
+  ) {
+  lzo_bytep uncompressed_bytes = NULL;
+  lzo_bytep compressed_bytes = NULL;
+  lzo_voidp workmem = NULL;
+  lzo_uint no_compressed_bytes = 0;
+  int rv = 0;
+  char exception_msg[MSG_LEN];
+  const char *lzo_compressor_function = lzo_compressors[compressor].function;
+
+  // The data buffers belong to the caller; only the working memory is
+  // this LzoCompressor's own
+  uncompressed_bytes = (*env)->GetDirectBufferAddress(env, src);
+  compressed_bytes = (*env)->GetDirectBufferAddress(env, dst);
+  if (uncompressed_bytes == NULL || compressed_bytes == NULL) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "Buffers passed to compress must be direct");
+    return (jint)0;
+  }
+
+  workmem = (lzo_voidp) FUNC_PTR((*env)->GetLongField(env, this,
+                                  LzoCompressor_workingMemoryBufAddr));
+  if (workmem == NULL) {
+    return (jint)0;
+  }
+
+  // Compress
+  no_compressed_bytes = dst_len;
+  rv = compress_block(env, this, compressor, uncompressed_bytes + src_off,
+                      src_len, compressed_bytes + dst_off,
+                      &no_compressed_bytes, workmem);
+
+  if (rv != LZO_E_OK) {
+#ifdef UNIX
+    snprintf(exception_msg, MSG_LEN, "%s returned: %d", lzo_compressor_function,
+      rv);
+#endif
+
+#ifdef WINDOWS
+    _snprintf_s(exception_msg, MSG_LEN, _TRUNCATE, "%s returned: %d",
+      lzo_compressor_function, rv);
+#endif
+
+    THROW(env, "java/lang/InternalError", exception_msg);
+    return (jint)0;
+  }
+
+  compute_checksums(env, this, uncompressed_bytes + src_off, src_len,
+                    compressed_bytes + dst_off, no_compressed_bytes);
+  return (jint)no_compressed_bytes;
+}
+
+JNIEXPORT void JNICALL
+Java_com_hadoop_compression_lzo_LzoCompressor_checksumBufferDirect(
+  JNIEnv *env, jobject this, jobject src, jint src_off, jint src_len
+  ) {
+  lzo_bytep uncompressed_bytes = (*env)->GetDirectBufferAddress(env, src);
+  if (uncompressed_bytes == NULL) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "Buffers passed to checksum must be direct");
+    return;
+  }
+  compute_checksums(env, this, uncompressed_bytes + src_off, src_len, NULL, 0);
+}
+
 /**
  * vim: sw=2: ts=2: et:
  */
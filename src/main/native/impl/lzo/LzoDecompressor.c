@@ -24,6 +24,9 @@
 static void *liblzo2 = NULL;
 // lzo2 library version
 static jint liblzo2_version = 0;
+// lzo2 checksum functions, for the checksums computed along with decompressing
+static lzo_checksum_t lzo_adler32_func = NULL;
+static lzo_checksum_t lzo_crc32_func = NULL;
 
 #define MSG_LEN 1024
 
@@ -76,13 +79,19 @@ static char* lzo_decompressors[] = {
   /* 27 */  "lzo2a_decompress_safe"
 };
 
-static jfieldID LzoDecompressor_clazz;
 static jfieldID LzoDecompressor_finished;
 static jfieldID LzoDecompressor_compressedDirectBuf;
 static jfieldID LzoDecompressor_compressedDirectBufLen;
 static jfieldID LzoDecompressor_uncompressedDirectBuf;
 static jfieldID LzoDecompressor_directBufferSize;
 static jfieldID LzoDecompressor_lzoDecompressor;
+static jfieldID LzoDecompressor_compressedDirectBufAddr;
+static jfieldID LzoDecompressor_uncompressedDirectBufAddr;
+static jfieldID LzoDecompressor_nativeChecksums;
+static jfieldID LzoDecompressor_compressedAdler32;
+static jfieldID LzoDecompressor_compressedCrc32;
+static jfieldID LzoDecompressor_uncompressedAdler32;
+static jfieldID LzoDecompressor_uncompressedCrc32;
 
 JNIEXPORT void JNICALL
 Java_com_hadoop_compression_lzo_LzoDecompressor_initIDs(
@@ -110,8 +119,6 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_initIDs(
   }
 #endif
     
-  LzoDecompressor_clazz = (*env)->GetStaticFieldID(env, class, "clazz", 
-                                                   "Ljava/lang/Class;");
   LzoDecompressor_finished = (*env)->GetFieldID(env, class, "finished", "Z");
   LzoDecompressor_compressedDirectBuf = (*env)->GetFieldID(env, class, 
                                                 "compressedDirectBuf", 
@@ -125,6 +132,20 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_initIDs(
                                               "directBufferSize", "I");
   LzoDecompressor_lzoDecompressor = (*env)->GetFieldID(env, class,
                                               "lzoDecompressor", "J");
+  LzoDecompressor_compressedDirectBufAddr = (*env)->GetFieldID(env, class,
+                                              "compressedDirectBufAddr", "J");
+  LzoDecompressor_uncompressedDirectBufAddr = (*env)->GetFieldID(env, class,
+                                              "uncompressedDirectBufAddr", "J");
+  LzoDecompressor_nativeChecksums = (*env)->GetFieldID(env, class,
+                                              "nativeChecksums", "I");
+  LzoDecompressor_compressedAdler32 = (*env)->GetFieldID(env, class,
+                                              "compressedAdler32", "I");
+  LzoDecompressor_compressedCrc32 = (*env)->GetFieldID(env, class,
+                                              "compressedCrc32", "I");
+  LzoDecompressor_uncompressedAdler32 = (*env)->GetFieldID(env, class,
+                                              "uncompressedAdler32", "I");
+  LzoDecompressor_uncompressedCrc32 = (*env)->GetFieldID(env, class,
+                                              "uncompressedCrc32", "I");
 
   // record lzo library version
 #ifdef UNIX
@@ -138,6 +159,55 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_initIDs(
 
   liblzo2_version = (NULL == lzo_version_ptr) ? 0
     : (jint) ((lzo_version_t)lzo_version_ptr)();
+
+#ifdef UNIX
+  LOAD_DYNAMIC_SYMBOL(lzo_adler32_func, env, liblzo2, "lzo_adler32");
+  LOAD_DYNAMIC_SYMBOL(lzo_crc32_func, env, liblzo2, "lzo_crc32");
+#endif
+
+#ifdef WINDOWS
+  LOAD_DYNAMIC_SYMBOL(lzo_checksum_t, lzo_adler32_func, env, liblzo2,
+    "lzo_adler32");
+  LOAD_DYNAMIC_SYMBOL(lzo_checksum_t, lzo_crc32_func, env, liblzo2,
+    "lzo_crc32");
+#endif
+}
+
+/**
+ * Update the checksums LzoDecompressor asked for with a block just
+ * decompressed, while both sides of it are still in cache.
+ */
+static void update_checksums(JNIEnv *env, jobject this,
+                             const lzo_bytep compressed, lzo_uint compressed_len,
+                             const lzo_bytep uncompressed, lzo_uint uncompressed_len) {
+  jint checksums = (*env)->GetIntField(env, this, LzoDecompressor_nativeChecksums);
+  if (checksums == 0) {
+    return;
+  }
+  if (checksums & CHECKSUM_COMPRESSED_ADLER32) {
+    lzo_uint32 c = (lzo_uint32) (*env)->GetIntField(env, this,
+                                    LzoDecompressor_compressedAdler32);
+    (*env)->SetIntField(env, this, LzoDecompressor_compressedAdler32,
+                        (jint) lzo_adler32_func(c, compressed, compressed_len));
+  }
+  if (checksums & CHECKSUM_COMPRESSED_CRC32) {
+    lzo_uint32 c = (lzo_uint32) (*env)->GetIntField(env, this,
+                                    LzoDecompressor_compressedCrc32);
+    (*env)->SetIntField(env, this, LzoDecompressor_compressedCrc32,
+                        (jint) lzo_crc32_func(c, compressed, compressed_len));
+  }
+  if (checksums & CHECKSUM_UNCOMPRESSED_ADLER32) {
+    lzo_uint32 c = (lzo_uint32) (*env)->GetIntField(env, this,
+                                    LzoDecompressor_uncompressedAdler32);
+    (*env)->SetIntField(env, this, LzoDecompressor_uncompressedAdler32,
+                        (jint) lzo_adler32_func(c, uncompressed, uncompressed_len));
+  }
+  if (checksums & CHECKSUM_UNCOMPRESSED_CRC32) {
+    lzo_uint32 c = (lzo_uint32) (*env)->GetIntField(env, this,
+                                    LzoDecompressor_uncompressedCrc32);
+    (*env)->SetIntField(env, this, LzoDecompressor_uncompressedCrc32,
+                        (jint) lzo_crc32_func(c, uncompressed, uncompressed_len));
+  }
 }
 
 JNIEXPORT void JNICALL
@@ -196,14 +266,32 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_getLzoLibraryVersion(
   return liblzo2_version;
 }
 
+/**
+ * Look up the address of the direct buffer in buf_field and store it in
+ * addr_field, so the per-block calls need not resolve it again.
+ */
+static void cache_buffer_address(JNIEnv *env, jobject this,
+                                 jfieldID buf_field, jfieldID addr_field) {
+  jobject buf = (*env)->GetObjectField(env, this, buf_field);
+  void *addr = (buf == NULL) ? NULL : (*env)->GetDirectBufferAddress(env, buf);
+  (*env)->SetLongField(env, this, addr_field, JLONG(addr));
+}
+
+JNIEXPORT void JNICALL
+Java_com_hadoop_compression_lzo_LzoDecompressor_initBufferAddresses(
+  JNIEnv *env, jobject this
+  ) {
+  cache_buffer_address(env, this, LzoDecompressor_compressedDirectBuf,
+                       LzoDecompressor_compressedDirectBufAddr);
+  cache_buffer_address(env, this, LzoDecompressor_uncompressedDirectBuf,
+                       LzoDecompressor_uncompressedDirectBufAddr);
+}
+
 JNIEXPORT jint JNICALL
 Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
 	JNIEnv *env, jobject this, jint decompressor
 	) {
-  jobject clazz = NULL;
-  jobject compressed_direct_buf = NULL;
   lzo_uint compressed_direct_buf_len = 0;
-  jobject uncompressed_direct_buf = NULL;
   lzo_uint uncompressed_direct_buf_len = 0;
   jlong lzo_decompressor_funcptr = 0;
   lzo_bytep uncompressed_bytes = NULL;
@@ -214,42 +302,24 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
   char exception_msg[MSG_LEN];
   const char *lzo_decompressor_function = lzo_decompressors[decompressor];
 
-	// Get members of LzoDecompressor
-	clazz = (*env)->GetStaticObjectField(env, this, 
-	                                             LzoDecompressor_clazz);
-	compressed_direct_buf = (*env)->GetObjectField(env, this,
-                                              LzoDecompressor_compressedDirectBuf);
-	compressed_direct_buf_len = (*env)->GetIntField(env, this, 
-                        		  							LzoDecompressor_compressedDirectBufLen);
-
-	uncompressed_direct_buf = (*env)->GetObjectField(env, this, 
-                            								  LzoDecompressor_uncompressedDirectBuf);
-	uncompressed_direct_buf_len = (*env)->GetIntField(env, this,
-                                                LzoDecompressor_directBufferSize);
+  // Get members of LzoDecompressor. The buffer addresses were cached when
+  // the buffers were allocated, so no locking is needed here.
+  compressed_direct_buf_len = (*env)->GetIntField(env, this,
+                                  LzoDecompressor_compressedDirectBufLen);
+  uncompressed_direct_buf_len = (*env)->GetIntField(env, this,
+                                  LzoDecompressor_directBufferSize);
 
   lzo_decompressor_funcptr = (*env)->GetLongField(env, this,
-                                              LzoDecompressor_lzoDecompressor);
+                                  LzoDecompressor_lzoDecompressor);
 
-    // Get the input direct buffer
-    LOCK_CLASS(env, clazz, "LzoDecompressor");
-	uncompressed_bytes = (*env)->GetDirectBufferAddress(env, 
-											                    uncompressed_direct_buf);
-    UNLOCK_CLASS(env, clazz, "LzoDecompressor");
-    
- 	if (uncompressed_bytes == 0) {
+  uncompressed_bytes = (lzo_bytep) FUNC_PTR((*env)->GetLongField(env, this,
+                                  LzoDecompressor_uncompressedDirectBufAddr));
+  compressed_bytes = (lzo_bytep) FUNC_PTR((*env)->GetLongField(env, this,
+                                  LzoDecompressor_compressedDirectBufAddr));
+  if (uncompressed_bytes == NULL || compressed_bytes == NULL) {
     return (jint)0;
-	}
-	
-    // Get the output direct buffer
-    LOCK_CLASS(env, clazz, "LzoDecompressor");
-	compressed_bytes = (*env)->GetDirectBufferAddress(env, 
-										                    compressed_direct_buf);
-    UNLOCK_CLASS(env, clazz, "LzoDecompressor");
-
-  if (compressed_bytes == 0) {
-		return (jint)0;
-	}
-	
+  }
+
 	// Decompress
   no_uncompressed_bytes = uncompressed_direct_buf_len;
   fptr = (lzo_decompress_t) FUNC_PTR(lzo_decompressor_funcptr);
@@ -259,6 +329,8 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
   if (rv == LZO_E_OK) {
     // lzo decompresses all input data
     (*env)->SetIntField(env, this, LzoDecompressor_compressedDirectBufLen, 0);
+    update_checksums(env, this, compressed_bytes, compressed_direct_buf_len,
+                     uncompressed_bytes, no_uncompressed_bytes);
   } else {
 #ifdef UNIX
     snprintf(exception_msg, MSG_LEN, "%s returned: %d", 
@@ -276,6 +348,60 @@ Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBytesDirect(
   return (jint)no_uncompressed_bytes;
 }
 
+JNIEXPORT jint JNICALL
+Java_com_hadoop_compression_lzo_LzoDecompressor_decompressBufferDirect(
+  JNIEnv *env, jobject this, jint decompressor,
+  jobject src, jint src_off, jint src_len,
+  jobject dst, jint dst_off, jint dst_len
+  ) {
+  lzo_bytep compressed_bytes = NULL;
+  lzo_bytep uncompressed_bytes = NULL;
+  lzo_uint no_uncompressed_bytes = 0;
+  jlong lzo_decompressor_funcptr = 0;
+  lzo_decompress_t fptr = NULL;
+  int rv = 0;
+  char exception_msg[MSG_LEN];
+  const char *lzo_decompressor_function = lzo_decompressors[decompressor];
+
+  // The buffers belong to the caller, so nothing here touches the shared
+  // state of this LzoDecompressor
+  compressed_bytes = (*env)->GetDirectBufferAddress(env, src);
+  uncompressed_bytes = (*env)->GetDirectBufferAddress(env, dst);
+  if (compressed_bytes == NULL || uncompressed_bytes == NULL) {
+    THROW(env, "java/lang/IllegalArgumentException",
+          "Buffers passed to decompress must be direct");
+    return (jint)0;
+  }
+
+  lzo_decompressor_funcptr = (*env)->GetLongField(env, this,
+                                              LzoDecompressor_lzoDecompressor);
+
+  // Decompress
+  no_uncompressed_bytes = dst_len;
+  fptr = (lzo_decompress_t) FUNC_PTR(lzo_decompressor_funcptr);
+  rv = fptr(compressed_bytes + src_off, src_len, uncompressed_bytes + dst_off,
+    &no_uncompressed_bytes, NULL);
+
+  if (rv != LZO_E_OK) {
+#ifdef UNIX
+    snprintf(exception_msg, MSG_LEN, "%s returned: %d",
+              lzo_decompressor_function, rv);
+#endif
+
+#ifdef WINDOWS
+    _snprintf_s(exception_msg, MSG_LEN, _TRUNCATE, "%s returned: %d",
+      lzo_decompressor_function, rv);
+#endif
+
+    THROW(env, "java/lang/InternalError", exception_msg);
+    return (jint)0;
+  }
+
+  update_checksums(env, this, compressed_bytes + src_off, src_len,
+                   uncompressed_bytes + dst_off, no_uncompressed_bytes);
+  return (jint)no_uncompressed_bytes;
+}
+
 /**
  * vim: sw=2: ts=2: et:
  */
@@ -0,0 +1,113 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures how block compression and decompression scale when many
+ * compressors and decompressors run at once in one JVM, each on its own
+ * thread with its own instance. With no shared lock in the JNI layer the
+ * throughput should grow linearly with the number of threads, up to the
+ * number of cores.
+ *
+ * Usage: LzoContentionBenchmark [maxThreads] [secondsPerRun]
+ */
+public class LzoContentionBenchmark {
+
+  private static final int BLOCK_SIZE = 64 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    if (!LzoCodec.isNativeLzoLoaded(new org.apache.hadoop.conf.Configuration())) {
+      System.err.println("native-lzo library not available");
+      System.exit(1);
+    }
+    int maxThreads = args.length > 0 ? Integer.parseInt(args[0])
+        : Runtime.getRuntime().availableProcessors();
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    byte[] data = new byte[BLOCK_SIZE / 2];
+    Random r = new Random(0);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)('a' + r.nextInt(8));
+    }
+
+    double base = 0;
+    System.out.println("threads\tblocks/s\tscaling");
+    for (int threads = 1; threads <= maxThreads; threads *= 2) {
+      double rate = run(data, threads, seconds);
+      if (threads == 1) {
+        base = rate;
+      }
+      System.out.printf("%d\t%.0f\t%.2fx%n", threads, rate, rate / base);
+    }
+  }
+
+  /**
+   * Compress and decompress blocks on the given number of threads for the
+   * given time, returning the total blocks per second.
+   */
+  private static double run(final byte[] data, int threads, int seconds)
+      throws InterruptedException {
+    final AtomicLong blocks = new AtomicLong();
+    final CountDownLatch start = new CountDownLatch(1);
+    final long[] deadline = new long[1];
+    Thread[] workers = new Thread[threads];
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Thread() {
+        @Override
+        public void run() {
+          LzoCompressor compressor = new LzoCompressor(
+              LzoCompressor.CompressionStrategy.LZO1X_1, BLOCK_SIZE);
+          LzoDecompressor decompressor = new LzoDecompressor(
+              LzoDecompressor.CompressionStrategy.LZO1X_SAFE, BLOCK_SIZE);
+          byte[] compressed = new byte[BLOCK_SIZE];
+          byte[] uncompressed = new byte[BLOCK_SIZE];
+          try {
+            start.await();
+            long n = 0;
+            while (System.nanoTime() < deadline[0]) {
+              compressor.reset();
+              compressor.setInput(data, 0, data.length);
+              compressor.finish();
+              int len = compressor.compress(compressed, 0, compressed.length);
+
+              decompressor.reset();
+              decompressor.setInput(compressed, 0, len);
+              decompressor.decompress(uncompressed, 0, uncompressed.length);
+              n++;
+            }
+            blocks.addAndGet(n);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      workers[i].start();
+    }
+    deadline[0] = System.nanoTime() + seconds * 1000000000L;
+    start.countDown();
+    for (Thread t : workers) {
+      t.join();
+    }
+    return blocks.get() / (double) seconds;
+  }
+}
@@ -0,0 +1,124 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Compares decompression throughput of the native-lzo library with the pure
+ * Java LZO1X decompressor on an lzop file held in memory, after checking
+ * that both produce the same bytes. Without native-lzo only the Java
+ * decompressor is measured.
+ *
+ * Usage: LzoDecompressionBenchmark [file.lzo] [secondsPerRun]
+ */
+public class LzoDecompressionBenchmark {
+
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  public static void main(String[] args) throws Exception {
+    File file = args.length > 0 ? new File(args[0])
+        : new File(System.getProperty("test.build.data", "data"), "100000.txt.lzo");
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+    byte[] compressed = readAll(new FileInputStream(file));
+    boolean nativeLoaded = LzoCodec.isNativeLzoLoaded(new Configuration());
+
+    byte[] javaOut = decompress(compressed, true);
+    if (nativeLoaded) {
+      byte[] nativeOut = decompress(compressed, false);
+      if (!Arrays.equals(nativeOut, javaOut)) {
+        System.err.println("native and pure Java output differ");
+        System.exit(1);
+      }
+    } else {
+      System.err.println("native-lzo library not available, measuring Java only");
+    }
+
+    System.out.println("decompressor\tMB/s");
+    if (nativeLoaded) {
+      System.out.printf("native\t%.1f%n", run(compressed, false, seconds));
+    }
+    System.out.printf("java\t%.1f%n", run(compressed, true, seconds));
+  }
+
+  /**
+   * Decompress the file repeatedly for the given time, returning
+   * uncompressed megabytes per second. The first second is warm-up.
+   */
+  private static double run(byte[] compressed, boolean pureJava, int seconds)
+      throws IOException {
+    byte[] buf = new byte[64 * 1024];
+    long warmupEnd = System.nanoTime() + 1000000000L;
+    while (System.nanoTime() < warmupEnd) {
+      drain(compressed, pureJava, buf);
+    }
+    long bytes = 0;
+    long start = System.nanoTime();
+    long deadline = start + seconds * 1000000000L;
+    long now;
+    do {
+      bytes += drain(compressed, pureJava, buf);
+      now = System.nanoTime();
+    } while (now < deadline);
+    return bytes / 1048576.0 / ((now - start) / 1e9);
+  }
+
+  private static long drain(byte[] compressed, boolean pureJava, byte[] buf)
+      throws IOException {
+    InputStream in = open(compressed, pureJava);
+    long total = 0;
+    int n;
+    while ((n = in.read(buf, 0, buf.length)) > 0) {
+      total += n;
+    }
+    in.close();
+    return total;
+  }
+
+  private static byte[] decompress(byte[] compressed, boolean pureJava)
+      throws IOException {
+    return readAll(open(compressed, pureJava));
+  }
+
+  private static InputStream open(byte[] compressed, boolean pureJava)
+      throws IOException {
+    return new LzopInputStream(new ByteArrayInputStream(compressed),
+        new LzopDecompressor(BUFFER_SIZE, pureJava), BUFFER_SIZE);
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[64 * 1024];
+    int n;
+    while ((n = in.read(buf)) > 0) {
+      out.write(buf, 0, n);
+    }
+    in.close();
+    return out.toByteArray();
+  }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * A scratch directory on the local file system for tests that need lzo
+ * files with many small blocks, some compressed and some stored. The
+ * codec compresses in pure Java, so real compression happens with or
+ * without native-lzo.
+ */
+class LzoTestFiles {
+
+  final Configuration conf;
+  final FileSystem fs;
+  final Path dir;
+
+  /**
+   * Create the directory, empty, under test.build.data.
+   */
+  LzoTestFiles(String dirName) throws IOException {
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    dir = new Path(testBuildData, dirName);
+    conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    conf.setBoolean(LzoCodec.LZO_PURE_JAVA_KEY, true);
+    LzoCodec.setBufferSize(conf, 4 * 1024);
+    fs = FileSystem.newInstanceLocal(conf);
+    fs.delete(dir, true);
+    fs.mkdirs(dir);
+  }
+
+  /**
+   * Delete the directory and close the file system.
+   */
+  void close() throws IOException {
+    fs.delete(dir, true);
+    fs.close();
+  }
+
+  /**
+   * Write runs of lines of text, which compress, each followed by up to
+   * 8 KB of random bytes, which lzo stores as they are.
+   *
+   * @param seed seeds the random bytes
+   * @param runs how many runs of text to write
+   * @param lines how many lines in each run
+   */
+  void writeFile(Path file, long seed, int runs, int lines) throws IOException {
+    LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+    OutputStream out = codec.createOutputStream(fs.create(file));
+    Random random = new Random(seed);
+    try {
+      for (int i = 0; i < runs; i++) {
+        for (int j = 0; j < lines; j++) {
+          out.write(("line " + i + " " + j + "\n").getBytes("UTF-8"));
+        }
+        byte[] noise = new byte[random.nextInt(8 * 1024)];
+        random.nextBytes(noise);
+        out.write(noise);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
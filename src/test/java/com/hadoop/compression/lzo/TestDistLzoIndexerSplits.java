@@ -0,0 +1,141 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+import com.hadoop.mapreduce.LzoIndexRecordWriter;
+import com.hadoop.mapreduce.LzoSplitInputFormat;
+
+/**
+ * Test indexing an lzo file in pieces, as the DistributedLzoIndexer does
+ * with a split size, and merging the partial indexes.
+ */
+public class TestDistLzoIndexerSplits extends TestCase {
+
+  private static final long SPLIT_SIZE = 16 * 1024;
+
+  private LzoTestFiles files;
+  private Path inputDir;
+  private Configuration conf;
+  private FileSystem fs;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    files = new LzoTestFiles("distIndexerSplitsDir");
+    inputDir = files.dir;
+    conf = files.conf;
+    fs = files.fs;
+    DistributedLzoIndexer.setSplitSize(conf, SPLIT_SIZE);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    files.close();
+    super.tearDown();
+  }
+
+  public void testMergedIndexMatchesCreatedIndex() throws Exception {
+    Path file = new Path(inputDir, "big.lzo");
+    files.writeFile(file, 42, 40, 200);
+    LzoIndex.createIndex(fs, file);
+    LzoIndex expected = LzoIndex.readIndex(fs, file);
+    fs.delete(file.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+    assertTrue(expected.getNumberOfBlocks() > 20);
+
+    int splits = indexSplits(file);
+    assertTrue(splits > 4);
+    assertTrue(DistributedLzoIndexer.mergePartialIndexes(fs, file));
+
+    LzoIndex actual = LzoIndex.readIndex(fs, file);
+    assertEquals(expected.getNumberOfBlocks(), actual.getNumberOfBlocks());
+    for (int i = 0; i < expected.getNumberOfBlocks(); i++) {
+      assertEquals(expected.getPosition(i), actual.getPosition(i));
+    }
+    // The parts are gone
+    assertFalse(fs.exists(DistributedLzoIndexer.getPartialIndexPath(file, actual.getPosition(0))));
+  }
+
+  public void testMissingPartFailsMerge() throws Exception {
+    Path file = new Path(inputDir, "gap.lzo");
+    files.writeFile(file, 42, 40, 200);
+    LzoIndex.createIndex(fs, file);
+    LzoIndex full = LzoIndex.readIndex(fs, file);
+    fs.delete(file.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+
+    indexSplits(file);
+    // Lose the part written by a mapper in the middle of the file
+    Path part = null;
+    for (int i = full.getNumberOfBlocks() / 2; part == null; i++) {
+      Path candidate = DistributedLzoIndexer.getPartialIndexPath(file, full.getPosition(i));
+      if (fs.exists(candidate)) {
+        part = candidate;
+      }
+    }
+    assertTrue(fs.delete(part, false));
+
+    assertFalse(DistributedLzoIndexer.mergePartialIndexes(fs, file));
+    assertFalse(fs.exists(file.suffix(LzoIndex.LZO_INDEX_SUFFIX)));
+    assertFalse(fs.exists(file.suffix(LzoIndex.LZO_TMP_INDEX_SUFFIX)));
+  }
+
+  /**
+   * Run the indexing mappers one after the other.
+   *
+   * @return the number of splits
+   */
+  private int indexSplits(Path file) throws IOException, InterruptedException {
+    Job job = new Job(conf);
+    FileInputFormat.setInputPaths(job, file);
+    FileInputFormat.setMaxInputSplitSize(job, SPLIT_SIZE);
+    LzoSplitInputFormat inputFormat = new LzoSplitInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+    TaskAttemptContext attemptContext = CompatibilityUtil.newTaskAttemptContext(
+        job.getConfiguration(),
+        new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 1));
+    for (InputSplit split : splits) {
+      RecordReader<Path, LongWritable> rr = inputFormat.createRecordReader(split, attemptContext);
+      rr.initialize(split, attemptContext);
+      LzoIndexRecordWriter writer = new LzoIndexRecordWriter(attemptContext);
+      while (rr.nextKeyValue()) {
+        writer.write(rr.getCurrentKey(), rr.getCurrentValue());
+      }
+      writer.close(attemptContext);
+      rr.close();
+    }
+    return splits.size();
+  }
+}
@@ -0,0 +1,138 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.EOFException;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Test the LzoBlockScanner finds the same blocks as reading the headers one
+ * by one, whatever its buffer size.
+ */
+public class TestLzoBlockScanner extends TestCase {
+
+  private LzoTestFiles files;
+  private Path inputDir;
+  private Configuration conf;
+  private FileSystem fs;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    files = new LzoTestFiles("blockScannerDir");
+    inputDir = files.dir;
+    conf = files.conf;
+    fs = files.fs;
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    files.close();
+    super.tearDown();
+  }
+
+  public void testScanMatchesIndex() throws IOException {
+    Path file = new Path(inputDir, "scan.lzo");
+    files.writeFile(file, 7, 10, 300);
+    LzoIndex.createIndex(fs, file);
+    LzoIndex index = LzoIndex.readIndex(fs, file);
+    assertTrue(index.getNumberOfBlocks() > 10);
+
+    long fileLength = fs.getFileStatus(file).getLen();
+    // Smaller than a block, a few blocks, and the whole file
+    for (int bufferSize : new int[] { 8, 1000, 16 * 1024, LzoBlockScanner.DEFAULT_BUFFER_SIZE }) {
+      FSDataInputStream in = fs.open(file);
+      try {
+        LzoBlockScanner scanner = new LzoBlockScanner(in, fileLength, index.getPosition(0),
+            checksums(file, false), checksums(file, true), bufferSize);
+        for (int i = 0; i < index.getNumberOfBlocks(); i++) {
+          assertTrue(scanner.next());
+          assertEquals(index.getPosition(i), scanner.getPosition());
+          assertTrue(scanner.getCompressedBlockSize() <= scanner.getUncompressedBlockSize());
+        }
+        assertFalse(scanner.next());
+        assertEquals(fileLength, scanner.getNextPosition());
+        // The stream is left alone
+        assertEquals(0, in.getPos());
+      } finally {
+        in.close();
+      }
+    }
+  }
+
+  public void testTruncatedFile() throws IOException {
+    Path file = new Path(inputDir, "full.lzo");
+    files.writeFile(file, 7, 10, 300);
+    LzoIndex.createIndex(fs, file);
+    LzoIndex index = LzoIndex.readIndex(fs, file);
+
+    // Cut the file in the middle of a block header
+    Path truncated = new Path(inputDir, "truncated.lzo");
+    long length = index.getPosition(5) + 2;
+    FSDataInputStream in = fs.open(file);
+    FSDataOutputStream out = fs.create(truncated);
+    try {
+      IOUtils.copyBytes(in, out, length, false);
+    } finally {
+      in.close();
+      out.close();
+    }
+
+    in = fs.open(truncated);
+    try {
+      LzoBlockScanner scanner = new LzoBlockScanner(in, length, index.getPosition(0),
+          checksums(file, false), checksums(file, true), 64);
+      for (int i = 0; i < 5; i++) {
+        assertTrue(scanner.next());
+      }
+      try {
+        scanner.next();
+        fail("Header past the end of the file should not be read");
+      } catch (EOFException e) {
+        // expected
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  private int checksums(Path file, boolean compressed) throws IOException {
+    LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+    LzopDecompressor decompressor = (LzopDecompressor) codec.createDecompressor();
+    FSDataInputStream in = fs.open(file);
+    try {
+      // Reads the header
+      codec.createInputStream(in, decompressor);
+      return compressed ? decompressor.getCompressedChecksumsCount()
+          : decompressor.getDecompressedChecksumsCount();
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -1,5 +1,12 @@
 package com.hadoop.compression.lzo;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.zip.Adler32;
+
 import junit.framework.TestCase;
 import org.apache.hadoop.util.ReflectionUtils;
 import org.apache.hadoop.io.compress.CodecPool;
@@ -84,6 +91,154 @@ public class TestLzoCodec extends TestCase {
                  ((LzoCompressor)c2).getStrategy());
   }
 
+  /**
+   * Decompress a block between direct buffers and make sure the data and
+   * the checksums match what went in.
+   */
+  public void testDirectBufferDecompress() throws Exception {
+    int bufferSize = 64 * 1024;
+    byte[] data = new byte[bufferSize / 2];
+    Random r = new Random(42);
+    for (int i = 0; i < data.length; i++) {
+      // Small alphabet so real lzo has something to compress
+      data[i] = (byte)('a' + r.nextInt(4));
+    }
+
+    LzoCompressor compressor = new LzoCompressor(
+        LzoCompressor.CompressionStrategy.LZO1X_1, bufferSize);
+    compressor.setInput(data, 0, data.length);
+    compressor.finish();
+    byte[] compressed = new byte[bufferSize];
+    int compressedLen = compressor.compress(compressed, 0, compressed.length);
+
+    ByteBuffer src = ByteBuffer.allocateDirect(compressedLen + 3);
+    src.position(3);
+    src.put(compressed, 0, compressedLen);
+    src.position(3);
+    ByteBuffer dst = ByteBuffer.allocateDirect(bufferSize);
+    dst.position(5);
+
+    LzopDecompressor decompressor = new LzopDecompressor(bufferSize);
+    decompressor.initHeaderFlags(EnumSet.of(DChecksum.F_ADLER32D),
+        EnumSet.noneOf(CChecksum.class));
+    decompressor.resetChecksum();
+    assertEquals(data.length, decompressor.decompress(src, dst));
+    assertFalse(src.hasRemaining());
+    assertEquals(5 + data.length, dst.position());
+
+    byte[] result = new byte[data.length];
+    dst.position(5);
+    dst.get(result);
+    assertTrue(Arrays.equals(data, result));
+
+    Adler32 adler = new Adler32();
+    adler.update(data, 0, data.length);
+    assertTrue(decompressor.verifyDChecksum(DChecksum.F_ADLER32D,
+        (int)adler.getValue()));
+
+    // Only native decompression needs direct buffers; the pure Java
+    // fallback works on heap buffers too
+    if (!decompressor.isPureJava()) {
+      try {
+        decompressor.decompress(ByteBuffer.wrap(compressed), dst);
+        fail("heap buffers should be rejected");
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  /**
+   * Compress a block between direct buffers and make sure it decompresses
+   * back to the input.
+   */
+  public void testDirectBufferCompress() throws Exception {
+    int bufferSize = 64 * 1024;
+    byte[] data = new byte[bufferSize / 2];
+    Random r = new Random(7);
+    for (int i = 0; i < data.length; i++) {
+      data[i] = (byte)('a' + r.nextInt(4));
+    }
+
+    LzoCompressor compressor = new LzoCompressor(
+        LzoCompressor.CompressionStrategy.LZO1X_1, bufferSize);
+    ByteBuffer src = ByteBuffer.allocateDirect(bufferSize);
+    src.put(data);
+    src.flip();
+    ByteBuffer compressed = ByteBuffer.allocateDirect(bufferSize);
+    int compressedLen = compressor.compress(src, compressed);
+    assertFalse(src.hasRemaining());
+    assertEquals(compressedLen, compressed.position());
+    assertEquals(0, compressor.getBytesRead());
+
+    compressed.flip();
+    ByteBuffer dst = ByteBuffer.allocateDirect(bufferSize);
+    LzopDecompressor decompressor = new LzopDecompressor(bufferSize);
+    assertEquals(data.length, decompressor.decompress(compressed, dst));
+    byte[] result = new byte[data.length];
+    dst.flip();
+    dst.get(result);
+    assertTrue(Arrays.equals(data, result));
+
+    src.rewind();
+    try {
+      compressor.compress(src, ByteBuffer.allocateDirect(data.length));
+      fail("output without room for the worst case should be rejected");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  /**
+   * Decompress a hand-built LZO1X block in pure Java, including a match
+   * that overlaps its own output, and make sure damaged blocks are caught.
+   */
+  public void testPureJavaDecompress() throws Exception {
+    // "abc" as an initial literal run, then an 8 byte match at distance 3
+    byte[] block = new byte[] { 20, 'a', 'b', 'c', (byte) 0xE8, 0, 0x11, 0, 0 };
+    byte[] expected = "abcabcabcab".getBytes("US-ASCII");
+
+    LzoDecompressor decompressor = new LzoDecompressor(
+        LzoDecompressor.CompressionStrategy.LZO1X_SAFE, 1024, true);
+    assertTrue(decompressor.isPureJava());
+    decompressor.setInput(block, 0, block.length);
+    byte[] result = new byte[expected.length];
+    assertEquals(expected.length, decompressor.decompress(result, 0, result.length));
+    assertTrue(Arrays.equals(expected, result));
+    assertTrue(decompressor.finished());
+
+    ByteBuffer dst = ByteBuffer.allocate(64);
+    decompressor.reset();
+    assertEquals(expected.length,
+        decompressor.decompress(ByteBuffer.wrap(block), dst));
+    assertEquals(expected.length, dst.position());
+
+    ByteBuffer directSrc = ByteBuffer.allocateDirect(block.length);
+    directSrc.put(block);
+    directSrc.flip();
+    ByteBuffer directDst = ByteBuffer.allocateDirect(64);
+    assertEquals(expected.length, decompressor.decompress(directSrc, directDst));
+    directDst.flip();
+    directDst.get(result);
+    assertTrue(Arrays.equals(expected, result));
+
+    try {
+      Lzo1xDecompressor.decompress(block, 0, block.length - 2, result, 0, result.length);
+      fail("truncated block should be rejected");
+    } catch (IOException expectedException) {
+    }
+    try {
+      Lzo1xDecompressor.decompress(block, 0, block.length, result, 0, result.length - 1);
+      fail("output overrun should be rejected");
+    } catch (IOException expectedException) {
+    }
+    byte[] badDistance = block.clone();
+    badDistance[5] = 1;
+    try {
+      Lzo1xDecompressor.decompress(badDistance, 0, block.length, result, 0, result.length);
+      fail("match before the start of the output should be rejected");
+    } catch (IOException expectedException) {
+    }
+  }
+
   public void testGetRevisionHash() throws Exception {
     // should always return a revision hash
     assertFalse(LzoCodec.getRevisionHash().equalsIgnoreCase("UNKNOWN"));
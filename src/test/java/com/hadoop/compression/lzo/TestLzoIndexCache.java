@@ -0,0 +1,141 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Make sure the LzoIndexCache returns cached indexes until their files
+ * change, and keeps within its size.
+ */
+public class TestLzoIndexCache extends TestCase {
+
+  private LocalFileSystem fs;
+  private Path dir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    fs = FileSystem.newInstanceLocal(new Configuration());
+    dir = new Path(System.getProperty("test.build.data", "data"), "indexCache");
+    fs.delete(dir, true);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    fs.delete(dir, true);
+    fs.close();
+    super.tearDown();
+  }
+
+  public void testCache() throws IOException {
+    Path a = new Path(dir, "a.lzo");
+    Path b = new Path(dir, "b.lzo");
+    writeIndex(a, 10, 1000000L);
+    writeIndex(b, 10, 1000000L);
+
+    // Room for two indexes of 10 blocks, not one of 10 and one of 11
+    LzoIndexCache cache = new LzoIndexCache(160);
+    LzoIndex first = cache.get(fs, a);
+    assertEquals(10, first.getNumberOfBlocks());
+    assertSame(first, cache.get(fs, a));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+
+    // A rewritten index is read again
+    writeIndex(a, 11, 1000000L);
+    LzoIndex second = cache.get(fs, a);
+    assertNotSame(first, second);
+    assertEquals(11, second.getNumberOfBlocks());
+    assertEquals(2, cache.getMisses());
+    assertEquals(1, cache.size());
+    // Same length, later modification time
+    writeIndex(a, 11, 2000000L);
+    fs.setTimes(a.suffix(LzoIndex.LZO_INDEX_SUFFIX),
+        System.currentTimeMillis() + 10000, -1);
+    LzoIndex third = cache.get(fs, a);
+    assertNotSame(second, third);
+    assertEquals(2000000L, third.getPosition(0));
+    assertEquals(0, cache.getEvictions());
+
+    // Reading b pushes a out
+    cache.get(fs, b);
+    assertEquals(1, cache.getEvictions());
+    assertEquals(1, cache.size());
+    assertEquals(80, cache.getBytes());
+    cache.get(fs, b);
+    assertEquals(2, cache.getHits());
+
+    // Files without an index are not cached
+    assertTrue(cache.get(fs, new Path(dir, "missing.lzo")).isEmpty());
+    assertEquals(1, cache.size());
+
+    cache.setMaxBytes(0);
+    assertEquals(0, cache.size());
+    cache.get(fs, b);
+    assertEquals(0, cache.size());
+  }
+
+  public void testEmbeddedIndex() throws IOException {
+    Configuration conf = new Configuration();
+    conf.setBoolean(LzoCodec.LZO_PURE_JAVA_KEY, true);
+    LzoCodec.setBufferSize(conf, 4 * 1024);
+    LzopCodec.setIndexEmbedded(conf, true);
+    LzopCodec.setIndexVersion(conf, LzoIndex.VERSION_2);
+    LzopCodec.setIndexUncompressedSizes(conf, true);
+    Path lzoFile = new Path(dir, "embedded.lzo");
+    LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+    OutputStream out = codec.createOutputStream(fs.create(lzoFile, true));
+    out.write(new byte[10 * 4 * 1024]);
+    out.close();
+
+    // Keyed by the lzo file, and weighed like any other index
+    LzoIndexCache cache = new LzoIndexCache(1000);
+    LzoIndex index = cache.get(fs, lzoFile);
+    assertTrue(index.getNumberOfBlocks() >= 10);
+    assertSame(index, cache.get(fs, lzoFile));
+    assertEquals(1, cache.getHits());
+    assertEquals(1, cache.getMisses());
+    assertEquals(index.getNumberOfBlocks() * 16, cache.getBytes());
+
+    // An index file takes over from the embedded index
+    writeIndex(lzoFile, 3, 1000000L);
+    assertEquals(3, cache.get(fs, lzoFile).getNumberOfBlocks());
+    assertEquals(2, cache.size());
+  }
+
+  private void writeIndex(Path lzoFile, int blocks, long firstBlock)
+      throws IOException {
+    FSDataOutputStream out = fs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX), true);
+    for (int i = 0; i < blocks; i++) {
+      out.writeLong(firstBlock + 262144L * i);
+    }
+    out.close();
+  }
+}
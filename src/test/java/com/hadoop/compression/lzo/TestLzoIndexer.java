@@ -0,0 +1,113 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.compression.lzo;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ReflectionUtils;
+
+/**
+ * Test the LzoIndexer indexes every lzo file under a directory tree when
+ * walking it with several threads.
+ */
+public class TestLzoIndexer extends TestCase {
+
+  private Path inputDir;
+  private Configuration conf;
+  private FileSystem fs;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    inputDir = new Path(testBuildData, "lzoIndexerDir");
+    conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzoCodec.setBufferSize(conf, 4 * 1024);
+    LzoIndexer.setThreads(conf, 4);
+    fs = FileSystem.newInstanceLocal(conf);
+    fs.delete(inputDir, true);
+    fs.mkdirs(inputDir);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    fs.delete(inputDir, true);
+    fs.close();
+    super.tearDown();
+  }
+
+  public void testIndexDirectoryTree() throws IOException {
+    List<Path> files = new ArrayList<Path>();
+    for (int dir = 0; dir < 3; dir++) {
+      Path subDir = new Path(new Path(inputDir, "dir" + dir), "sub");
+      for (int i = 0; i < 5; i++) {
+        Path file = new Path(dir % 2 == 0 ? subDir : subDir.getParent(), "file" + i + ".lzo");
+        writeFile(file, 1000 * (i + 1));
+        files.add(file);
+      }
+    }
+    // Not an lzo file, left alone
+    Path other = new Path(inputDir, "other.txt");
+    fs.create(other).close();
+
+    new LzoIndexer(conf).index(inputDir);
+
+    for (Path file : files) {
+      LzoIndex index = LzoIndex.readIndex(fs, file);
+      assertFalse("No index for " + file, index.isEmpty());
+    }
+    assertFalse(fs.exists(other.suffix(LzoIndex.LZO_INDEX_SUFFIX)));
+  }
+
+  public void testMissingPathStillIndexesOthers() throws IOException {
+    Path file = new Path(inputDir, "present.lzo");
+    writeFile(file, 1000);
+    Path missing = new Path(inputDir, "missing");
+
+    try {
+      new LzoIndexer(conf).index(Arrays.asList(missing, file));
+      fail("Indexing a missing path should fail");
+    } catch (IOException e) {
+      // expected
+    }
+    assertFalse(LzoIndex.readIndex(fs, file).isEmpty());
+  }
+
+  private void writeFile(Path file, int lines) throws IOException {
+    LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+    OutputStream out = codec.createOutputStream(fs.create(file));
+    try {
+      for (int i = 0; i < lines; i++) {
+        out.write(("line " + i + " of " + file.getName() + "\n").getBytes("UTF-8"));
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
@@ -19,16 +19,26 @@
 package com.hadoop.compression.lzo;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
 
 /**
  * Test the LzopInputStream, making sure we get the same bytes when reading a compressed file through
@@ -100,15 +110,358 @@ public class TestLzopInputStream extends TestCase {
     runTest("100000-truncated.txt");
   }
 
+  /**
+   * Test the files above again with blocks read and decompressed ahead of
+   * the consumer, including the stored block, empty and truncated cases.
+   */
+  public void testReadAhead() throws NoSuchAlgorithmException, IOException,
+  InterruptedException {
+    for (String filename : new String[] { bigFile, mediumFile, smallFile,
+        emptyFile, "100000-truncated.txt" }) {
+      runTest(filename, 4, 2);
+      runTest(filename, 2, 1);
+    }
+  }
+
+  /**
+   * Test the files above again decompressed by the pure Java LZO1X
+   * implementation, serially and read ahead. This needs no native code.
+   */
+  public void testPureJava() throws NoSuchAlgorithmException, IOException,
+  InterruptedException {
+    for (String filename : new String[] { bigFile, mediumFile, smallFile,
+        emptyFile, "100000-truncated.txt" }) {
+      runTest(filename, 0, 1, true);
+      runTest(filename, 3, 2, true);
+    }
+  }
+
+  /**
+   * Reading ahead should not change how many compressed bytes the stream
+   * reports having consumed, which record readers use as their position.
+   */
+  public void testReadAheadCompressedBytesRead() throws IOException {
+    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
+      LOG.warn("Cannot run this test without the native lzo libraries");
+      return;
+    }
+
+    File lzoFile = new File(inputDataPath, bigFile + new LzopCodec().getDefaultExtension());
+    int lzoBufferSize = 256 * 1024;
+    LzopInputStream serialIn = new LzopInputStream(new FileInputStream(lzoFile),
+        new LzopDecompressor(lzoBufferSize), lzoBufferSize);
+    LzopInputStream readAheadIn = new LzopInputStream(new FileInputStream(lzoFile),
+        new LzopDecompressor(lzoBufferSize), lzoBufferSize, 3, 2);
+
+    byte[] serialBuf = new byte[8192];
+    byte[] readAheadBuf = new byte[8192];
+    while (true) {
+      int n = readFully(serialIn, serialBuf);
+      assertEquals(n, readFully(readAheadIn, readAheadBuf));
+      assertEquals(serialIn.getCompressedBytesRead(),
+          readAheadIn.getCompressedBytesRead());
+      if (n < serialBuf.length) {
+        break;
+      }
+    }
+    assertTrue(serialIn.getCompressedBytesRead() > 0);
+    serialIn.close();
+    readAheadIn.close();
+  }
+
+  /**
+   * With a read-ahead limit, blocks past the limit are only read from the
+   * file once the consumer gets to them, and the data is unchanged. This
+   * needs no native code.
+   */
+  public void testReadAheadLimit() throws IOException, InterruptedException {
+    File lzoFile = new File(inputDataPath, bigFile + new LzopCodec().getDefaultExtension());
+    final long[] fileBytesRead = new long[1];
+    InputStream fileIn = new FilterInputStream(new FileInputStream(lzoFile)) {
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          synchronized (fileBytesRead) {
+            fileBytesRead[0] += n;
+          }
+        }
+        return n;
+      }
+    };
+    int lzoBufferSize = 256 * 1024;
+    LzopInputStream lzoIn = new LzopInputStream(fileIn,
+        new LzopDecompressor(lzoBufferSize, true), lzoBufferSize, 4, 2);
+    long headerBytes = fileBytesRead[0];
+    lzoIn.setReadAheadLimit(0);
+
+    byte[] text = readFile(new File(inputDataPath, bigFile));
+    byte[] buf = new byte[text.length];
+    assertEquals(100, lzoIn.read(buf, 0, 100));
+    long firstBlockBytes = lzoIn.getCompressedBytesRead();
+    assertTrue(firstBlockBytes < lzoFile.length() / 2);
+    // Give the reader thread time to go further than it should
+    Thread.sleep(200);
+    synchronized (fileBytesRead) {
+      assertEquals(headerBytes + firstBlockBytes, fileBytesRead[0]);
+    }
+
+    int off = 100;
+    int n;
+    while (off < buf.length && (n = lzoIn.read(buf, off, buf.length - off)) > 0) {
+      off += n;
+    }
+    assertEquals(-1, lzoIn.read());
+    lzoIn.close();
+    assertTrue(Arrays.equals(text, buf));
+  }
+
+  /**
+   * Index a file with uncompressed block sizes and read ranges of it at
+   * random uncompressed offsets, forwards and backwards, checking them
+   * against the flat file. This needs no native code.
+   */
+  public void testSeekable() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzopCodec.setIndexVersion(conf, LzoIndex.VERSION_2);
+    LzopCodec.setIndexUncompressedSizes(conf, true);
+    // Not the cached instance, which other tests configure
+    FileSystem fs = FileSystem.newInstanceLocal(conf);
+    byte[] text = readFile(new File(inputDataPath, bigFile));
+    Path lzoPath = new Path(new File(inputDataPath, "seekable_" + bigFile + ".lzo").getAbsolutePath());
+    FileUtil.copy(fs, new Path(new File(inputDataPath, bigFile + ".lzo").getAbsolutePath()),
+        fs, lzoPath, false, conf);
+    LzoIndex.createIndex(fs, lzoPath);
+    LzoIndex index = LzoIndex.readIndex(fs, lzoPath);
+    assertTrue(index.hasUncompressedOffsets());
+    assertTrue(index.getNumberOfBlocks() > 1);
+    assertEquals(0, index.getUncompressedOffset(0));
+    assertEquals(1, index.findUncompressedBlock(index.getUncompressedOffset(1)));
+    assertEquals(0, index.findUncompressedBlock(index.getUncompressedOffset(1) - 1));
+
+    int lzoBufferSize = 256 * 1024;
+    SeekableLzopInputStream in = new SeekableLzopInputStream(fs.open(lzoPath),
+        new LzopDecompressor(lzoBufferSize, true), lzoBufferSize, index);
+    try {
+      Random random = new Random(11);
+      byte[] buf = new byte[1000];
+      for (int i = 0; i < 50; i++) {
+        int target = random.nextInt(text.length);
+        if (i % 10 == 0) {
+          // Just before a block boundary, so the read spans two blocks
+          int block = 1 + random.nextInt(index.getNumberOfBlocks() - 1);
+          target = (int) index.getUncompressedOffset(block) - 10;
+        }
+        in.seek(target);
+        assertEquals(target, in.getPos());
+        int n = readFully(in, buf);
+        assertEquals(Math.min(buf.length, text.length - target), n);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(text, target, target + n),
+            Arrays.copyOf(buf, n)));
+        assertEquals(target + n, in.getPos());
+      }
+
+      in.seek(text.length);
+      assertEquals(-1, in.read());
+      in.seek(0);
+      assertEquals(text[0], (byte) in.read());
+      try {
+        in.seek(text.length + 1);
+        fail("seeking past the end should fail");
+      } catch (EOFException expected) {
+      }
+    } finally {
+      in.close();
+      fs.delete(lzoPath, false);
+      fs.delete(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+      fs.close();
+    }
+  }
+
+  /**
+   * A stored checksum that does not match its block should fail the read,
+   * whether the checksums are computed by the native decompress call or
+   * in Java.
+   */
+  public void testCorruptedChecksum() throws IOException {
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    FileSystem fs = FileSystem.newInstanceLocal(conf);
+    Path lzoPath = new Path(new File(inputDataPath, "corrupt_" + bigFile + ".lzo").getAbsolutePath());
+    try {
+      byte[] lzo = readFile(new File(inputDataPath, bigFile + ".lzo"));
+      FileUtil.copy(fs, new Path(new File(inputDataPath, bigFile + ".lzo").getAbsolutePath()),
+          fs, lzoPath, false, conf);
+      LzoIndex.createIndex(fs, lzoPath);
+      LzoIndex index = LzoIndex.readIndex(fs, lzoPath);
+      // The uncompressed checksum of the second block, which is compressed
+      lzo[(int) index.getPosition(1) + 8] ^= 1;
+
+      for (boolean pureJava : new boolean[] { false, true }) {
+        if (!pureJava && !GPLNativeCodeLoader.isNativeCodeLoaded()) {
+          continue;
+        }
+        int lzoBufferSize = 256 * 1024;
+        LzopInputStream in = new LzopInputStream(new ByteArrayInputStream(lzo),
+            new LzopDecompressor(lzoBufferSize, pureJava), lzoBufferSize);
+        try {
+          readFully(in, new byte[8 * 1024 * 1024]);
+          fail("Corrupted checksum should fail the read, pure Java " + pureJava);
+        } catch (IOException e) {
+          assertEquals("Corrupted uncompressed block", e.getMessage());
+        } finally {
+          in.close();
+        }
+      }
+    } finally {
+      fs.delete(lzoPath, false);
+      fs.delete(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+      fs.close();
+    }
+  }
+
+  /**
+   * Blocks left out of the checksum sample are neither verified nor
+   * counted as verified, read serially or ahead. Whether a block is in the
+   * sample depends on its position in the file only.
+   */
+  public void testChecksumVerifyPercent() throws IOException {
+    for (int percent : new int[] { 0, 1, 30, 64, 100 }) {
+      int verified = 0;
+      long position = 52;
+      for (int block = 0; block < 10000; block++) {
+        if (LzopInputStream.isBlockVerified(position, percent)) {
+          verified++;
+        }
+        position += 200 * 1024 + block % 977;
+      }
+      assertTrue(percent + "% gave " + verified,
+          Math.abs(verified - percent * 100) <= 200);
+      if (percent == 0 || percent == 100) {
+        assertEquals(percent * 100, verified);
+      }
+    }
+
+    byte[] lzo = readFile(new File(inputDataPath, bigFile + ".lzo"));
+    int firstBlock = readHeaderLength(lzo);
+    // The smallest sample the first block is in
+    int percent = 1;
+    while (!LzopInputStream.isBlockVerified(firstBlock, percent)) {
+      percent++;
+    }
+    // The uncompressed checksum of the first block
+    lzo[firstBlock + 8] ^= 1;
+    for (boolean pureJava : new boolean[] { false, true }) {
+      if (!pureJava && !GPLNativeCodeLoader.isNativeCodeLoaded()) {
+        continue;
+      }
+      for (int readAheadBlocks : new int[] { 0, 3 }) {
+        int lzoBufferSize = 256 * 1024;
+        LzopInputStream in = new LzopInputStream(new ByteArrayInputStream(lzo),
+            new LzopDecompressor(lzoBufferSize, pureJava), lzoBufferSize, readAheadBlocks, 2);
+        in.setChecksumVerifyPercent(0);
+        try {
+          readFully(in, new byte[8 * 1024 * 1024]);
+        } finally {
+          in.close();
+        }
+        assertEquals(0, in.getBlocksVerified());
+        assertTrue(in.getBlocksSkipped() > 1);
+
+        // Just too small a sample for the first block
+        in = new LzopInputStream(new ByteArrayInputStream(lzo),
+            new LzopDecompressor(lzoBufferSize, pureJava), lzoBufferSize, readAheadBlocks, 2);
+        in.setChecksumVerifyPercent(percent - 1);
+        try {
+          readFully(in, new byte[8 * 1024 * 1024]);
+        } finally {
+          in.close();
+        }
+
+        in = new LzopInputStream(new ByteArrayInputStream(lzo),
+            new LzopDecompressor(lzoBufferSize, pureJava), lzoBufferSize, readAheadBlocks, 2);
+        in.setChecksumVerifyPercent(percent);
+        try {
+          readFully(in, new byte[8 * 1024 * 1024]);
+          fail("The first block is verified at " + percent + " percent");
+        } catch (IOException e) {
+          assertEquals("Corrupted uncompressed block", e.getMessage());
+        } finally {
+          in.close();
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the length of the lzop header of the file in <code>lzo</code>
+   */
+  private static int readHeaderLength(byte[] lzo) throws IOException {
+    final int[] pos = new int[1];
+    InputStream counting = new FilterInputStream(new ByteArrayInputStream(lzo)) {
+      @Override
+      public int read() throws IOException {
+        int b = super.read();
+        if (b >= 0) {
+          pos[0]++;
+        }
+        return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+        int n = super.read(b, off, len);
+        if (n > 0) {
+          pos[0] += n;
+        }
+        return n;
+      }
+    };
+    new LzopInputStream(counting, new LzopDecompressor(64 * 1024, true), 64 * 1024);
+    return pos[0];
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] data = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      LzopInputStream.readFully(in, data, 0, data.length);
+    } finally {
+      in.close();
+    }
+    return data;
+  }
+
+  private static int readFully(InputStream in, byte[] buf) throws IOException {
+    int off = 0;
+    int n;
+    while (off < buf.length && (n = in.read(buf, off, buf.length - off)) > 0) {
+      off += n;
+    }
+    return off;
+  }
+
+  private void runTest(String filename) throws IOException,
+  NoSuchAlgorithmException, InterruptedException {
+    runTest(filename, 0, 1);
+  }
+
   /**
    * Test that reading an lzo-compressed file produces the same lines as reading the equivalent
    * flat file.  The test opens both the compressed and flat file, successively reading each
    * line by line and comparing.
    */
-  private void runTest(String filename) throws IOException,
-  NoSuchAlgorithmException, InterruptedException {
+  private void runTest(String filename, int readAheadBlocks, int numThreads)
+  throws IOException, NoSuchAlgorithmException, InterruptedException {
+    runTest(filename, readAheadBlocks, numThreads, false);
+  }
 
-    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
+  private void runTest(String filename, int readAheadBlocks, int numThreads,
+      boolean pureJava)
+  throws IOException, NoSuchAlgorithmException, InterruptedException {
+
+    if (!pureJava && !GPLNativeCodeLoader.isNativeCodeLoaded()) {
       LOG.warn("Cannot run this test without the native lzo libraries");
       return;
     }
@@ -122,8 +475,9 @@ public class TestLzopInputStream extends TestCase {
     BufferedReader textBr = new BufferedReader(new InputStreamReader(new FileInputStream(textFile.getAbsolutePath())));
     // Set up the LZO reader.
     int lzoBufferSize = 256 * 1024;
-    LzopDecompressor lzoDecompressor = new LzopDecompressor(lzoBufferSize);
-    LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(lzoFile.getAbsolutePath()), lzoDecompressor, lzoBufferSize);
+    LzopDecompressor lzoDecompressor = new LzopDecompressor(lzoBufferSize, pureJava);
+    LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(lzoFile.getAbsolutePath()),
+        lzoDecompressor, lzoBufferSize, readAheadBlocks, numThreads);
     BufferedReader lzoBr = new BufferedReader(new InputStreamReader(lzoIn));
 
     // Now read line by line and compare.
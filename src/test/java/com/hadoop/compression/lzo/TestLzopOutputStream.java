@@ -19,21 +19,31 @@
 package com.hadoop.compression.lzo;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.ReflectionUtils;
 
 /**
  * Test the LzoOutputFormat, make sure that it can write files of different sizes and read them back in
@@ -110,6 +120,528 @@ public class TestLzopOutputStream extends TestCase {
     runTest(issue20File);
   }
 
+  /**
+   * Compressing on several threads must produce exactly the blocks and index
+   * that compressing on the writing thread does, for any pattern of writes.
+   */
+  public void testParallelCompression() throws IOException {
+    if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
+      LOG.warn("Cannot run this test without the native lzo libraries");
+      return;
+    }
+
+    File textFile = new File(inputDataPath, bigFile);
+    byte[] text = new byte[(int) textFile.length()];
+    FileInputStream textIn = new FileInputStream(textFile);
+    try {
+      assertEquals(text.length, textIn.read(text));
+    } finally {
+      textIn.close();
+    }
+
+    // Small blocks so that the file spans many of them, and some writes
+    // larger than a block.
+    int lzoBufferSize = 64 * 1024;
+    File serialFile = new File(inputDataPath, "output_serial_" + bigFile + ".lzo");
+    File parallelFile = new File(inputDataPath, "output_parallel_" + bigFile + ".lzo");
+    writeInChunks(text, serialFile, lzoBufferSize, 1);
+    writeInChunks(text, parallelFile, lzoBufferSize, 4);
+
+    // Everything past the header, which holds the mtime, must match.
+    byte[] serial = readFile(serialFile);
+    byte[] parallel = readFile(parallelFile);
+    byte[] serialIndex = readFile(new File(serialFile + LzoIndex.LZO_INDEX_SUFFIX));
+    byte[] parallelIndex = readFile(new File(parallelFile + LzoIndex.LZO_INDEX_SUFFIX));
+    assertTrue(serialIndex.length > 8 * 10);
+    assertTrue(Arrays.equals(serialIndex, parallelIndex));
+    int headerLen = (int) LzoIndex.readIndex(localFs,
+        new Path(serialFile.getAbsolutePath())).getPosition(0);
+    assertEquals(serial.length, parallel.length);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(serial, headerLen, serial.length),
+        Arrays.copyOfRange(parallel, headerLen, parallel.length)));
+
+    // And the parallel output reads back to the original text.
+    LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(parallelFile),
+        new LzopDecompressor(lzoBufferSize), lzoBufferSize);
+    byte[] decompressed = new byte[text.length];
+    int off = 0;
+    int n;
+    while (off < decompressed.length &&
+        (n = lzoIn.read(decompressed, off, decompressed.length - off)) > 0) {
+      off += n;
+    }
+    assertEquals(-1, lzoIn.read());
+    lzoIn.close();
+    assertTrue(Arrays.equals(text, decompressed));
+  }
+
+  /**
+   * The pure Java compressor must write real LZO1X blocks that both the
+   * Java and the native decompressors read back, serially and on several
+   * threads. This needs no native code.
+   */
+  public void testPureJavaCompression() throws IOException {
+    File textFile = new File(inputDataPath, bigFile);
+    byte[] text = readFile(textFile);
+
+    int lzoBufferSize = 64 * 1024;
+    File serialFile = new File(inputDataPath, "output_java_serial_" + bigFile + ".lzo");
+    File parallelFile = new File(inputDataPath, "output_java_parallel_" + bigFile + ".lzo");
+    writeInChunks(text, serialFile, lzoBufferSize, 1, true);
+    writeInChunks(text, parallelFile, lzoBufferSize, 3, true);
+
+    byte[] serial = readFile(serialFile);
+    byte[] parallel = readFile(parallelFile);
+    // The blocks must really be compressed; lzop gets this file to 59%
+    assertTrue(serial.length < text.length * 7 / 10);
+    int headerLen = (int) LzoIndex.readIndex(localFs,
+        new Path(serialFile.getAbsolutePath())).getPosition(0);
+    assertTrue(Arrays.equals(Arrays.copyOfRange(serial, headerLen, serial.length),
+        Arrays.copyOfRange(parallel, headerLen, parallel.length)));
+
+    assertTrue(Arrays.equals(text, readLzop(serialFile, lzoBufferSize, true)));
+    if (GPLNativeCodeLoader.isNativeCodeLoaded()) {
+      assertTrue(Arrays.equals(text, readLzop(serialFile, lzoBufferSize, false)));
+    }
+  }
+
+  /**
+   * Data written after close must not be buffered and silently dropped.
+   */
+  public void testWriteAfterClose() throws IOException {
+    LzoCompressor.CompressionStrategy strategy = LzoCompressor.CompressionStrategy.LZO1X_1;
+    LzopOutputStream lzoOut = new LzopOutputStream(new ByteArrayOutputStream(),
+        new LzoCompressor(strategy, 64 * 1024, !LzoCompressor.isNativeLzoLoaded()),
+        64 * 1024, strategy);
+    lzoOut.write(new byte[10]);
+    lzoOut.close();
+    try {
+      lzoOut.write(new byte[10]);
+      fail("Wrote to a closed stream");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  /**
+   * A version 2 index, whether written alongside the data or by indexing
+   * the finished file, must read back to the same block positions as the
+   * version 1 index, in much less space. This needs no native code.
+   */
+  public void testIndexVersion2() throws IOException {
+    byte[] text = readFile(new File(inputDataPath, bigFile));
+
+    int lzoBufferSize = 64 * 1024;
+    File v1File = new File(inputDataPath, "output_index_v1_" + bigFile + ".lzo");
+    File v2File = new File(inputDataPath, "output_index_v2_" + bigFile + ".lzo");
+    writeInChunks(text, v1File, lzoBufferSize, 1, true, LzoIndex.VERSION_1);
+    writeInChunks(text, v2File, lzoBufferSize, 1, true, LzoIndex.VERSION_2);
+
+    LzoIndex v1 = LzoIndex.readIndex(localFs, new Path(v1File.getAbsolutePath()));
+    LzoIndex v2 = LzoIndex.readIndex(localFs, new Path(v2File.getAbsolutePath()));
+    assertTrue(v1.getNumberOfBlocks() > 10);
+    assertIndexEquals(v1, v2);
+    long v1Length = new File(v1File + LzoIndex.LZO_INDEX_SUFFIX).length();
+    long v2Length = new File(v2File + LzoIndex.LZO_INDEX_SUFFIX).length();
+    assertEquals(8 * v1.getNumberOfBlocks(), v1Length);
+    assertTrue(v2Length < v1Length / 2);
+    assertFalse(v2.hasUncompressedOffsets());
+
+    // Each block's size matches the uncompressed length in its header
+    File sizesFile = new File(inputDataPath, "output_index_sizes_" + bigFile + ".lzo");
+    writeInChunks(text, sizesFile, lzoBufferSize, 2, true, LzoIndex.VERSION_2,
+        LzoIndex.FLAG_UNCOMPRESSED_SIZES);
+    LzoIndex sizes = LzoIndex.readIndex(localFs, new Path(sizesFile.getAbsolutePath()));
+    assertTrue(sizes.hasUncompressedOffsets());
+    assertIndexEquals(v1, sizes);
+    ByteBuffer compressed = ByteBuffer.wrap(readFile(sizesFile));
+    long uncompressedOffset = 0;
+    for (int i = 0; i < sizes.getNumberOfBlocks(); i++) {
+      assertEquals(uncompressedOffset, sizes.getUncompressedOffset(i));
+      uncompressedOffset += compressed.getInt((int) sizes.getPosition(i));
+    }
+    assertEquals(text.length, uncompressedOffset);
+
+    // Reindex the v1 file in the new format; a new instance so the cached
+    // one keeps the default version.
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzopCodec.setIndexVersion(conf, LzoIndex.VERSION_2);
+    FileSystem v2Fs = FileSystem.newInstanceLocal(conf);
+    try {
+      Path v1Path = new Path(v1File.getAbsolutePath());
+      LzoIndex.createIndex(v2Fs, v1Path);
+      assertEquals(v2Length, new File(v1File + LzoIndex.LZO_INDEX_SUFFIX).length());
+      assertIndexEquals(v1, LzoIndex.readIndex(v2Fs, v1Path));
+      // And through the non-mapped path
+      assertIndexEquals(v1, LzoIndex.readIndex(new FilterFileSystem(v2Fs), v1Path));
+    } finally {
+      v2Fs.close();
+    }
+
+    // A cut off entry is an error rather than a wrong position.
+    byte[] v2Index = readFile(new File(v2File + LzoIndex.LZO_INDEX_SUFFIX));
+    FileOutputStream truncated = new FileOutputStream(v2File + LzoIndex.LZO_INDEX_SUFFIX);
+    truncated.write(v2Index, 0, v2Index.length - 1);
+    truncated.close();
+    try {
+      LzoIndex.readIndex(localFs, new Path(v2File.getAbsolutePath()));
+      fail("truncated index should be rejected");
+    } catch (IOException expected) {
+    }
+  }
+
+  /**
+   * Record where the first line of each block starts, both while writing
+   * and when indexing an existing file, and check it against the text.
+   */
+  public void testFirstRecordOffsets() throws IOException {
+    byte[] text = readFile(new File(inputDataPath, bigFile));
+
+    File lzoFile = new File(inputDataPath, "output_index_records_" + bigFile + ".lzo");
+    writeInChunks(text, lzoFile, 64 * 1024, 2, true, LzoIndex.VERSION_2,
+        LzoIndex.FLAG_UNCOMPRESSED_SIZES | LzoIndex.FLAG_FIRST_RECORD_OFFSETS);
+    Path lzoPath = new Path(lzoFile.getAbsolutePath());
+    LzoIndex index = LzoIndex.readIndex(localFs, lzoPath);
+    assertTrue(index.hasFirstRecordOffsets());
+    assertTrue(index.getNumberOfBlocks() > 10);
+    for (int i = 0; i < index.getNumberOfBlocks(); i++) {
+      int blockStart = (int) index.getUncompressedOffset(i);
+      int offset = index.getFirstRecordOffset(i);
+      assertTrue(offset > 0);
+      assertEquals('\n', text[blockStart + offset - 1]);
+      for (int j = blockStart; j < blockStart + offset - 1; j++) {
+        assertTrue(text[j] != '\n');
+      }
+      assertEquals(i, index.findBlock(index.getPosition(i)));
+      assertEquals(-1, index.findBlock(index.getPosition(i) + 1));
+    }
+
+    // Indexing the file afterwards finds the same offsets
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzopCodec.setIndexVersion(conf, LzoIndex.VERSION_2);
+    LzopCodec.setIndexFirstRecordOffsets(conf, true);
+    FileSystem recordsFs = FileSystem.newInstanceLocal(conf);
+    try {
+      LzoIndex.createIndex(recordsFs, lzoPath);
+      LzoIndex reindexed = LzoIndex.readIndex(recordsFs, lzoPath);
+      assertFalse(reindexed.hasUncompressedOffsets());
+      assertIndexEquals(index, reindexed);
+      for (int i = 0; i < index.getNumberOfBlocks(); i++) {
+        assertEquals(index.getFirstRecordOffset(i), reindexed.getFirstRecordOffset(i));
+      }
+    } finally {
+      recordsFs.close();
+    }
+
+    // Line ends as LineReader sees them
+    assertEquals(4, firstRecordOffset("abc\ndef"));
+    assertEquals(5, firstRecordOffset("abc\r\ndef"));
+    assertEquals(4, firstRecordOffset("abc\rdef"));
+    assertEquals(1, firstRecordOffset("\ndef"));
+    assertEquals(-1, firstRecordOffset("abc\r"));
+    assertEquals(-1, firstRecordOffset("abcdef"));
+    ByteBuffer b = ByteBuffer.wrap("x\nabc\ndef".getBytes("US-ASCII"));
+    b.position(2);
+    assertEquals(4, LzoIndexWriter.firstRecordOffset(b));
+    assertEquals(2, b.position());
+  }
+
+  public void testEmbeddedIndex() throws IOException {
+    byte[] text = readFile(new File(inputDataPath, bigFile));
+
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    conf.setBoolean(LzoCodec.LZO_PURE_JAVA_KEY, true);
+    LzoCodec.setBufferSize(conf, 16 * 1024);
+    LzopCodec.setIndexEmbedded(conf, true);
+    LzopCodec.setIndexVersion(conf, LzoIndex.VERSION_2);
+    LzopCodec.setIndexUncompressedSizes(conf, true);
+    FileSystem fs = FileSystem.newInstanceLocal(conf);
+    File lzoFile = new File(inputDataPath, "output_embedded_" + bigFile + ".lzo");
+    Path lzoPath = new Path(lzoFile.getAbsolutePath());
+    try {
+      fs.delete(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+      LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+      OutputStream out = codec.createOutputStream(fs.create(lzoPath, true));
+      out.write(text);
+      out.close();
+      assertFalse(fs.exists(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX)));
+
+      // Readers stop at the end of stream marker
+      assertTrue(Arrays.equals(text, readLzop(lzoFile, 16 * 1024, true)));
+
+      LzoIndex embedded = LzoIndex.readIndex(fs, lzoPath);
+      assertTrue(embedded.getNumberOfBlocks() > 10);
+      assertTrue(embedded.hasUncompressedOffsets());
+      assertTrue(LzoIndex.hasEmbeddedIndex(fs, lzoPath));
+      assertIndexEquals(embedded, LzoIndex.readEmbeddedIndex(fs, lzoPath));
+      // Too little of the end of the file read to hold the index
+      assertIndexEquals(embedded, LzoIndex.readEmbeddedIndex(fs, lzoPath,
+          fs.getFileStatus(lzoPath).getLen(), 64));
+
+      // The stream ends with the end of stream marker, just before the index
+      FSDataInputStream in = fs.open(lzoPath);
+      long length = fs.getFileStatus(lzoPath).getLen();
+      long streamEnd = LzoIndex.getStreamEnd(in, length);
+      assertTrue(streamEnd < length);
+      in.seek(streamEnd - 4);
+      assertEquals(0, in.readInt());
+      in.close();
+
+      // Indexing the file finds the same blocks
+      LzoIndex.createIndex(fs, lzoPath);
+      LzoIndex created = LzoIndex.readIndex(fs, lzoPath);
+      assertIndexEquals(created, embedded);
+      fs.delete(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+
+      // Without the option there is nothing at the end
+      LzopCodec.setIndexEmbedded(conf, false);
+      out = ReflectionUtils.newInstance(LzopCodec.class, conf)
+          .createOutputStream(fs.create(lzoPath, true));
+      out.write(text);
+      out.close();
+      assertFalse(LzoIndex.hasEmbeddedIndex(fs, lzoPath));
+      assertTrue(LzoIndex.readIndex(fs, lzoPath).isEmpty());
+    } finally {
+      fs.delete(lzoPath, false);
+      fs.close();
+    }
+  }
+
+  /**
+   * Block checksums written with the data, natively or in Java, serially or
+   * on several threads, are the ones LzopInputStream verifies on reading.
+   */
+  public void testBlockChecksums() throws IOException {
+    byte[] text = readFile(new File(inputDataPath, bigFile));
+    File lzoFile = new File(inputDataPath, "output_checksums_" + bigFile + ".lzo");
+    Path lzoPath = new Path(lzoFile.getAbsolutePath());
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzoCodec.setBufferSize(conf, 16 * 1024);
+    FileSystem fs = FileSystem.newInstanceLocal(conf);
+    try {
+      for (String checksum : new String[] { "adler32", "crc32" }) {
+        for (boolean pureJava : new boolean[] { false, true }) {
+          if (!pureJava && !LzoCompressor.isNativeLzoLoaded()) {
+            continue;
+          }
+          for (int numThreads : new int[] { 1, 3 }) {
+            conf.setBoolean(LzoCodec.LZO_PURE_JAVA_KEY, pureJava);
+            LzopCodec.setChecksum(conf, checksum);
+            LzopCodec.setCompressionThreads(conf, numThreads);
+            LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+            OutputStream out = codec.createOutputStream(fs.create(lzoPath, true));
+            out.write(text);
+            out.close();
+
+            // The header declares the checksums, and every block matches them
+            LzopDecompressor decompressor = (LzopDecompressor) codec.createDecompressor();
+            FSDataInputStream in = fs.open(lzoPath);
+            codec.createInputStream(in, decompressor).close();
+            assertEquals(1, decompressor.getDecompressedChecksumsCount());
+            assertEquals(1, decompressor.getCompressedChecksumsCount());
+            assertTrue(Arrays.equals(text, readLzop(lzoFile, 16 * 1024, true)));
+
+            // A block that does not match its checksum is caught
+            LzoIndex.createIndex(fs, lzoPath);
+            LzoIndex index = LzoIndex.readIndex(fs, lzoPath);
+            assertTrue(index.getNumberOfBlocks() > 10);
+            byte[] lzo = readFile(lzoFile);
+            int blockStart = (int) index.getPosition(1);
+            int dataStart = blockStart + 8 + 4 * (isStored(lzo, blockStart) ? 1 : 2);
+            lzo[dataStart + 100] ^= 1;
+            FileOutputStream corrupt = new FileOutputStream(lzoFile);
+            corrupt.write(lzo);
+            corrupt.close();
+            try {
+              readLzop(lzoFile, 16 * 1024, true);
+              fail("Corrupted block of " + checksum + " file was not caught");
+            } catch (IOException e) {
+              // expected
+            }
+            fs.delete(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+          }
+        }
+      }
+
+      // Unknown checksums are refused
+      LzopCodec.setChecksum(conf, "md5");
+      OutputStream raw = fs.create(lzoPath, true);
+      try {
+        ReflectionUtils.newInstance(LzopCodec.class, conf).createOutputStream(raw);
+        fail("Unknown checksum should be refused");
+      } catch (IllegalArgumentException e) {
+        // expected
+      } finally {
+        raw.close();
+      }
+    } finally {
+      fs.delete(lzoPath, false);
+      fs.delete(lzoPath.suffix(LzoIndex.LZO_INDEX_SUFFIX), false);
+      fs.close();
+    }
+  }
+
+  /**
+   * Random data is stored without compressing it when sampling, text and
+   * repetitive data are still compressed, and the file reads back the same
+   * with its checksums.
+   */
+  public void testIncompressibleSampling() throws IOException {
+    Random random = new Random(25);
+    byte[] noise = new byte[64 * 1024];
+    random.nextBytes(noise);
+    byte[] text = Arrays.copyOf(readFile(new File(inputDataPath, bigFile)), noise.length);
+    byte[] pattern = new byte[noise.length];
+    for (int i = 0; i < pattern.length; i++) {
+      pattern[i] = noise[i % 1000];
+    }
+    // One sampler for all, so nothing may carry over from one block to the next
+    LzoBlockSampler sampler = new LzoBlockSampler();
+    assertTrue(sampler.isIncompressible(ByteBuffer.wrap(noise)));
+    assertFalse(sampler.isIncompressible(ByteBuffer.wrap(text)));
+    assertFalse(sampler.isIncompressible(ByteBuffer.wrap(pattern)));
+    assertTrue(sampler.isIncompressible(ByteBuffer.wrap(noise)));
+    assertFalse(sampler.isIncompressible(ByteBuffer.wrap(noise, 0, 1000)));
+    ByteBuffer direct = ByteBuffer.allocateDirect(noise.length + 10);
+    direct.position(10);
+    direct.put(noise);
+    direct.position(10);
+    assertTrue(sampler.isIncompressible(direct));
+    assertEquals(10, direct.position());
+
+    File lzoFile = new File(inputDataPath, "output_sampling.lzo");
+    Path lzoPath = new Path(lzoFile.getAbsolutePath());
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzoCodec.setBufferSize(conf, 64 * 1024);
+    LzopCodec.setChecksum(conf, "crc32");
+    LzopCodec.setIncompressibleSampling(conf, true);
+    FileSystem fs = FileSystem.newInstanceLocal(conf);
+    try {
+      for (boolean pureJava : new boolean[] { false, true }) {
+        if (!pureJava && !LzoCompressor.isNativeLzoLoaded()) {
+          continue;
+        }
+        for (int numThreads : new int[] { 1, 2 }) {
+          conf.setBoolean(LzoCodec.LZO_PURE_JAVA_KEY, pureJava);
+          LzopCodec.setCompressionThreads(conf, numThreads);
+          LzopOutputStream out = (LzopOutputStream) ReflectionUtils.newInstance(
+              LzopCodec.class, conf).createOutputStream(fs.create(lzoPath, true));
+          ByteArrayOutputStream expected = new ByteArrayOutputStream();
+          // One block each
+          for (int i = 0; i < 3; i++) {
+            out.write(text, 0, 50000);
+            out.write(noise, 0, 50000);
+            expected.write(text, 0, 50000);
+            expected.write(noise, 0, 50000);
+          }
+          out.close();
+          assertEquals(3, out.getBlocksStoredBySampling());
+          if (pureJava) {
+            assertEquals(3, out.getBlocksStored());
+            assertEquals(3, out.getBlocksCompressed());
+          } else {
+            assertEquals(6, out.getBlocksStored() + out.getBlocksCompressed());
+          }
+          assertTrue(Arrays.equals(expected.toByteArray(), readLzop(lzoFile, 64 * 1024, true)));
+        }
+      }
+    } finally {
+      fs.delete(lzoPath, false);
+      fs.close();
+    }
+  }
+
+  /**
+   * Whether the block whose header starts at <code>pos</code> is stored
+   * without compression.
+   */
+  private static boolean isStored(byte[] lzo, int pos) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(lzo, pos, 8));
+    return in.readInt() <= in.readInt();
+  }
+
+  private static int firstRecordOffset(String block) throws IOException {
+    return LzoIndexWriter.firstRecordOffset(
+        ByteBuffer.wrap(block.getBytes("US-ASCII")));
+  }
+
+  private static void assertIndexEquals(LzoIndex expected, LzoIndex actual) {
+    assertEquals(expected.getNumberOfBlocks(), actual.getNumberOfBlocks());
+    for (int i = 0; i < expected.getNumberOfBlocks(); i++) {
+      assertEquals(expected.getPosition(i), actual.getPosition(i));
+    }
+  }
+
+  private static byte[] readLzop(File lzoFile, int lzoBufferSize,
+      boolean pureJava) throws IOException {
+    LzopInputStream lzoIn = new LzopInputStream(new FileInputStream(lzoFile),
+        new LzopDecompressor(lzoBufferSize, pureJava), lzoBufferSize);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = lzoIn.read(buf, 0, buf.length)) > 0) {
+      out.write(buf, 0, n);
+    }
+    lzoIn.close();
+    return out.toByteArray();
+  }
+
+  private void writeInChunks(byte[] data, File lzoFile, int lzoBufferSize,
+      int numThreads) throws IOException {
+    writeInChunks(data, lzoFile, lzoBufferSize, numThreads, false);
+  }
+
+  private void writeInChunks(byte[] data, File lzoFile, int lzoBufferSize,
+      int numThreads, boolean pureJava) throws IOException {
+    writeInChunks(data, lzoFile, lzoBufferSize, numThreads, pureJava, LzoIndex.VERSION_1);
+  }
+
+  private void writeInChunks(byte[] data, File lzoFile, int lzoBufferSize,
+      int numThreads, boolean pureJava, int indexVersion) throws IOException {
+    writeInChunks(data, lzoFile, lzoBufferSize, numThreads, pureJava, indexVersion, 0);
+  }
+
+  private void writeInChunks(byte[] data, File lzoFile, int lzoBufferSize,
+      int numThreads, boolean pureJava, int indexVersion, int indexFlags)
+      throws IOException {
+    LzoCompressor.CompressionStrategy strategy = LzoCompressor.CompressionStrategy.LZO1X_1;
+    LzopOutputStream lzoOut = new LzopOutputStream(new FileOutputStream(lzoFile),
+        new DataOutputStream(new FileOutputStream(lzoFile + LzoIndex.LZO_INDEX_SUFFIX)),
+        new LzoCompressor(strategy, lzoBufferSize, pureJava || !LzoCompressor.isNativeLzoLoaded()),
+        lzoBufferSize, strategy, new LzopOutputStream.Options()
+            .setThreads(numThreads).setIndexFormat(indexVersion, indexFlags));
+    Random random = new Random(20);
+    int off = 0;
+    while (off < data.length) {
+      // Mostly small writes, with the occasional one spanning several blocks.
+      int len = random.nextInt(10) == 0 ? random.nextInt(3 * lzoBufferSize)
+          : random.nextInt(4096);
+      len = Math.min(len, data.length - off);
+      lzoOut.write(data, off, len);
+      off += len;
+    }
+    lzoOut.close();
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    FileInputStream in = new FileInputStream(file);
+    try {
+      int off = 0;
+      while (off < bytes.length) {
+        off += in.read(bytes, off, bytes.length - off);
+      }
+    } finally {
+      in.close();
+    }
+    return bytes;
+  }
+
   /**
    * Test that reading an lzo-compressed file produces the same lines as reading the equivalent
    * flat file.  The test opens both the compressed and flat file, successively reading each
@@ -0,0 +1,155 @@
+/*
+ * This file is part of Hadoop-Gpl-Compression.
+ *
+ * Hadoop-Gpl-Compression is free software: you can redistribute it
+ * and/or modify it under the terms of the GNU General Public License
+ * as published by the Free Software Foundation, either version 3 of
+ * the License, or (at your option) any later version.
+ *
+ * Hadoop-Gpl-Compression is distributed in the hope that it will be
+ * useful, but WITHOUT ANY WARRANTY; without even the implied warranty
+ * of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Hadoop-Gpl-Compression.  If not, see
+ * <https://www.gnu.org/licenses/>.
+ */
+
+package com.hadoop.mapreduce;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.TaskID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import com.hadoop.compression.lzo.LzoCodec;
+import com.hadoop.compression.lzo.LzoIndex;
+import com.hadoop.compression.lzo.LzopCodec;
+import com.hadoop.compression.lzo.util.CompatibilityUtil;
+
+/**
+ * Test the CombineLzoTextInputFormat, make sure it packs small files and
+ * pieces of indexed files into splits and reads every line once.
+ */
+public class TestCombineLzoTextInputFormat extends TestCase {
+
+  private static final int SMALL_FILES = 20;
+  private static final long SPLIT_SIZE = 32 * 1024;
+
+  private Path inputDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    Path testBuildData = new Path(System.getProperty("test.build.data", "data"));
+    inputDir = new Path(testBuildData, "combineInputDir");
+  }
+
+  public void testCombineSplits() throws IOException, InterruptedException {
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    // Small lzo blocks, so the big file has many to align to
+    LzoCodec.setBufferSize(conf, 4 * 1024);
+    CombineLzoTextInputFormat.setSplitSize(conf, SPLIT_SIZE);
+    FileSystem fs = FileSystem.newInstanceLocal(conf);
+    try {
+      fs.delete(inputDir, true);
+      fs.mkdirs(inputDir);
+
+      List<String> expected = new ArrayList<String>();
+      for (int i = 0; i < SMALL_FILES; i++) {
+        writeFile(fs, conf, new Path(inputDir, "small-" + i + ".lzo"), "small" + i,
+            50, expected);
+      }
+      Path bigFile = new Path(inputDir, "big.lzo");
+      writeFile(fs, conf, bigFile, "big", 20000, expected);
+      LzoIndex.createIndex(fs, bigFile);
+      long bigLength = fs.getFileStatus(bigFile).getLen();
+      assertTrue(bigLength > 4 * SPLIT_SIZE);
+
+      Job job = new Job(conf);
+      FileInputFormat.setInputPaths(job, inputDir);
+      CombineLzoTextInputFormat inputFormat = new CombineLzoTextInputFormat();
+      List<InputSplit> splits = inputFormat.getSplits(job);
+      assertTrue(splits.size() > 1);
+      // Far fewer splits than files plus pieces of the big file
+      assertTrue(splits.size() < SMALL_FILES);
+
+      // The pieces of the big file are lzo block aligned and cover it
+      LzoIndex index = LzoIndex.readIndex(fs, bigFile);
+      Map<Long, Long> bigChunks = new HashMap<Long, Long>();
+      for (InputSplit split : splits) {
+        CombineFileSplit combined = (CombineFileSplit) split;
+        for (int i = 0; i < combined.getNumPaths(); i++) {
+          if (combined.getPath(i).getName().equals(bigFile.getName())) {
+            long start = combined.getOffset(i);
+            assertTrue(start == 0 || index.findNextPosition(start) == start);
+            bigChunks.put(start, combined.getLength(i));
+          }
+        }
+      }
+      assertTrue(bigChunks.size() > 1);
+      long covered = 0;
+      while (bigChunks.containsKey(covered)) {
+        covered += bigChunks.get(covered);
+      }
+      assertEquals(bigLength, covered);
+
+      TaskAttemptContext attemptContext = CompatibilityUtil.newTaskAttemptContext(
+          job.getConfiguration(),
+          new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 1));
+      List<String> actual = new ArrayList<String>();
+      for (InputSplit split : splits) {
+        RecordReader<LongWritable, Text> rr =
+            inputFormat.createRecordReader(split, attemptContext);
+        rr.initialize(split, attemptContext);
+        while (rr.nextKeyValue()) {
+          actual.add(rr.getCurrentValue().toString());
+        }
+        rr.close();
+      }
+      Collections.sort(expected);
+      Collections.sort(actual);
+      assertEquals(expected, actual);
+    } finally {
+      fs.delete(inputDir, true);
+      fs.close();
+    }
+  }
+
+  private static void writeFile(FileSystem fs, Configuration conf, Path file,
+      String prefix, int lines, List<String> expected) throws IOException {
+    LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+    OutputStream out = codec.createOutputStream(fs.create(file));
+    try {
+      for (int i = 0; i < lines; i++) {
+        String line = prefix + " line " + i + " " + Integer.toHexString(i * 31);
+        out.write((line + "\n").getBytes("UTF-8"));
+        expected.add(line);
+      }
+    } finally {
+      out.close();
+    }
+  }
+}
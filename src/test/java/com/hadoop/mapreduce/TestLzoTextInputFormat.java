@@ -19,11 +19,14 @@
 package com.hadoop.mapreduce;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
 
 import junit.framework.TestCase;
@@ -31,11 +34,17 @@ import junit.framework.TestCase;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.BlockLocation;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
 import org.apache.hadoop.io.LongWritable;
 import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.hadoop.mapreduce.InputSplit;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.OutputCommitter;
@@ -47,12 +56,15 @@ import org.apache.hadoop.mapreduce.TaskID;
 import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.input.TextInputFormat;
 import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
 
 import com.hadoop.compression.lzo.GPLNativeCodeLoader;
+import com.hadoop.compression.lzo.LzoCodec;
 import com.hadoop.compression.lzo.LzoIndex;
 import com.hadoop.compression.lzo.LzoInputFormatCommon;
 import com.hadoop.compression.lzo.LzopCodec;
 import com.hadoop.compression.lzo.util.CompatibilityUtil;
+import com.hadoop.mapred.DeprecatedLzoTextInputFormat;
 
 /**
  * Test the LzoTextInputFormat, make sure it splits the file properly and
@@ -107,6 +119,216 @@ public class TestLzoTextInputFormat extends TestCase {
     assertEquals(LzoIndex.NOT_FOUND, index.alignSliceStartToIndex(16, 20));
   }
 
+  /**
+   * Read an index file both memory-mapped from the local file system and
+   * copied off-heap from a non-local one, and make sure both match what
+   * was written.
+   */
+  public void testReadIndex() throws IOException {
+    // Not the cached instance, which the other tests configure
+    LocalFileSystem localFs = FileSystem.newInstanceLocal(new Configuration());
+    Path lzoFile = new Path(outputDir, "readindex.lzo");
+    localFs.delete(outputDir, true);
+    FSDataOutputStream indexOut = localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX));
+    int blocks = 1000;
+    for (int i = 0; i < blocks; i++) {
+      indexOut.writeLong(40 + 262144L * i);
+    }
+    indexOut.close();
+
+    FileSystem nonLocalFs = new FilterFileSystem(localFs);
+    for (FileSystem fs : new FileSystem[] { localFs, localFs.getRaw(), nonLocalFs }) {
+      LzoIndex index = LzoIndex.readIndex(fs, lzoFile);
+      assertEquals(blocks, index.getNumberOfBlocks());
+      for (int i = 0; i < blocks; i++) {
+        assertEquals(40 + 262144L * i, index.getPosition(i));
+      }
+      assertEquals(40, index.findNextPosition(0));
+      assertEquals(40 + 262144L, index.findNextPosition(41));
+      assertEquals(40 + 262144L * 999, index.findNextPosition(40 + 262144L * 999));
+      assertEquals(LzoIndex.NOT_FOUND, index.findNextPosition(41 + 262144L * 999));
+    }
+
+    assertTrue(LzoIndex.readIndex(localFs, new Path(outputDir, "missing.lzo")).isEmpty());
+    assertTrue(LzoIndex.readIndex(nonLocalFs, new Path(outputDir, "missing.lzo")).isEmpty());
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Read the indexes of several files on a thread pool and make sure each
+   * file gets the same index as reading them one at a time.
+   */
+  public void testReadIndexesInParallel() throws IOException {
+    Configuration conf = new Configuration();
+    // Not the cached instance, which the other tests configure
+    conf.setBoolean("fs.file.impl.disable.cache", true);
+    LocalFileSystem localFs = FileSystem.newInstanceLocal(conf);
+    localFs.delete(outputDir, true);
+    List<Path> lzoFiles = new ArrayList<Path>();
+    for (int f = 0; f < 7; f++) {
+      Path lzoFile = localFs.makeQualified(new Path(outputDir, "part-" + f + ".lzo"));
+      lzoFiles.add(lzoFile);
+      if (f == 3) {
+        // One file without an index
+        continue;
+      }
+      FSDataOutputStream indexOut = localFs.create(lzoFile.suffix(LzoIndex.LZO_INDEX_SUFFIX));
+      for (int i = 0; i <= f * 10; i++) {
+        indexOut.writeLong(40 + 1000L * f + 262144L * i);
+      }
+      indexOut.close();
+    }
+
+    conf.setInt(LzoInputFormatCommon.INDEX_READ_THREADS_KEY, 1);
+    Map<Path, LzoIndex> serial = LzoInputFormatCommon.readIndexes(conf, lzoFiles);
+    conf.setInt(LzoInputFormatCommon.INDEX_READ_THREADS_KEY, 3);
+    Map<Path, LzoIndex> parallel = LzoInputFormatCommon.readIndexes(conf, lzoFiles);
+
+    assertEquals(lzoFiles.size(), serial.size());
+    assertEquals(lzoFiles.size(), parallel.size());
+    for (int f = 0; f < lzoFiles.size(); f++) {
+      LzoIndex expected = serial.get(lzoFiles.get(f));
+      LzoIndex actual = parallel.get(lzoFiles.get(f));
+      if (f == 3) {
+        assertTrue(expected.isEmpty());
+        assertTrue(actual.isEmpty());
+        continue;
+      }
+      assertEquals(f * 10 + 1, expected.getNumberOfBlocks());
+      assertEquals(expected.getNumberOfBlocks(), actual.getNumberOfBlocks());
+      for (int i = 0; i < expected.getNumberOfBlocks(); i++) {
+        assertEquals(expected.getPosition(i), actual.getPosition(i));
+      }
+    }
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
+  /**
+   * Make sure a split's hosts are those holding most of it, not just those
+   * of the block it starts in.
+   */
+  public void testSplitHosts() throws IOException {
+    BlockLocation[] blocks = new BlockLocation[] {
+        new BlockLocation(null, new String[] { "a", "b", "c" }, 0, 100),
+        new BlockLocation(null, new String[] { "c", "d", "e" }, 100, 100),
+        new BlockLocation(null, new String[] { "e", "f", "a" }, 200, 100),
+    };
+    // Mostly in the second block, and c and e hold some of the others too
+    assertEquals(Arrays.asList("c", "e", "d"),
+        Arrays.asList(LzoInputFormatCommon.getSplitHosts(blocks, 90, 210)));
+    // Within one block
+    assertEquals(Arrays.asList("a", "b", "c"),
+        Arrays.asList(LzoInputFormatCommon.getSplitHosts(blocks, 10, 90)));
+    // a, c and e each hold 200 bytes; at most as many hosts as replicas
+    assertEquals(Arrays.asList("a", "c", "e"),
+        Arrays.asList(LzoInputFormatCommon.getSplitHosts(blocks, 0, 300)));
+    assertEquals(0, LzoInputFormatCommon.getSplitHosts(blocks, 300, 400).length);
+  }
+
+  /**
+   * Split two files with very different compression ratios by uncompressed
+   * size, one indexed with block sizes and one without, and make sure the
+   * splits hold about the same amount of text and every line is read once.
+   */
+  public void testUncompressedSplitSize() throws IOException,
+      InterruptedException {
+    int splitSize = 64 * 1024;
+    int lzoBufferSize = 4 * 1024;
+    Configuration conf = new Configuration();
+    conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzoCodec.setBufferSize(conf, lzoBufferSize);
+    // Really compress, whatever native library is around
+    conf.setBoolean(LzoCodec.LZO_PURE_JAVA_KEY, true);
+    conf.setLong(LzoInputFormatCommon.UNCOMPRESSED_SPLIT_SIZE_KEY, splitSize);
+    LocalFileSystem localFs = FileSystem.newInstanceLocal(conf);
+    localFs.delete(outputDir, true);
+
+    // Repetitive lines compress far better than random ones
+    Path repetitive = localFs.makeQualified(new Path(outputDir, "repetitive.lzo"));
+    Path random = localFs.makeQualified(new Path(outputDir, "random.lzo"));
+    Random r = new Random(17);
+    int lines = 0;
+    LzopCodec codec = ReflectionUtils.newInstance(LzopCodec.class, conf);
+    OutputStream out1 = codec.createOutputStream(localFs.create(repetitive));
+    OutputStream out2 = codec.createOutputStream(localFs.create(random));
+    for (int i = 0; i < 20000; i++) {
+      out1.write(("the same line over and over " + (i % 10) + "\n").getBytes("UTF-8"));
+      out2.write((Long.toHexString(r.nextLong()) + Long.toHexString(r.nextLong()) +
+          "\n").getBytes("UTF-8"));
+      lines += 2;
+    }
+    out1.close();
+    out2.close();
+    assertTrue(localFs.getFileStatus(random).getLen() >
+        3 * localFs.getFileStatus(repetitive).getLen());
+
+    LzoIndex.createIndex(localFs, random);
+    Configuration sizesConf = new Configuration(conf);
+    LzopCodec.setIndexVersion(sizesConf, LzoIndex.VERSION_2);
+    LzopCodec.setIndexUncompressedSizes(sizesConf, true);
+    LocalFileSystem sizesFs = FileSystem.newInstanceLocal(sizesConf);
+    LzoIndex.createIndex(sizesFs, repetitive);
+    sizesFs.close();
+
+    Job job = new Job(conf);
+    TextInputFormat.setInputPaths(job, outputDir);
+    LzoTextInputFormat inputFormat = new LzoTextInputFormat();
+    List<InputSplit> splits = inputFormat.getSplits(job);
+
+    TaskAttemptContext attemptContext = CompatibilityUtil.newTaskAttemptContext(
+        job.getConfiguration(),
+        new TaskAttemptID(TaskID.forName("task_123_0001_m_000001"), 1));
+    Map<String, List<Long>> splitBytes = new HashMap<String, List<Long>>();
+    int linesRead = 0;
+    for (InputSplit split : splits) {
+      RecordReader<LongWritable, Text> rr = inputFormat.createRecordReader(
+          split, attemptContext);
+      rr.initialize(split, attemptContext);
+      long bytes = 0;
+      while (rr.nextKeyValue()) {
+        bytes += rr.getCurrentValue().getLength() + 1;
+        linesRead++;
+      }
+      rr.close();
+      String name = ((FileSplit) split).getPath().getName();
+      if (!splitBytes.containsKey(name)) {
+        splitBytes.put(name, new ArrayList<Long>());
+      }
+      splitBytes.get(name).add(bytes);
+    }
+    assertEquals(lines, linesRead);
+
+    for (List<Long> sizes : splitBytes.values()) {
+      assertTrue(sizes.size() > 3);
+      // All but the last split hold the split size, give or take a block
+      // and the line crossing into the next split
+      for (int i = 0; i < sizes.size() - 1; i++) {
+        assertTrue(sizes.get(i) > splitSize - 100);
+        assertTrue(sizes.get(i) < splitSize + lzoBufferSize + 100);
+      }
+    }
+
+    // The old API plans the same splits
+    JobConf jobConf = new JobConf(conf);
+    org.apache.hadoop.mapred.FileInputFormat.setInputPaths(jobConf, outputDir);
+    org.apache.hadoop.mapred.InputSplit[] oldSplits =
+        new DeprecatedLzoTextInputFormat().getSplits(jobConf, 1);
+    assertEquals(splits.size(), oldSplits.length);
+    for (int i = 0; i < oldSplits.length; i++) {
+      FileSplit split = (FileSplit) splits.get(i);
+      org.apache.hadoop.mapred.FileSplit oldSplit =
+          (org.apache.hadoop.mapred.FileSplit) oldSplits[i];
+      assertEquals(split.getPath(), oldSplit.getPath());
+      assertEquals(split.getStart(), oldSplit.getStart());
+      assertEquals(split.getLength(), oldSplit.getLength());
+    }
+
+    localFs.delete(outputDir, true);
+    localFs.close();
+  }
+
   /**
    * Index the file and make sure it splits properly.
    * 
@@ -135,17 +357,61 @@ public class TestLzoTextInputFormat extends TestCase {
     runTest(false, OUTPUT_SMALL);
   }
 
+  /**
+   * Index the file and make sure the splits still line up when the record
+   * readers read blocks ahead.
+   *
+   * @throws NoSuchAlgorithmException
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void testWithIndexReadAhead() throws NoSuchAlgorithmException,
+      IOException, InterruptedException {
+
+    runTest(true, OUTPUT_BIG, 4);
+    runTest(true, OUTPUT_SMALL, 4);
+  }
+
+  /**
+   * Index the file with the offsets of the first record in each block and
+   * make sure the readers skipping to them read the same lines.
+   *
+   * @throws NoSuchAlgorithmException
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void testWithIndexFirstRecordOffsets() throws NoSuchAlgorithmException,
+      IOException, InterruptedException {
+
+    runTest(true, OUTPUT_BIG, LzopCodec.DEFAULT_LZO_READAHEAD_BLOCKS, true);
+    runTest(true, OUTPUT_SMALL, LzopCodec.DEFAULT_LZO_READAHEAD_BLOCKS, true);
+  }
+
+  private void runTest(boolean testWithIndex, int charsToOutput) throws IOException,
+      NoSuchAlgorithmException, InterruptedException {
+    runTest(testWithIndex, charsToOutput, LzopCodec.DEFAULT_LZO_READAHEAD_BLOCKS);
+  }
+
+  private void runTest(boolean testWithIndex, int charsToOutput,
+      int readAheadBlocks) throws IOException, NoSuchAlgorithmException,
+      InterruptedException {
+    runTest(testWithIndex, charsToOutput, readAheadBlocks, false);
+  }
+
   /**
    * Generate random data, compress it, index and md5 hash the data.
    * Then read it all back and md5 that too, to verify that it all went ok.
    * 
    * @param testWithIndex Should we index or not?
    * @param charsToOutput How many characters of random data should we output.
+   * @param readAheadBlocks How many blocks the record readers read ahead.
+   * @param firstRecordOffsets Should the index record where records start?
    * @throws IOException
    * @throws NoSuchAlgorithmException
    * @throws InterruptedException
    */
-  private void runTest(boolean testWithIndex, int charsToOutput) throws IOException,
+  private void runTest(boolean testWithIndex, int charsToOutput,
+      int readAheadBlocks, boolean firstRecordOffsets) throws IOException,
       NoSuchAlgorithmException, InterruptedException {
 
     if (!GPLNativeCodeLoader.isNativeCodeLoaded()) {
@@ -157,6 +423,7 @@ public class TestLzoTextInputFormat extends TestCase {
     conf.setLong("fs.local.block.size", charsToOutput / 2);
     // reducing block size to force a split of the tiny file
     conf.set("io.compression.codecs", LzopCodec.class.getName());
+    LzopCodec.setReadAhead(conf, readAheadBlocks, 2);
     
     FileSystem localFs = FileSystem.getLocal(conf);
     localFs.delete(outputDir, true);
@@ -176,7 +443,19 @@ public class TestLzoTextInputFormat extends TestCase {
    
     if (testWithIndex) {
       Path lzoFile = new Path(outputDir, lzoFileName);
-      LzoIndex.createIndex(localFs, lzoFile);
+      if (firstRecordOffsets) {
+        Configuration indexConf = new Configuration(conf);
+        LzopCodec.setIndexVersion(indexConf, LzoIndex.VERSION_2);
+        LzopCodec.setIndexFirstRecordOffsets(indexConf, true);
+        FileSystem indexFs = FileSystem.newInstanceLocal(indexConf);
+        try {
+          LzoIndex.createIndex(indexFs, lzoFile);
+        } finally {
+          indexFs.close();
+        }
+      } else {
+        LzoIndex.createIndex(localFs, lzoFile);
+      }
     }
 
     LzoTextInputFormat inputFormat = new LzoTextInputFormat();
@@ -192,6 +471,20 @@ public class TestLzoTextInputFormat extends TestCase {
 
     // let's read it all and calculate the md5 hash
     for (InputSplit inputSplit : is) {
+      if (firstRecordOffsets && ((FileSplit) inputSplit).getStart() != 0) {
+        // Make sure the offset survives being sent to the task
+        assertTrue(inputSplit instanceof LzoFileSplit);
+        DataOutputBuffer out = new DataOutputBuffer();
+        ((LzoFileSplit) inputSplit).write(out);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        LzoFileSplit copy = new LzoFileSplit();
+        copy.readFields(in);
+        assertEquals(((LzoFileSplit) inputSplit).getFirstRecordOffset(),
+            copy.getFirstRecordOffset());
+        assertEquals(((FileSplit) inputSplit).getStart(), copy.getStart());
+        inputSplit = copy;
+      }
       RecordReader<LongWritable, Text> rr = inputFormat.createRecordReader(
           inputSplit, attemptContext);
       rr.initialize(inputSplit, attemptContext);